@@ -0,0 +1,81 @@
+package bgu.spl.mics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.MailboxType;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.OverflowPolicy;
+import bgu.spl.mics.WaitStrategy;
+import bgu.spl.mics.benchmarks.ConsumerGroup.PingBroadcast;
+
+/**
+ * The cost of {@link MessageBusImpl#awaitMessage} on its own: a single thread
+ * queues {@code queueDepth} broadcasts for itself, then takes them back, so
+ * the owner never waits and the operation is the dequeue path.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1) // The mailbox has a single consumer
+@State(Scope.Thread)
+public class AwaitMessageBenchmark {
+
+    private static final int BATCH = 1024;
+    private static final PingBroadcast BROADCAST = new PingBroadcast();
+
+    @Param({"LOCKED", "LOCK_FREE"})
+    public MailboxType mailboxType;
+
+    private final MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+    private MicroService service;
+
+    @Setup(Level.Trial)
+    public void register() {
+        messageBus.configureMailbox("awaiter", BATCH, OverflowPolicy.BLOCK, mailboxType, WaitStrategy.PARK);
+        service = new ConsumerGroup.IdleService("awaiter");
+        messageBus.register(service);
+        messageBus.subscribeBroadcast(PingBroadcast.class, service);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        for (int i = 0; i < BATCH; i++) {
+            messageBus.sendBroadcast(BROADCAST);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void unregister() {
+        messageBus.unregister(service);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(BATCH)
+    public Message awaitMessage() throws InterruptedException {
+        Message last = null;
+        for (int i = 0; i < BATCH; i++) {
+            last = messageBus.awaitMessage(service);
+        }
+        return last;
+    }
+}
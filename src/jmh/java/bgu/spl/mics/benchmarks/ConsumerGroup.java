@@ -0,0 +1,104 @@
+package bgu.spl.mics.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Event;
+import bgu.spl.mics.MailboxType;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.OverflowPolicy;
+import bgu.spl.mics.WaitStrategy;
+
+/**
+ * Micro-services subscribed to {@link PingEvent} and {@link PingBroadcast},
+ * each draining its mailbox on its own thread and completing every event.
+ * <p>
+ * The mailboxes are bounded to {@code queueDepth} with
+ * {@link OverflowPolicy#BLOCK}, so producers that outrun the consumers wait
+ * instead of filling the heap. The producers are the benchmark threads, set
+ * their number with the JMH option {@code -t}.
+ */
+@State(Scope.Benchmark)
+public class ConsumerGroup {
+
+    @Param({"1", "4"})
+    public int consumers;
+
+    @Param({"16", "1024"})
+    public int queueDepth;
+
+    @Param({"LOCKED", "LOCK_FREE"})
+    public MailboxType mailboxType;
+
+    final MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+    private final List<MicroService> services = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void start() {
+        for (int i = 0; i < consumers; i++) {
+            String name = "consumer" + i;
+            messageBus.configureMailbox(name, queueDepth, OverflowPolicy.BLOCK, mailboxType, WaitStrategy.PARK);
+            MicroService service = new IdleService(name);
+            messageBus.register(service);
+            messageBus.subscribeEvent(PingEvent.class, service);
+            messageBus.subscribeBroadcast(PingBroadcast.class, service);
+            Thread thread = new Thread(() -> consume(service), name);
+            thread.setDaemon(true);
+            thread.start();
+            services.add(service);
+            threads.add(thread);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join();
+        }
+        services.forEach(messageBus::unregister);
+        services.clear();
+        threads.clear();
+    }
+
+    private void consume(MicroService service) {
+        try {
+            while (true) {
+                Message message = messageBus.awaitMessage(service);
+                if (message instanceof PingEvent) {
+                    messageBus.complete(service, (PingEvent) message, Boolean.TRUE);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Stopped by the tear down
+        }
+    }
+
+    public static class PingEvent implements Event<Boolean> {
+    }
+
+    public static class PingBroadcast implements Broadcast {
+    }
+
+    // The benchmarks drive the bus directly, the services never run their own loop
+    static class IdleService extends MicroService {
+        IdleService(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package bgu.spl.mics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.benchmarks.ConsumerGroup.PingBroadcast;
+import bgu.spl.mics.benchmarks.ConsumerGroup.PingEvent;
+
+/**
+ * Micro-services that come and go: registering, subscribing to an event and a
+ * broadcast type, and unregistering, next to the subscribers of a
+ * {@link ConsumerGroup}. Run with several threads ({@code -t}) the threads
+ * contend on the subscriber groups of the shared types.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class RegistrationChurnBenchmark {
+
+    private final MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+    private int next;
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void registerSubscribeUnregister(ConsumerGroup group) {
+        MicroService service = new ConsumerGroup.IdleService("churn" + Thread.currentThread().getId() + "-" + next++);
+        messageBus.register(service);
+        messageBus.subscribeEvent(PingEvent.class, service);
+        messageBus.subscribeBroadcast(PingBroadcast.class, service);
+        messageBus.unregister(service);
+    }
+}
@@ -0,0 +1,54 @@
+package bgu.spl.mics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.mics.Future;
+import bgu.spl.mics.benchmarks.ConsumerGroup.PingBroadcast;
+import bgu.spl.mics.benchmarks.ConsumerGroup.PingEvent;
+
+/**
+ * Sending to a {@link ConsumerGroup}: the throughput of
+ * {@link bgu.spl.mics.MessageBusImpl#sendEvent sendEvent} and
+ * {@link bgu.spl.mics.MessageBusImpl#sendBroadcast sendBroadcast} while the
+ * consumers keep up, and the latency of a full round trip through
+ * {@code awaitMessage}, {@code complete} and {@link Future#get()}.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SendBenchmark {
+
+    private static final PingBroadcast BROADCAST = new PingBroadcast();
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Future<Boolean> sendEvent(ConsumerGroup group) {
+        return group.messageBus.sendEvent(new PingEvent());
+    }
+
+    /**
+     * Every consumer receives each broadcast, so one operation queues {@code consumers} messages.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void sendBroadcast(ConsumerGroup group) {
+        group.messageBus.sendBroadcast(BROADCAST);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Boolean roundTrip(ConsumerGroup group) {
+        return group.messageBus.sendEvent(new PingEvent()).get();
+    }
+}
@@ -0,0 +1,98 @@
+package bgu.spl.mics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Routes {@link KeyedEvent keyed events} on a consistent-hash ring, see
+ * {@link RoutingStrategy#consistentHash()}.
+ * <p>
+ * Every subscriber owns {@value #POINTS_PER_SUBSCRIBER} points of the ring,
+ * placed by hashing its name, and a key goes to the owner of the first point
+ * at or after the key's hash. The ring is rebuilt when the subscriber array
+ * of the group changes: the points of the other subscribers do not move, so
+ * when one unregisters only its keys are spread over the rest, and when one
+ * subscribes it takes about its share of keys from the others. Unkeyed events
+ * are routed round-robin.
+ */
+final class ConsistentHashRouting implements RoutingStrategy {
+
+    static final int POINTS_PER_SUBSCRIBER = 64;
+
+    private final AtomicInteger cursor = new AtomicInteger();
+    // Rebuilt by a sender that finds it stale, concurrent rebuilds produce equal rings
+    private volatile Ring ring;
+
+    @Override
+    public MicroService select(MicroService[] subscribers, ToIntFunction<MicroService> load) {
+        return subscribers[(cursor.getAndIncrement() & Integer.MAX_VALUE) % subscribers.length];
+    }
+
+    @Override
+    public MicroService select(MicroService[] subscribers, ToIntFunction<MicroService> load, Object key) {
+        if (key == null) {
+            return select(subscribers, load);
+        }
+        Ring current = ring;
+        if (current == null || current.subscribers != subscribers) {
+            current = new Ring(subscribers); // The group replaces its array on every change
+            ring = current;
+        }
+        return current.ownerOf(mix(key.hashCode()));
+    }
+
+    // Spreads the bits of weak hash codes (small integers, similar strings) over the ring
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // FNV-1a of the name and point index, stable across runs unlike identity hash codes
+    private static int pointOf(String name, int index) {
+        int h = 0x811c9dc5;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x01000193;
+        }
+        h = (h ^ index) * 0x01000193;
+        return mix(h);
+    }
+
+    private static final class Ring {
+        private final MicroService[] subscribers;
+        private final int[] points; // Sorted
+        private final MicroService[] owners; // Owner of the point at the same index
+
+        private Ring(MicroService[] subscribers) {
+            this.subscribers = subscribers;
+            int size = subscribers.length * POINTS_PER_SUBSCRIBER;
+            long[] entries = new long[size]; // Point in the high half, subscriber index in the low half
+            for (int s = 0; s < subscribers.length; s++) {
+                String name = subscribers[s].getName();
+                for (int i = 0; i < POINTS_PER_SUBSCRIBER; i++) {
+                    entries[s * POINTS_PER_SUBSCRIBER + i] = ((long) pointOf(name, i) << 32) | s;
+                }
+            }
+            Arrays.sort(entries);
+            points = new int[size];
+            owners = new MicroService[size];
+            for (int i = 0; i < size; i++) {
+                points[i] = (int) (entries[i] >> 32);
+                owners[i] = subscribers[(int) entries[i]];
+            }
+        }
+
+        private MicroService ownerOf(int hash) {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1; // The first point after the hash
+            }
+            return owners[i == points.length ? 0 : i]; // Past the last point wraps to the first
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package bgu.spl.mics;
+
+/**
+ * Carries an {@link Event} through a mailbox together with the {@link Future}
+ * returned to its sender, so completing the event resolves the Future directly.
+ * Envelopes never leave the message-bus, receivers only see the event.
+ */
+final class Envelope implements Message {
+
+    final Event<?> event;
+    final Future<?> future;
+    // The expiry of the event's deadline, set after queuing when it was sent with one
+    volatile TimerWheel.Timeout timeout;
+
+    Envelope(Event<?> event, Future<?> future) {
+        this.event = event;
+        this.future = future;
+    }
+
+    // The event was completed or cancelled, its deadline no longer matters
+    void cancelTimeout() {
+        TimerWheel.Timeout scheduled = timeout;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+    }
+}
@@ -1,70 +1,140 @@
 package bgu.spl.mics;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
 
 /**
  * A Future object represents a promised result - an object that will
  * eventually be resolved to hold a result of some operation. The class allows
  * Retrieving the result once it is available.
- * 
- * Only private methods may be added to this class.
+ * <p>
+ * The Future is lock-free: its state is a single reference that is either a
+ * stack of waiting threads and continuations (while pending) or the final
+ * {@link Outcome}, and it is resolved with one compare-and-set. Besides the
+ * blocking getters, continuations can be attached with
+ * {@link #onComplete(Callback)} and {@link #thenApply(Function)}, and several
+ * Futures can be combined with {@link #allOf(Collection)} and {@link #anyOf(Collection)},
+ * so a micro-service can react to a result without parking its thread.
+ * Continuations run on the thread that resolves the Future, or immediately on
+ * the caller's thread if it is already resolved.
+ * <p>
+ * A sender that no longer needs the result can {@link #cancel()} the Future.
+ * The message-bus fails it with a {@link TimeoutException} when the event
+ * was sent with a deadline that passed (see
+ * {@link MessageBusImpl#sendEvent(Event, long, TimeUnit)}), and with a
+ * {@link CancellationException} when its handler unregisters before completing it.
+ *
  * No public constructor is allowed except for the empty constructor.
  */
 public class Future<T> {
 
-	private T result;
-	private boolean isResolved; 
-	
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<Future, Object> STATE =
+			AtomicReferenceFieldUpdater.newUpdater(Future.class, Object.class, "state");
+
+	// null or a Node while pending, an Outcome once resolved
+	private volatile Object state;
+
 	/**
 	 * This should be the the only public constructor in this class.
 	 */
 	public Future() {
-		result = null;
-		isResolved = false;
+		state = null;
 	}
-	
+
 	/**
      * retrieves the result the Future object holds if it has been resolved.
      * This is a blocking method! It waits for the computation in case it has
      * not been completed.
      * <p>
      * @return return the result of type T if it is available, if not wait until it is available.
-     * 	       
+     * 	       null if the waiting thread was interrupted or the Future was failed.
      */
-
-	 // (!!!) check if try cach is neccecary
-	public synchronized T get() {
-		
-		while (!isResolved) {
-            try {
-                wait(); // Wait until the result is resolved
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt(); // Restore interrupt status
-                return null; // Exit gracefully if interrupted
-            }
-        }
-        return result;
-	
+	public T get() {
+		Node waiter = null;
+		while (true) {
+			Object current = state;
+			if (current instanceof Outcome) {
+				return resultOf(current);
+			}
+			if (waiter == null) {
+				waiter = new Node(Thread.currentThread(), null);
+			}
+			if (push(current, waiter)) {
+				break;
+			}
+		}
+		while (!(state instanceof Outcome)) {
+			LockSupport.park(this);
+			if (Thread.interrupted()) {
+				removeWaiter(waiter);
+				Thread.currentThread().interrupt(); // Restore interrupt status
+				return null; // Exit gracefully if interrupted
+			}
+		}
+		return resultOf(state);
     }
-	
+
 	/**
      * Resolves the result of this Future object.
+     * Only the first call to {@code resolve} (or a failure) takes effect.
      */
-	public synchronized void resolve (T result) {
-		if (!isResolved) { // Ensure result is set only once
-            this.result = result;
-            this.isResolved = true;
-            notifyAll(); // Notify all threads waiting for the result
-        }
-	
+	public void resolve (T result) {
+		complete(new Outcome(result, null));
     }
+
+	/**
+	 * Resolves this Future without a result because the event could not be
+	 * handled, {@link #get()} then returns null and {@link #getFailure()} the cause.
+	 * <p>
+	 * @return true if this call failed the Future, false if it was already resolved.
+	 */
+	boolean fail(Throwable cause) {
+		return complete(new Outcome(null, cause));
+	}
+
+	/**
+	 * Fails this Future with a {@link CancellationException} if it is still
+	 * pending. An event that was not taken yet is then skipped by its
+	 * handler, one being handled runs to the end but its result is ignored.
+	 * <p>
+	 * @return true if the Future was cancelled, false if it was already resolved.
+	 */
+	public boolean cancel() {
+		return fail(new CancellationException("Cancelled by the sender"));
+	}
+
+	/**
+	 * @return true if this Future was cancelled, by the sender or because the
+	 *         micro-service handling the event unregistered.
+	 */
+	public boolean isCancelled() {
+		return getFailure() instanceof CancellationException;
+	}
+
+	/**
+	 * @return the reason this Future was failed, or null if it is pending or was resolved with a result.
+	 */
+	public Throwable getFailure() {
+		Object current = state;
+		return current instanceof Outcome ? ((Outcome) current).failure : null;
+	}
+
 	/**
      * @return true if this object has been resolved, false otherwise
      */
 	public boolean isDone() {
-		return isResolved;
+		return state instanceof Outcome;
 	}
-	
+
 	/**
      * retrieves the result the Future object holds if it has been resolved,
      * This method is non-blocking, it has a limited amount of time determined
@@ -72,21 +142,242 @@ public class Future<T> {
      * <p>
      * @param timout 	the maximal amount of time units to wait for the result.
      * @param unit		the {@link TimeUnit} time units to wait.
-     * @return return the result of type T if it is available, if not, 
+     * @return return the result of type T if it is available, if not,
      * 	       wait for {@code timeout} TimeUnits {@code unit}. If time has
      *         elapsed, return null.
      */
-	public synchronized T get(long timeout, TimeUnit unit) {
-		if (!isResolved) {
-			try {
-				long millis = unit.toMillis(timeout); // Convert timeout to milliseconds
-				wait(millis); // Wait for the specified duration
-			} catch (InterruptedException e) {
+	public T get(long timeout, TimeUnit unit) {
+		Object current = state;
+		if (current instanceof Outcome) {
+			return resultOf(current);
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		Node waiter = new Node(Thread.currentThread(), null);
+		while (!push(current, waiter)) {
+			current = state;
+			if (current instanceof Outcome) {
+				return resultOf(current);
+			}
+		}
+		// Spurious wakeups just loop until the deadline
+		while (!(state instanceof Outcome)) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				removeWaiter(waiter);
+				return null; // Time has elapsed
+			}
+			LockSupport.parkNanos(this, remaining);
+			if (Thread.interrupted()) {
+				removeWaiter(waiter);
 				Thread.currentThread().interrupt(); // Restore interrupt status
 				return null; // Exit gracefully if interrupted
 			}
 		}
-		return result; // Return the result (may be null if timeout elapsed)
+		return resultOf(state);
+	}
+
+	/**
+	 * Calls {@code callback} with the result once this Future is resolved, or
+	 * right away if it already is. A failed Future calls it with null, use
+	 * {@link #getFailure()} to tell the two apart.
+	 * <p>
+	 * @param callback the continuation to run on the resolving thread.
+	 * @return this Future.
+	 */
+	public Future<T> onComplete(Callback<T> callback) {
+		Node node = new Node(null, () -> callback.call(resultOf(state)));
+		while (true) {
+			Object current = state;
+			if (current instanceof Outcome) {
+				node.run();
+				return this;
+			}
+			if (push(current, node)) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * @param fn  maps the result of this Future once it is resolved.
+	 * @return a Future resolved with {@code fn}'s result, or failed if this
+	 *         Future fails or {@code fn} throws.
+	 */
+	public <U> Future<U> thenApply(Function<? super T, ? extends U> fn) {
+		Future<U> mapped = new Future<>();
+		onComplete(result -> {
+			Throwable failure = getFailure();
+			if (failure != null) {
+				mapped.fail(failure);
+				return;
+			}
+			try {
+				mapped.resolve(fn.apply(result));
+			} catch (RuntimeException e) {
+				mapped.fail(e);
+			}
+		});
+		return mapped;
+	}
+
+	/**
+	 * @return a Future resolved (with null) once all of {@code futures} are
+	 *         resolved, failed with the first failure if any of them failed.
+	 */
+	public static Future<Void> allOf(Collection<? extends Future<?>> futures) {
+		Future<Void> all = new Future<>();
+		List<Future<?>> pending = new ArrayList<>(futures);
+		if (pending.isEmpty()) {
+			all.resolve(null);
+			return all;
+		}
+		AtomicInteger remaining = new AtomicInteger(pending.size());
+		for (Future<?> future : pending) {
+			future.onComplete(result -> {
+				if (remaining.decrementAndGet() == 0) {
+					Throwable failure = null;
+					for (Future<?> f : pending) {
+						if (failure == null) {
+							failure = f.getFailure();
+						}
+					}
+					if (failure != null) {
+						all.fail(failure);
+					} else {
+						all.resolve(null);
+					}
+				}
+			});
+		}
+		return all;
 	}
 
+	/**
+	 * @return a Future resolved (or failed) like the first of {@code futures}
+	 *         to be resolved. It never resolves if {@code futures} is empty.
+	 */
+	public static <T> Future<T> anyOf(Collection<? extends Future<? extends T>> futures) {
+		Future<T> any = new Future<>();
+		for (Future<? extends T> future : futures) {
+			future.onComplete(result -> {
+				Throwable failure = future.getFailure();
+				if (failure != null) {
+					any.fail(failure);
+				} else {
+					any.resolve(result);
+				}
+			});
+		}
+		return any;
+	}
+
+	// Publishes the outcome once, then wakes the waiters and runs the continuations in the replaced stack
+	private boolean complete(Outcome outcome) {
+		Object current;
+		do {
+			current = state;
+			if (current instanceof Outcome) {
+				return false; // Ensure result is set only once
+			}
+		} while (!STATE.compareAndSet(this, current, outcome));
+		if (current == null) {
+			return true;
+		}
+		// The stack is in reverse order of arrival, run continuations in arrival order.
+		// Collected rather than reversed in place, a waiter giving up may still be unlinking nodes
+		List<Node> nodes = new ArrayList<>();
+		for (Node node = (Node) current; node != null; node = node.next) {
+			nodes.add(node);
+		}
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			nodes.get(i).run();
+		}
+		return true;
+	}
+
+	/**
+	 * Unlinks a waiter that timed out or was interrupted, and any other such
+	 * node on the way, so polling a Future that stays pending does not grow
+	 * its stack. Only the head is replaced with a compare-and-set, a node
+	 * unlinked behind a node that died meanwhile is unlinked again from the
+	 * head (as in {@link java.util.concurrent.FutureTask}).
+	 */
+	private void removeWaiter(Node waiter) {
+		waiter.thread = null;
+		retry:
+		while (true) {
+			Object current = state;
+			if (!(current instanceof Node)) {
+				return; // Resolved, the stack is gone
+			}
+			Node pred = null;
+			for (Node node = (Node) current, next; node != null; node = next) {
+				next = node.next;
+				if (!node.isDead()) {
+					pred = node;
+				} else if (pred != null) {
+					pred.next = next;
+					if (pred.isDead()) {
+						continue retry;
+					}
+				} else if (!STATE.compareAndSet(this, node, next)) {
+					continue retry;
+				}
+			}
+			return;
+		}
+	}
+
+	private boolean push(Object current, Node node) {
+		node.next = (Node) current;
+		return STATE.compareAndSet(this, current, node);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T resultOf(Object outcome) {
+		return (T) ((Outcome) outcome).result;
+	}
+
+	// The final state of a resolved Future
+	private static final class Outcome {
+		private final Object result;
+		private final Throwable failure;
+
+		private Outcome(Object result, Throwable failure) {
+			this.result = result;
+			this.failure = failure;
+		}
+	}
+
+	// A parked thread or a continuation waiting for the outcome
+	private static final class Node {
+		private volatile Thread thread;
+		private final Runnable continuation;
+		private volatile Node next;
+
+		private Node(Thread thread, Runnable continuation) {
+			this.thread = thread;
+			this.continuation = continuation;
+		}
+
+		// A waiter that gave up, nothing to wake or run
+		private boolean isDead() {
+			return thread == null && continuation == null;
+		}
+
+		private void run() {
+			if (continuation != null) {
+				try {
+					continuation.run();
+				} catch (RuntimeException e) {
+					Logger.error("Future continuation failed: {}", e.getMessage(), e);
+				}
+			} else {
+				Thread waiter = thread;
+				if (waiter != null) {
+					LockSupport.unpark(waiter);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,61 @@
+package bgu.spl.mics;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The mailbox holding each event taken by its owner and not completed yet,
+ * so {@link MessageBusImpl#complete(Event, Object)}, which is not told who
+ * handled the event, finds it without searching every mailbox.
+ * <p>
+ * Events are keyed by identity like the in-flight tables of the mailboxes,
+ * which keep the index up to date under their own lock. The index is
+ * striped by identity hash so owners taking events at the same time rarely
+ * meet on a lock.
+ */
+final class InFlightIndex {
+
+    private static final int STRIPES = 16; // A power of two
+
+    private final Map<Event<?>, Mailbox>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    InFlightIndex() {
+        stripes = new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new IdentityHashMap<>();
+        }
+    }
+
+    void put(Event<?> e, Mailbox mailbox) {
+        Map<Event<?>, Mailbox> stripe = stripeOf(e);
+        synchronized (stripe) {
+            stripe.put(e, mailbox);
+        }
+    }
+
+    // Removes e only if mailbox still holds it, the same event may have been taken again by another owner since
+    void remove(Event<?> e, Mailbox mailbox) {
+        Map<Event<?>, Mailbox> stripe = stripeOf(e);
+        synchronized (stripe) {
+            if (stripe.get(e) == mailbox) {
+                stripe.remove(e);
+            }
+        }
+    }
+
+    /**
+     * @return the mailbox whose owner took {@code e} and has not completed it, null if none.
+     */
+    Mailbox get(Event<?> e) {
+        Map<Event<?>, Mailbox> stripe = stripeOf(e);
+        synchronized (stripe) {
+            return stripe.get(e);
+        }
+    }
+
+    private Map<Event<?>, Mailbox> stripeOf(Event<?> e) {
+        int h = System.identityHashCode(e);
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
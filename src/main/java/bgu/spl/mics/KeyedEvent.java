@@ -0,0 +1,19 @@
+package bgu.spl.mics;
+
+/**
+ * An {@link Event} that carries a routing key. Under a key-aware
+ * {@link RoutingStrategy} such as {@link RoutingStrategy#consistentHash()},
+ * the events with equal keys go to the same subscriber as long as it stays
+ * subscribed, so state a handler keeps per key stays local to it. Other
+ * strategies ignore the key.
+ *
+ * @param <T> The result type of the event.
+ */
+public interface KeyedEvent<T> extends Event<T> {
+
+    /**
+     * @return the routing key, compared with {@code equals} and hashed with
+     *         {@code hashCode}. Null routes the event as an unkeyed one.
+     */
+    Object getRoutingKey();
+}
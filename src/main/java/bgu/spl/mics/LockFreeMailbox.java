@@ -0,0 +1,194 @@
+package bgu.spl.mics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link Mailbox} whose two lanes are lock-free {@link MpscQueue}s.
+ * <p>
+ * Senders never take a lock: a data message first reserves room with a
+ * compare-and-set on the lane count, then is appended, and the owner is
+ * unparked only if it announced that it is parked. The owner waits according
+ * to its {@link WaitStrategy}.
+ * <p>
+ * The exception is {@link OverflowPolicy#DROP_OLDEST}: a sender that finds
+ * the data lane full removes its head to make room, so the lane stays
+ * bounded however long the owner stalls. The queue has a single consumer,
+ * so in this policy the owner and evicting senders poll the data lane under
+ * its monitor.
+ */
+final class LockFreeMailbox extends Mailbox {
+
+    private static final int SPINS = 1 << 10;
+    private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final WaitStrategy waitStrategy;
+    private final MpscQueue<Message> control = new MpscQueue<>();
+    private final MpscQueue<Message> data = new MpscQueue<>();
+    // Messages counted before they are appended, so a count may run ahead of what poll sees
+    private final AtomicInteger controlCount = new AtomicInteger();
+    private final AtomicInteger dataCount = new AtomicInteger();
+    // The owner while it is parked or about to park, senders unpark it
+    private volatile Thread waiter;
+
+    LockFreeMailbox(String owner, int capacity, OverflowPolicy policy, WaitStrategy waitStrategy, InFlightIndex index) {
+        super(owner, capacity, policy, index);
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    boolean enqueue(Message m, MessagePriority priority) {
+        if (priority == MessagePriority.CONTROL) {
+            controlCount.incrementAndGet();
+            control.offer(m);
+        } else {
+            if (!reserve()) {
+                return false;
+            }
+            data.offer(m);
+        }
+        recordDepth(size());
+        wakeOwner();
+        return true;
+    }
+
+    @Override
+    int enqueueAll(List<Message> messages, MessagePriority priority) {
+        int queued = 0;
+        for (Message m : messages) {
+            if (priority == MessagePriority.CONTROL) {
+                controlCount.incrementAndGet();
+                control.offer(m);
+            } else {
+                if (!reserve()) {
+                    break;
+                }
+                data.offer(m);
+            }
+            queued++;
+        }
+        if (queued > 0) {
+            recordDepth(size());
+            wakeOwner(); // Once for the batch
+        }
+        return queued;
+    }
+
+    private void wakeOwner() {
+        Thread parked = waiter;
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+
+    @Override
+    Message dequeue() throws InterruptedException {
+        Message m;
+        int spins = waitStrategy == WaitStrategy.SPIN_THEN_PARK ? SPINS : 0;
+        while ((m = next()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (waitStrategy == WaitStrategy.YIELD) {
+                Thread.yield();
+            } else if (spins > 0) {
+                spins--;
+            } else {
+                waiter = Thread.currentThread();
+                m = next(); // Re-check after announcing, a sender that queued before saw no waiter
+                if (m != null) {
+                    waiter = null;
+                    return m;
+                }
+                LockSupport.park(this);
+                waiter = null;
+            }
+        }
+        return m;
+    }
+
+    @Override
+    int poll(List<Message> into, int maxMessages) {
+        int count = 0;
+        Message m;
+        while (count < maxMessages && (m = next()) != null) {
+            into.add(m);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    int size() {
+        return Math.max(0, controlCount.get()) + Math.max(0, dataCount.get());
+    }
+
+    // Claims room in the data lane according to the overflow policy
+    private boolean reserve() {
+        long backoff = MIN_BACKOFF_NANOS;
+        while (true) {
+            int count = dataCount.get();
+            if (count < getCapacity()) {
+                if (dataCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            switch (getPolicy()) {
+                case DROP_OLDEST:
+                    Message oldest;
+                    synchronized (data) {
+                        oldest = data.poll();
+                    }
+                    if (oldest != null) {
+                        discard(oldest); // Its room is handed over, the count stays
+                        return true;
+                    }
+                    // Full but the head is not written yet, or the owner just took it
+                    Thread.yield();
+                    break;
+                case BLOCK:
+                    if (isClosed()) {
+                        return false; // The owner unregistered, the room will never be freed
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        countRejected();
+                        return false;
+                    }
+                    // Nobody wakes a blocked sender, back off and retry
+                    LockSupport.parkNanos(this, backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+                    break;
+                case DROP_NEWEST:
+                    countDropped();
+                    return false;
+                default:
+                    countRejected();
+                    return false;
+            }
+        }
+    }
+
+    // The head of the first non-empty lane, null if both look empty
+    private Message next() {
+        Message m = control.poll();
+        if (m != null) {
+            controlCount.decrementAndGet();
+            return m;
+        }
+        if (getPolicy() == OverflowPolicy.DROP_OLDEST) {
+            synchronized (data) {
+                m = data.poll();
+            }
+        } else {
+            m = data.poll();
+        }
+        if (m != null) {
+            dataCount.decrementAndGet();
+        }
+        return m;
+    }
+}
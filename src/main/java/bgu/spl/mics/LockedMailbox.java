@@ -0,0 +1,193 @@
+package bgu.spl.mics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Mailbox} whose two lanes are array deques guarded by a single lock.
+ * The owner and blocked senders wait on conditions of that lock.
+ */
+final class LockedMailbox extends Mailbox {
+
+    // Both lanes are guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Message> control = new ArrayDeque<>();
+    private final ArrayDeque<Message> data = new ArrayDeque<>();
+    // Messages dropped by DROP_OLDEST under lock, discarded by the sender after unlocking
+    private final ArrayDeque<Message> evicted = new ArrayDeque<>();
+    // Messages in both lanes, written under lock and read without it
+    private volatile int depth;
+
+    LockedMailbox(String owner, int capacity, OverflowPolicy policy, InFlightIndex index) {
+        super(owner, capacity, policy, index);
+    }
+
+    @Override
+    boolean enqueue(Message m, MessagePriority priority) {
+        boolean queued;
+        List<Message> dropped;
+        acquire();
+        try {
+            queued = add(m, priority);
+            if (queued) {
+                recordDepth(depth);
+                notEmpty.signal();
+            }
+            dropped = takeEvicted();
+        } finally {
+            lock.unlock();
+        }
+        discardAll(dropped);
+        return queued;
+    }
+
+    @Override
+    int enqueueAll(List<Message> messages, MessagePriority priority) {
+        int queued = 0;
+        List<Message> dropped;
+        acquire();
+        try {
+            for (Message m : messages) {
+                if (!add(m, priority)) {
+                    break;
+                }
+                queued++;
+            }
+            if (queued > 0) {
+                recordDepth(depth);
+                notEmpty.signal(); // A single consumer, it takes the whole batch once awake
+            }
+            dropped = takeEvicted();
+        } finally {
+            lock.unlock();
+        }
+        discardAll(dropped);
+        return queued;
+    }
+
+    // The messages evicted since the last call, null if none, called under lock
+    private List<Message> takeEvicted() {
+        if (evicted.isEmpty()) {
+            return null;
+        }
+        List<Message> dropped = new ArrayList<>(evicted);
+        evicted.clear();
+        return dropped;
+    }
+
+    private void discardAll(List<Message> dropped) {
+        if (dropped != null) {
+            for (Message m : dropped) {
+                discard(m);
+            }
+        }
+    }
+
+    @Override
+    void close() {
+        acquire();
+        try {
+            super.close();
+            notFull.signalAll(); // The blocked senders give up
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Applies the overflow policy and queues m, the caller holds the lock
+    private boolean add(Message m, MessagePriority priority) {
+        if (isClosed()) {
+            return false;
+        }
+        if (priority == MessagePriority.CONTROL) {
+            control.addLast(m);
+        } else {
+            while (data.size() >= getCapacity()) {
+                switch (getPolicy()) {
+                    case BLOCK:
+                        try {
+                            notFull.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt(); // Restore interrupted status
+                            countRejected();
+                            return false;
+                        }
+                        if (isClosed()) {
+                            return false; // The owner unregistered while this sender waited
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        evicted.addLast(data.pollFirst());
+                        depth--;
+                        break;
+                    case DROP_NEWEST:
+                        countDropped();
+                        return false;
+                    default:
+                        countRejected();
+                        return false;
+                }
+            }
+            data.addLast(m);
+        }
+        depth++;
+        return true;
+    }
+
+    @Override
+    Message dequeue() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (depth == 0) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    int poll(List<Message> into, int maxMessages) {
+        int count = 0;
+        acquire();
+        try {
+            while (count < maxMessages && depth > 0) {
+                into.add(next());
+                count++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    // Locks, counting the acquisitions that find the lock held
+    private void acquire() {
+        if (!lock.tryLock()) {
+            countContention();
+            lock.lock();
+        }
+    }
+
+    @Override
+    int size() {
+        return depth;
+    }
+
+    // Removes the head of the first non-empty lane, called under lock with depth > 0
+    private Message next() {
+        Message m = control.pollFirst();
+        if (m == null) {
+            m = data.pollFirst();
+            notFull.signal();
+        }
+        depth--;
+        return m;
+    }
+}
@@ -0,0 +1,257 @@
+package bgu.spl.mics;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A small asynchronous, level-gated logger shared by the message-bus, the
+ * micro-services and the application.
+ * <p>
+ * Callers check the level and, if it is enabled, format the message
+ * ({@code {}} placeholders are replaced by the arguments in order) and
+ * publish it into a bounded ring buffer. Formatting on the caller's thread
+ * prints the arguments as they were at the call, even if the caller changes
+ * them right after. A single background writer thread prints the records, so
+ * no caller ever takes the {@link PrintStream} lock. When a level is disabled
+ * a log call costs one volatile read and formats or allocates nothing, as
+ * long as the arguments themselves are already at hand (pass objects, not
+ * concatenated strings).
+ * <p>
+ * The level defaults to {@link Level#INFO} and can be set with
+ * {@code -Dbgu.spl.log.level=DEBUG} or {@link #setLevel(Level)}.
+ * Records of level {@link Level#WARN} and above go to {@code System.err}, the
+ * rest to {@code System.out}. Pending records are flushed when the JVM exits.
+ */
+public final class Logger {
+
+    /**
+     * Logging levels, in increasing severity. {@link #OFF} disables logging.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final int CAPACITY = 1 << 13; // Must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static volatile Level level = initialLevel();
+
+    // Ring buffer: producers claim a sequence number on tail, the writer thread advances head
+    private static final AtomicReferenceArray<Record> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head;
+    private static volatile boolean writerIdle;
+    private static final Thread writer = startWriter();
+
+    private Logger() {
+    }
+
+    /**
+     * @return true if records of level {@code l} are currently published.
+     */
+    public static boolean isEnabled(Level l) {
+        return l.ordinal() >= level.ordinal() && l != Level.OFF;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static void debug(String pattern) {
+        log(Level.DEBUG, pattern, null, null, null);
+    }
+
+    public static void debug(String pattern, Object arg) {
+        log(Level.DEBUG, pattern, arg, null, null);
+    }
+
+    public static void debug(String pattern, Object arg1, Object arg2) {
+        log(Level.DEBUG, pattern, arg1, arg2, null);
+    }
+
+    public static void debug(String pattern, Object arg1, Object arg2, Object arg3) {
+        log(Level.DEBUG, pattern, arg1, arg2, arg3);
+    }
+
+    public static void info(String pattern) {
+        log(Level.INFO, pattern, null, null, null);
+    }
+
+    public static void info(String pattern, Object arg) {
+        log(Level.INFO, pattern, arg, null, null);
+    }
+
+    public static void info(String pattern, Object arg1, Object arg2) {
+        log(Level.INFO, pattern, arg1, arg2, null);
+    }
+
+    public static void info(String pattern, Object arg1, Object arg2, Object arg3) {
+        log(Level.INFO, pattern, arg1, arg2, arg3);
+    }
+
+    public static void warn(String pattern) {
+        log(Level.WARN, pattern, null, null, null);
+    }
+
+    public static void warn(String pattern, Object arg) {
+        log(Level.WARN, pattern, arg, null, null);
+    }
+
+    public static void warn(String pattern, Object arg1, Object arg2) {
+        log(Level.WARN, pattern, arg1, arg2, null);
+    }
+
+    public static void error(String pattern) {
+        log(Level.ERROR, pattern, null, null, null);
+    }
+
+    /**
+     * Logs an error. A {@link Throwable} argument that has no matching
+     * placeholder in {@code pattern} gets its stack trace printed after the message.
+     */
+    public static void error(String pattern, Object arg) {
+        log(Level.ERROR, pattern, arg, null, null);
+    }
+
+    public static void error(String pattern, Object arg1, Object arg2) {
+        log(Level.ERROR, pattern, arg1, arg2, null);
+    }
+
+    /**
+     * Blocks until every record published so far has been written, or until
+     * {@code timeout} elapses.
+     */
+    public static void flush(long timeout, TimeUnit unit) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (head < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+    }
+
+    private static void log(Level l, String pattern, Object arg1, Object arg2, Object arg3) {
+        if (!isEnabled(l)) {
+            return;
+        }
+        Record record = format(l, pattern, arg1, arg2, arg3);
+        long sequence;
+        do {
+            sequence = tail.get();
+            while (sequence - head >= CAPACITY) {
+                // Buffer full: wait for the writer instead of losing the record
+                LockSupport.unpark(writer);
+                Thread.yield();
+                sequence = tail.get();
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        slots.set((int) (sequence & MASK), record);
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void drain() {
+        while (true) {
+            long position = head;
+            Record record = slots.get((int) (position & MASK));
+            if (record == null) {
+                if (tail.get() == position) {
+                    System.out.flush();
+                    writerIdle = true;
+                    if (tail.get() == position) { // Re-check after announcing we are idle
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                    writerIdle = false;
+                } else {
+                    Thread.yield(); // A producer claimed the slot but has not stored the record yet
+                }
+                continue;
+            }
+            slots.set((int) (position & MASK), null);
+            write(record);
+            head = position + 1;
+        }
+    }
+
+    private static Record format(Level l, String pattern, Object arg1, Object arg2, Object arg3) {
+        StringBuilder line = new StringBuilder(pattern.length() + 64);
+        line.append('[').append(l).append("] [").append(Thread.currentThread().getName()).append("] ");
+        Object[] args = {arg1, arg2, arg3};
+        Throwable thrown = null;
+        int next = 0;
+        int from = 0;
+        int at;
+        while ((at = pattern.indexOf("{}", from)) >= 0 && next < args.length) {
+            line.append(pattern, from, at);
+            appendArgument(line, args[next++]);
+            from = at + 2;
+        }
+        line.append(pattern, from, pattern.length());
+        for (; next < args.length; next++) {
+            if (args[next] instanceof Throwable) {
+                thrown = (Throwable) args[next];
+            }
+        }
+        return new Record(l, line.toString(), thrown);
+    }
+
+    private static void write(Record record) {
+        PrintStream out = record.level.ordinal() >= Level.WARN.ordinal() ? System.err : System.out;
+        out.println(record.line);
+        if (record.thrown != null) {
+            record.thrown.printStackTrace(out);
+        }
+    }
+
+    private static void appendArgument(StringBuilder line, Object arg) {
+        if (arg instanceof Class) {
+            line.append(((Class<?>) arg).getSimpleName());
+        } else if (arg instanceof MicroService) {
+            line.append(((MicroService) arg).getName());
+        } else {
+            line.append(arg);
+        }
+    }
+
+    private static Level initialLevel() {
+        String configured = System.getProperty("bgu.spl.log.level");
+        if (configured != null) {
+            try {
+                return Level.valueOf(configured.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown log level '" + configured + "', using INFO");
+            }
+        }
+        return Level.INFO;
+    }
+
+    private static Thread startWriter() {
+        Thread thread = new Thread(Logger::drain, "Logger writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1, TimeUnit.SECONDS), "Logger flush"));
+        return thread;
+    }
+
+    // A formatted log call waiting for the writer, with the Throwable whose stack trace follows it, if any
+    private static final class Record {
+        private final Level level;
+        private final String line;
+        private final Throwable thrown;
+
+        private Record(Level level, String line, Throwable thrown) {
+            this.level = level;
+            this.line = line;
+            this.thrown = thrown;
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package bgu.spl.mics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The message queue of a single registered micro-service.
+ * <p>
+ * Messages are queued in two lanes: {@link MessagePriority#CONTROL} messages
+ * are taken before any {@link MessagePriority#DATA} message, each lane is
+ * FIFO. The data lane holds at most {@code capacity} messages, what happens
+ * to a data message that arrives while it is full is decided by its
+ * {@link OverflowPolicy}. The control lane is unbounded, so a control message
+ * is never dropped, refused or blocked behind a backlog.
+ * <p>
+ * Events are queued inside an {@link Envelope} with their {@link Future}. When
+ * the owner takes an event, its Future moves to the mailbox's in-flight table
+ * (keyed by identity) until the owner completes it, so completion never
+ * touches shared state of other services, and Futures of events that are never
+ * completed are freed together with the mailbox. The bus's
+ * {@link InFlightIndex} records which mailbox holds each in-flight event for
+ * completions that do not name the owner.
+ * <p>
+ * An event whose Future is already failed when the owner reaches it (its
+ * deadline passed or the sender cancelled it) is skipped. An event evicted by
+ * {@link OverflowPolicy#DROP_OLDEST} has its Future failed with a
+ * {@link RejectedExecutionException}, like a refused one. When the owner
+ * unregisters, {@link #cancelAll()} fails the Futures of the events still
+ * queued or in flight, so their senders are not left waiting. From then on
+ * the mailbox is closed: it refuses messages, and an event refused because
+ * of it, or queued by a sender racing with the owner, has its Future
+ * cancelled the same way.
+ * <p>
+ * Conflatable broadcasts (see {@link #offerLatest}) are queued through a
+ * {@link Latest} slot per type: the slot takes the queue position of the
+ * oldest undelivered instance and the owner receives the newest one, so a
+ * lagging owner handles one instance per type however many it missed. The
+ * slot's queued flag tells senders whether it is still in the queue: the
+ * owner, an eviction or {@link #cancelAll()} clear it before taking the
+ * slot's broadcast, and a sender whose broadcast lands in a slot that is not
+ * queued any more queues it again.
+ * <p>
+ * One in {@value #LATENCY_SAMPLE_INTERVAL} messages is queued inside a
+ * {@link Timed} wrapper with its enqueue time, the owner records its wait in
+ * the mailbox's {@link LatencyHistogram} when it takes it. Sampling keeps the
+ * cost of the clock reads off most messages.
+ * <p>
+ * While the bus tracks quiescence (see {@link #setQuiescence}) the mailbox
+ * counts its outstanding messages: queued, or taken by the owner and not
+ * reported handled yet.
+ * <p>
+ * How the lanes are stored and how the owner waits is up to the
+ * {@link MailboxType implementation}, a mailbox always has a single consumer.
+ */
+abstract class Mailbox {
+
+    static final int LATENCY_SAMPLE_INTERVAL = 16;
+
+    private final String owner;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // Envelopes of events taken by the owner and not completed yet, guarded by itself
+    private final Map<Event<?>, Envelope> inFlight = new IdentityHashMap<>();
+    // Shared by the mailboxes of the bus, updated under the lock of inFlight
+    private final InFlightIndex index;
+    // Reused by drainTo, a mailbox has a single consumer
+    private final List<Message> drained = new ArrayList<>();
+    // The slot of each conflatable broadcast type sent to this mailbox
+    private final Map<Class<?>, Latest> latest = new ConcurrentHashMap<>();
+
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong contention = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    // Enqueue-to-dequeue latency of the sampled messages, recorded by the owner
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // Called after every queued message when the owner is run by a scheduler instead of its own thread
+    private volatile Runnable listener;
+    // Set when the bus tracks quiescence, then outstanding counts the messages queued or taken and not handled
+    private volatile Quiescence quiescence;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // Set by cancelAll, before the last messages are removed
+    private volatile boolean closed;
+
+    Mailbox(String owner, int capacity, OverflowPolicy policy, InFlightIndex index) {
+        this.owner = owner;
+        this.index = index;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Creates a mailbox of the given implementation.
+     * <p>
+     * @param waitStrategy how the owner waits for messages, used by {@link MailboxType#LOCK_FREE} only.
+     */
+    static Mailbox create(String owner, int capacity, OverflowPolicy policy, MailboxType type, WaitStrategy waitStrategy,
+            InFlightIndex index) {
+        return type == MailboxType.LOCK_FREE
+                ? new LockFreeMailbox(owner, capacity, policy, waitStrategy, index)
+                : new LockedMailbox(owner, capacity, policy, index);
+    }
+
+    /**
+     * Adds {@code m} to the lane of {@code priority}, a full data lane applies the overflow policy.
+     * <p>
+     * @return true if {@code m} was queued, false if it was dropped or rejected.
+     */
+    final boolean offer(Message m, MessagePriority priority) {
+        if (ThreadLocalRandom.current().nextInt(LATENCY_SAMPLE_INTERVAL) == 0) {
+            m = new Timed(m, System.nanoTime());
+        }
+        track(1); // Before the owner can take it
+        if (!enqueue(m, priority)) {
+            handled(1);
+            if (closed) {
+                cancel(m, unregistered());
+            }
+            return false;
+        }
+        if (closed) {
+            cancel(m, unregistered()); // Queued after cancelAll took the last messages, nobody will take it
+        }
+        Runnable onMessage = listener;
+        if (onMessage != null) {
+            onMessage.run();
+        }
+        return true;
+    }
+
+    /**
+     * Queues {@code messages} in order like {@link #offer}, with one lock
+     * acquisition and one listener call for the whole batch. Stops at the
+     * first message the {@link OverflowPolicy} refuses.
+     * <p>
+     * @return the number of messages queued, the first ones of the list.
+     */
+    final int offerAll(List<Message> messages, MessagePriority priority) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            if (random.nextInt(LATENCY_SAMPLE_INTERVAL) == 0) {
+                if (now == 0) {
+                    now = System.nanoTime(); // The batch is queued at once, one clock read is enough
+                }
+                messages.set(i, new Timed(messages.get(i), now));
+            }
+        }
+        track(messages.size());
+        int queued = enqueueAll(messages, priority);
+        if (queued < messages.size()) {
+            handled(messages.size() - queued);
+        }
+        if (closed) {
+            CancellationException cause = unregistered();
+            for (Message m : messages) {
+                cancel(m, cause);
+            }
+        }
+        Runnable onMessage = listener;
+        if (queued > 0 && onMessage != null) {
+            onMessage.run();
+        }
+        return queued;
+    }
+
+    /**
+     * Queues {@code b} like {@link #offer}, unless an older broadcast of the
+     * same class is still queued: then {@code b} replaces it in its position.
+     * <p>
+     * @return true if {@code b} was queued or replaced an older instance,
+     *         false if it was dropped or rejected.
+     */
+    final boolean offerLatest(Broadcast b, MessagePriority priority) {
+        Latest slot = latest.computeIfAbsent(b.getClass(), type -> new Latest());
+        if (slot.message.getAndSet(b) != null) {
+            conflated.incrementAndGet(); // Not delivered yet, the owner gets b instead
+        }
+        // The sender that sets the flag queues the slot, the others leave their broadcast in it.
+        // Broadcasts are always set before the flag is tried, so none is left in a slot nobody queues.
+        boolean queued = true;
+        while (slot.message.get() != null && slot.queued.compareAndSet(false, true)) {
+            Message newest = slot.message.get();
+            if (newest == null) {
+                slot.queued.set(false); // Taken since, look again for a newer one
+                continue;
+            }
+            if (offer(slot, priority)) {
+                return true;
+            }
+            slot.queued.set(false);
+            if (slot.message.compareAndSet(newest, null)) {
+                queued = queued && newest != b;
+            } else {
+                // Replaced while refused: counted dropped by the refusal, not conflated too. The newer one is tried again
+                conflated.decrementAndGet();
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Takes the next message, control messages first, waiting until one is available.
+     */
+    final Message take() throws InterruptedException {
+        Message m;
+        while ((m = open(dequeue())) == null) {
+            handled(1); // Skipped an event that expired or was cancelled while queued
+        }
+        return m;
+    }
+
+    /**
+     * Moves up to {@code maxMessages} queued messages into {@code batch} without
+     * waiting, control messages first.
+     */
+    final int drainTo(Collection<? super Message> batch, int maxMessages) {
+        poll(drained, maxMessages);
+        int count = 0;
+        for (Message m : drained) {
+            Message opened = open(m);
+            if (opened != null) {
+                batch.add(opened);
+                count++;
+            }
+        }
+        if (count < drained.size()) {
+            handled(drained.size() - count);
+        }
+        drained.clear();
+        return count;
+    }
+
+    /**
+     * Removes and returns the Future of event {@code e} if the owner took it
+     * and has not completed it yet.
+     */
+    @SuppressWarnings("unchecked")
+    final <T> Future<T> release(Event<T> e) {
+        Envelope envelope;
+        synchronized (inFlight) {
+            envelope = inFlight.remove(e);
+            if (envelope != null) {
+                index.remove(e, this);
+            }
+        }
+        if (envelope == null) {
+            return null;
+        }
+        envelope.cancelTimeout();
+        return (Future<T>) envelope.future;
+    }
+
+    /**
+     * Fails the Future of {@code envelope} with a {@link TimeoutException}
+     * and forgets the event if the owner took it. Called by the timer when
+     * the event's deadline passes, an envelope still queued is skipped when
+     * the owner reaches it.
+     * <p>
+     * @return true if the Future was pending and is now failed.
+     */
+    final boolean expire(Envelope envelope) {
+        synchronized (inFlight) {
+            if (inFlight.get(envelope.event) == envelope) {
+                inFlight.remove(envelope.event);
+                index.remove(envelope.event, this);
+            }
+        }
+        expired.incrementAndGet(); // Before failing, so the statistics include it once the sender sees the failure
+        if (!envelope.future.fail(new TimeoutException("Event not completed by " + owner + " before its deadline"))) {
+            expired.decrementAndGet(); // Completed or cancelled meanwhile
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes every queued message and fails the Futures of the queued and
+     * in-flight events with a {@link CancellationException}. Called by the
+     * owner's thread when it unregisters, after the mailbox was removed from
+     * the bus. Closes the mailbox first, which wakes the senders blocked on
+     * its full data lane.
+     */
+    final void cancelAll() {
+        close();
+        poll(drained, Integer.MAX_VALUE);
+        CancellationException cause = unregistered();
+        for (Message m : drained) {
+            cancel(m, cause);
+        }
+        drained.clear();
+        List<Envelope> pending;
+        synchronized (inFlight) {
+            pending = new ArrayList<>(inFlight.values());
+            for (Envelope envelope : pending) {
+                index.remove(envelope.event, this);
+            }
+            inFlight.clear();
+        }
+        for (Envelope envelope : pending) {
+            cancel(envelope, cause);
+        }
+    }
+
+    /**
+     * Marks the mailbox closed, from then on {@link #enqueue} refuses
+     * messages. Implementations whose senders wait for room override it to
+     * wake them.
+     */
+    void close() {
+        closed = true;
+    }
+
+    final boolean isClosed() {
+        return closed;
+    }
+
+    private CancellationException unregistered() {
+        return new CancellationException(owner + " unregistered before completing the event");
+    }
+
+    // Fails the Future of an event that will never be completed, empties a slot that will never be taken
+    private void cancel(Message m, CancellationException cause) {
+        if (m instanceof Timed) {
+            m = ((Timed) m).message;
+        }
+        if (m instanceof Envelope) {
+            Envelope envelope = (Envelope) m;
+            envelope.cancelTimeout();
+            if (envelope.future.fail(cause)) {
+                cancelled.incrementAndGet();
+            }
+        } else if (m instanceof Latest) {
+            ((Latest) m).take();
+        }
+    }
+
+    /**
+     * Queues {@code m}, the {@link OverflowPolicy} is applied by the implementation.
+     */
+    abstract boolean enqueue(Message m, MessagePriority priority);
+
+    /**
+     * Queues {@code messages} in order until one is refused.
+     * <p>
+     * @return the number of messages queued.
+     */
+    abstract int enqueueAll(List<Message> messages, MessagePriority priority);
+
+    /**
+     * Removes the next message, waiting until one is available.
+     */
+    abstract Message dequeue() throws InterruptedException;
+
+    /**
+     * Removes up to {@code maxMessages} messages into {@code into} without waiting.
+     */
+    abstract int poll(List<Message> into, int maxMessages);
+
+    /**
+     * @return the number of queued messages, may be slightly stale.
+     */
+    abstract int size();
+
+    final void recordDepth(int depth) {
+        if (depth > peakDepth.get()) {
+            peakDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    final void countDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Drops a queued message to make room: a dropped slot loses its
+     * broadcast, the Future of a dropped event is failed. Called without the
+     * lock of the implementation, failing a Future runs its continuations.
+     */
+    final void discard(Message m) {
+        handled(1);
+        if (m instanceof Timed) {
+            m = ((Timed) m).message;
+        }
+        if (m instanceof Latest) {
+            if (((Latest) m).take() == null) {
+                return; // Delivered through an earlier queuing of the slot, nothing is lost
+            }
+        } else if (m instanceof Envelope) {
+            Envelope envelope = (Envelope) m;
+            envelope.cancelTimeout();
+            envelope.future.fail(new RejectedExecutionException("Dropped from the full mailbox of " + owner));
+        }
+        countDropped();
+    }
+
+    final void countRejected() {
+        rejected.incrementAndGet();
+    }
+
+    // Called by implementations when a sender or the owner found the mailbox lock held
+    final void countContention() {
+        contention.incrementAndGet();
+    }
+
+    // Unwraps an envelope and keeps its Future until the event is completed, null for an event that is no longer awaited
+    private Message open(Message m) {
+        if (m instanceof Timed) {
+            Timed timed = (Timed) m;
+            latency.record(System.nanoTime() - timed.enqueuedAt);
+            m = timed.message;
+        }
+        if (m instanceof Envelope) {
+            Envelope envelope = (Envelope) m;
+            if (envelope.future.isDone()) {
+                envelope.cancelTimeout();
+                return null;
+            }
+            TraceSpan span = TraceSpan.of(envelope.event);
+            if (span != null) {
+                span.dequeued();
+            }
+            synchronized (inFlight) {
+                inFlight.put(envelope.event, envelope);
+                index.put(envelope.event, this);
+            }
+            return envelope.event;
+        }
+        if (m instanceof Latest) {
+            return ((Latest) m).take(); // null if a sender queued the slot again after it was emptied, skipped
+        }
+        return m;
+    }
+
+    /**
+     * Sets the action run by the sending thread after each message is queued, null for none.
+     */
+    final void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts counting the outstanding messages, before any is queued, and
+     * signals {@code quiescence} whenever their count drops to zero.
+     */
+    final void setQuiescence(Quiescence quiescence) {
+        this.quiescence = quiescence;
+    }
+
+    /**
+     * Reports that the owner handled {@code messages} of the messages it took.
+     */
+    final void handled(int messages) {
+        Quiescence tracker = quiescence;
+        if (tracker != null && outstanding.addAndGet(-messages) == 0) {
+            tracker.idle();
+        }
+    }
+
+    /**
+     * @return true if no message is queued or being handled, always true when quiescence is not tracked.
+     */
+    final boolean isIdle() {
+        return outstanding.get() == 0;
+    }
+
+    // Counts messages about to be queued, then the send, see Quiescence
+    private void track(int messages) {
+        Quiescence tracker = quiescence;
+        if (tracker != null) {
+            outstanding.addAndGet(messages);
+            tracker.sent();
+        }
+    }
+
+    final int getCapacity() {
+        return capacity;
+    }
+
+    final String getOwner() {
+        return owner;
+    }
+
+    final OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    final MailboxStatistics snapshot() {
+        return new MailboxStatistics(owner, capacity, policy, size(), peakDepth.get(), dropped.get(), rejected.get(), conflated.get(),
+                contention.get(), expired.get(), cancelled.get(), latency.snapshot());
+    }
+
+    // A sampled message and the time it was queued
+    private static final class Timed implements Message {
+        private final Message message;
+        private final long enqueuedAt;
+
+        private Timed(Message message, long enqueuedAt) {
+            this.message = message;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    // Stands in the queue for the newest undelivered broadcast of a conflatable type
+    private static final class Latest implements Message {
+        private final AtomicReference<Message> message = new AtomicReference<>();
+        // Set by the sender that queues the slot, cleared when the slot leaves the queue
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        // Removes the slot's broadcast once the slot left the queue, a later broadcast queues it again
+        private Message take() {
+            queued.set(false);
+            return message.getAndSet(null);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package bgu.spl.mics;
+
+/**
+ * An immutable snapshot of the counters of a single micro-service mailbox.
+ */
+public class MailboxStatistics {
+
+    private final String owner;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final int depth;
+    private final int peakDepth;
+    private final long dropped;
+    private final long rejected;
+    private final long conflated;
+    private final long lockContention;
+    private final long expired;
+    private final long cancelled;
+    private final LatencyHistogram latency;
+
+    public MailboxStatistics(String owner, int capacity, OverflowPolicy policy, int depth, int peakDepth, long dropped, long rejected,
+            long conflated, long lockContention, long expired, long cancelled, LatencyHistogram latency) {
+        this.owner = owner;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.depth = depth;
+        this.peakDepth = peakDepth;
+        this.dropped = dropped;
+        this.rejected = rejected;
+        this.conflated = conflated;
+        this.lockContention = lockContention;
+        this.expired = expired;
+        this.cancelled = cancelled;
+        this.latency = latency;
+    }
+
+    /**
+     * @return the name of the micro-service owning the mailbox.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of messages queued when the snapshot was taken.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the largest number of messages that were ever queued at once.
+     */
+    public int getPeakDepth() {
+        return peakDepth;
+    }
+
+    /**
+     * @return the number of messages discarded by {@link OverflowPolicy#DROP_OLDEST}
+     *         or {@link OverflowPolicy#DROP_NEWEST}.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of messages refused by {@link OverflowPolicy#REJECT}, or
+     *         abandoned by a blocked sender that was interrupted.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of conflatable broadcasts that replaced an undelivered
+     *         older instance instead of being queued, see
+     *         {@link MessageBusImpl#setConflatable(Class, boolean)}.
+     */
+    public long getConflated() {
+        return conflated;
+    }
+
+    /**
+     * @return the number of times a sender or the owner found the lock of a
+     *         {@link MailboxType#LOCKED} mailbox held, 0 for lock-free mailboxes.
+     */
+    public long getLockContention() {
+        return lockContention;
+    }
+
+    /**
+     * @return the number of events whose deadline passed before the owner
+     *         completed them, see {@link MessageBusImpl#sendEvent(Event, long, java.util.concurrent.TimeUnit)}.
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return the number of events still queued or in flight when the owner
+     *         unregistered, whose Futures were cancelled.
+     */
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the time sampled messages waited in the mailbox, from being
+     *         queued to being taken by the owner.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return owner + ": depth " + depth + ", peak " + peakDepth + ", capacity " + capacity
+                + " (" + policy + "), dropped " + dropped + ", rejected " + rejected + ", conflated " + conflated
+                + ", lock contention " + lockContention + ", expired " + expired + ", cancelled " + cancelled
+                + ", latency " + latency;
+    }
+}
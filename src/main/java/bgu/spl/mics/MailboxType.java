@@ -0,0 +1,18 @@
+package bgu.spl.mics;
+
+/**
+ * The implementation of a micro-service mailbox, see
+ * {@link MessageBusImpl#configureMailbox(String, int, OverflowPolicy, MailboxType, WaitStrategy)}.
+ */
+public enum MailboxType {
+    /** Two array deques under one lock, the owner waits on a condition. The default. */
+    LOCKED,
+    /**
+     * Lock-free multi-producer/single-consumer queues, the owner waits
+     * according to a {@link WaitStrategy}. A full {@link OverflowPolicy#BLOCK}
+     * mailbox makes senders back off and retry instead of waiting on a
+     * condition, and {@link OverflowPolicy#DROP_OLDEST} drops the excess when
+     * the owner takes its next message.
+     */
+    LOCK_FREE
+}
@@ -0,0 +1,63 @@
+package bgu.spl.mics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Release and acquire fences for memory shared with other processes, where
+ * volatile fields cannot be used (see {@link SharedMemoryChannel}).
+ * <p>
+ * Uses the fences of {@code VarHandle} when the JDK has them (9 and newer),
+ * and those of {@code sun.misc.Unsafe} on Java 8. Both are looked up
+ * reflectively so the sources still build for Java 8, and called through
+ * constant method handles, which the JIT inlines to the plain fence.
+ */
+final class MemoryFences {
+
+    private static final MethodHandle RELEASE = find("releaseFence", "storeFence");
+    private static final MethodHandle ACQUIRE = find("acquireFence", "loadFence");
+
+    private MemoryFences() {
+    }
+
+    /**
+     * Keeps the reads and writes before the fence from moving after the writes that follow it.
+     */
+    static void release() {
+        try {
+            RELEASE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e); // The fences throw nothing
+        }
+    }
+
+    /**
+     * Keeps the reads before the fence from moving after the reads and writes that follow it.
+     */
+    static void acquire() {
+        try {
+            ACQUIRE.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle find(String varHandleFence, String unsafeFence) {
+        MethodType type = MethodType.methodType(void.class);
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName("java.lang.invoke.VarHandle"), varHandleFence, type);
+        } catch (ReflectiveOperationException e) {
+            // Java 8, fall back to Unsafe
+        }
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeClass, unsafeFence, type).bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
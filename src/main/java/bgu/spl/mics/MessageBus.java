@@ -1,5 +1,10 @@
 package bgu.spl.mics;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * The message-bus is a shared object used for communication between
  * micro-services.
@@ -29,6 +34,33 @@ public interface MessageBus {
      */
     void subscribeBroadcast(Class<? extends Broadcast> type, MicroService m);
 
+    /**
+     * Subscribes {@code m} to receive {@link Event}s whose class is
+     * {@code type} or a subclass or implementation of it. An event goes to
+     * the subscribers of its exact class if there are any, otherwise to the
+     * subscribers of its nearest hierarchically subscribed supertype.
+     * The default implementation does not support it.
+     * <p>
+     * @param type The base type to subscribe to, a class or an interface.
+     * @param m    The subscribing micro-service.
+     */
+    default void subscribeEventHierarchy(Class<? extends Event<?>> type, MicroService m) {
+        throw new UnsupportedOperationException("Hierarchical subscriptions are not supported");
+    }
+
+    /**
+     * Subscribes {@code m} to receive {@link Broadcast}s whose class is
+     * {@code type} or a subclass or implementation of it. A micro-service
+     * subscribed to several matching types receives a broadcast once.
+     * The default implementation does not support it.
+     * <p>
+     * @param type The base type to subscribe to, a class or an interface.
+     * @param m    The subscribing micro-service.
+     */
+    default void subscribeBroadcastHierarchy(Class<? extends Broadcast> type, MicroService m) {
+        throw new UnsupportedOperationException("Hierarchical subscriptions are not supported");
+    }
+
     /**
      * Notifies the MessageBus that the event {@code e} is completed and its
      * result was {@code result}.
@@ -41,6 +73,21 @@ public interface MessageBus {
      */
     <T> void complete(Event<T> e, T result);
 
+    /**
+     * Same as {@link #complete(bgu.spl.mics.Event, java.lang.Object)} for an
+     * event that {@code m} took from its own queue, which lets the message-bus
+     * find the {@link Future} without searching for it.
+     * The default implementation ignores {@code m}.
+     * <p>
+     * @param <T>    The type of the result expected by the completed event.
+     * @param m      The micro-service that received {@code e}.
+     * @param e      The completed event.
+     * @param result The resolved result of the completed event.
+     */
+    default <T> void complete(MicroService m, Event<T> e, T result) {
+        complete(e, result);
+    }
+
     /**
      * Adds the {@link Broadcast} {@code b} to the message queues of all the
      * micro-services subscribed to {@code b.getClass()}.
@@ -61,6 +108,38 @@ public interface MessageBus {
      */
     <T> Future<T> sendEvent(Event<T> e);
 
+    /**
+     * Sends {@code e} like {@link #sendEvent(Event)} with a deadline: if it is
+     * not completed within {@code timeout}, its Future is failed with a
+     * {@link java.util.concurrent.TimeoutException}. Implementations without
+     * deadlines send the event without one.
+     * <p>
+     * @param e     	The event to add to the queue.
+     * @param timeout 	The time the sender waits for the result at most.
+     * @param unit  	The unit of {@code timeout}.
+     * @return the Future of the event, null if no micro-service has subscribed to {@code e.getClass()}.
+     */
+    default <T> Future<T> sendEvent(Event<T> e, long timeout, TimeUnit unit) {
+        return sendEvent(e);
+    }
+
+    /**
+     * Sends every event of {@code events} as {@link #sendEvent} does. An
+     * implementation may queue the events of each target micro-service together.
+     * <p>
+     * @param <T>    	The type of the result expected by the events.
+     * @param events 	The events to send, in order.
+     * @return the {@link Future} of each event in the order of {@code events},
+     * 	       null for an event no micro-service has subscribed to.
+     */
+    default <T> List<Future<T>> sendEvents(Collection<? extends Event<T>> events) {
+        List<Future<T>> futures = new ArrayList<>(events.size());
+        for (Event<T> e : events) {
+            futures.add(sendEvent(e));
+        }
+        return futures;
+    }
+
     /**
      * Allocates a message-queue for the {@link MicroService} {@code m}.
      * <p>
@@ -94,5 +173,29 @@ public interface MessageBus {
      *                              to became available.
      */
     Message awaitMessage(MicroService m) throws InterruptedException;
-    
+
+    /**
+     * Batch version of {@link #awaitMessage(bgu.spl.mics.MicroService)}: waits
+     * until at least one message is available in {@code m}'s queue, then moves
+     * it and up to {@code maxMessages - 1} further queued messages, in queue
+     * order, into {@code batch} without waiting for more.
+     * This lets a micro-service handle a whole backlog for a single wakeup.
+     * The default implementation takes a single message.
+     * <p>
+     * @param m           The micro-service requesting to take messages from its queue.
+     * @param batch       The collection the messages are added to.
+     * @param maxMessages The maximal number of messages to take, at least 1.
+     * @return The number of messages added to {@code batch}.
+     * @throws IllegalArgumentException if {@code maxMessages} is less than 1.
+     * @throws InterruptedException if interrupted while waiting for a message
+     *                              to became available.
+     */
+    default int awaitMessages(MicroService m, Collection<? super Message> batch, int maxMessages) throws InterruptedException {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be positive: " + maxMessages);
+        }
+        batch.add(awaitMessage(m));
+        return 1;
+    }
+
 }
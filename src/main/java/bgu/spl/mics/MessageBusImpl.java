@@ -1,46 +1,128 @@
 package bgu.spl.mics;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * The {@link MessageBusImpl class is the implementation of the MessageBus interface.
- * Write your implementation here!
- * Only one public method (in addition to getters which can be public solely for unit testing) may be added to this class
- * All other methods and members you add the class must be private.
+ * <p>
+ * Each registered micro-service has a {@link Mailbox}. Events are routed to
+ * one subscriber by the {@link RoutingStrategy} of their type and travel
+ * with their {@link Future}, broadcasts are queued in every subscriber's
+ * mailbox. Besides the {@link MessageBus} methods, the public API configures
+ * mailboxes, priorities, deadlines, conflation and routing, and exposes the
+ * bus statistics through {@link #getMetrics()} and JMX.
  */
 public class MessageBusImpl implements MessageBus {
+	private static final Class<?>[] NO_TYPES = new Class<?>[0];
+	// Statistics of unregistered microservices kept for getMailboxStatistics, the oldest are forgotten first
+	private static final int MAX_RETIRED_MAILBOXES = 4096;
+
 	private static class messageBusHolder{
-		private static MessageBus instance = new MessageBusImpl();
+		private static MessageBus instance = new MessageBusImpl(true);
 	}
 
     // Maps a microservice to its queue of messages
 	// Robi changed to public for tests
-    public final Map<MicroService, BlockingQueue<Message>> microServiceQueues;
+    public final Map<MicroService, Mailbox> microServiceQueues;
+
+    // Maps an event type to its subscribing microservices, picked by the type's RoutingStrategy without locking
+	public final Map<Class<? extends Event<?>>, SubscriberGroup> eventSubscribers;
+
+    // Maps a broadcast type to the list of subscribing microservices.
+	// The lists are copy-on-write so sendBroadcast iterates an immutable snapshot without locking,
+	// subscribe/unregister pay for the copy instead.
+	public final Map<Class<? extends Broadcast>, CopyOnWriteArrayList<MicroService>> broadcastSubscribers;
+
+	// Hierarchical subscriptions, keyed by the subscribed base type, they also receive its subtypes
+	private final Map<Class<?>, SubscriberGroup> hierarchyEventSubscribers;
+	private final Map<Class<?>, CopyOnWriteArrayList<MicroService>> hierarchyBroadcastSubscribers;
+	// Per concrete message class, the hierarchically subscribed types it matches, nearest first.
+	// Replaced when a new base type is subscribed.
+	private volatile Map<Class<?>, Class<?>[]> matchingBaseTypes;
+
+	// Reverse index: the message types each microservice subscribed to, so unregister only visits those
+	private final Map<MicroService, Set<Class<? extends Message>>> subscriptions;
+
+	// Mailbox capacity and overflow policy per service name, services without an entry get the default
+	private final Map<String, MailboxConfig> mailboxConfigs;
+	private volatile MailboxConfig defaultMailboxConfig;
 
-    // Maps an event type to the list of subscribing microservices
-	public final Map<Class<? extends Event<?>>, Queue<MicroService>> eventSubscribers;
+	// Final statistics of the mailboxes of unregistered microservices
+	private final Queue<MailboxStatistics> retiredMailboxes;
+	private final AtomicInteger retiredCount;
 
-    // Maps a broadcast type to the list of subscribing microservices
-	public final Map<Class<? extends Broadcast>, List<MicroService>> broadcastSubscribers;
+	// Message types that take the control lane of the mailboxes, all others are data
+	private final Map<Class<? extends Message>, MessagePriority> priorities;
 
-	// New field: Maps events to their corresponding Future objects
-	public final Map<Event<?>, Future<?>> eventFutures;
+	// Default deadline in nanoseconds per event type, types without an entry have none
+	private final Map<Class<?>, Long> eventTimeouts;
 
+	// Broadcast types whose newest instance replaces an undelivered older one in each mailbox
+	private final Set<Class<? extends Broadcast>> conflatableTypes;
 
-	// Private constructor
-    private MessageBusImpl() {
+	// Sent and completed counts per message class, read by getMetrics
+	private final Map<Class<?>, MessageCounters> messageCounters;
+	// Shared by all subscriber groups
+	private final LongAdder subscriberLockContention;
+	// The mailbox of each event taken and not completed yet, for complete(Event, Object)
+	private final InFlightIndex inFlight;
+	// Stage latencies of the traced events sent through this bus
+	private final Tracer tracer;
+	// Set by trackQuiescence, null while the mailboxes do not count their outstanding messages
+	private volatile Quiescence quiescence;
+
+	// Passed to the routing strategies, created once so sendEvent does not allocate it
+	private final ToIntFunction<MicroService> load = this::loadOf;
+
+	// Private constructor, only the singleton is registered with JMX
+    private MessageBusImpl(boolean managed) {
 		microServiceQueues = new ConcurrentHashMap<>();
         eventSubscribers = new ConcurrentHashMap<>();
         broadcastSubscribers = new ConcurrentHashMap<>();
-		eventFutures = new ConcurrentHashMap<>();
+		subscriptions = new ConcurrentHashMap<>();
+		mailboxConfigs = new ConcurrentHashMap<>();
+		defaultMailboxConfig = new MailboxConfig(Integer.MAX_VALUE, OverflowPolicy.BLOCK, MailboxType.LOCKED, WaitStrategy.PARK);
+		retiredMailboxes = new ConcurrentLinkedQueue<>();
+		retiredCount = new AtomicInteger();
+		priorities = new ConcurrentHashMap<>();
+		conflatableTypes = ConcurrentHashMap.newKeySet();
+		eventTimeouts = new ConcurrentHashMap<>();
+		hierarchyEventSubscribers = new ConcurrentHashMap<>();
+		hierarchyBroadcastSubscribers = new ConcurrentHashMap<>();
+		matchingBaseTypes = new ConcurrentHashMap<>();
+		messageCounters = new ConcurrentHashMap<>();
+		subscriberLockContention = new LongAdder();
+		inFlight = new InFlightIndex();
+		tracer = new Tracer();
+		if (managed) {
+			registerMXBean();
+		}
 	};
 
 	// Public method to get the singleton instance
@@ -48,45 +130,88 @@ public class MessageBusImpl implements MessageBus {
        return messageBusHolder.instance;
     }
 
+	/**
+	 * Creates a bus independent of the singleton, for running several
+	 * simulations in one JVM. Micro-services use it when it is passed to
+	 * {@link MicroService#MicroService(String, MessageBus)}. Its metrics are
+	 * available through {@link #getMetrics()} only, not through JMX.
+	 */
+	public static MessageBusImpl newInstance() {
+		return new MessageBusImpl(false);
+	}
+
 	/*
 	 * pre: type,m != null
 	 * post: (messageBus.microServiceQueues.get(microService)  != null
-	 * inv: if eventSubscribers.get(type) = null -> eventSubscribers.add(type, new ArrayList<>()), else eventSubscribers.get(type).add(m); 
+	 * inv: if eventSubscribers.get(type) = null -> eventSubscribers.add(type, new SubscriberGroup()), else eventSubscribers.get(type).add(m); 
 	 */
 	@Override
 	public <T> void subscribeEvent(Class<? extends Event<T>> type, MicroService m) {
-        eventSubscribers.putIfAbsent(type, new LinkedList<>());
-		synchronized(eventSubscribers.get(type)){
-        	eventSubscribers.get(type).add(m);
-		}
+		eventSubscribers.computeIfAbsent(type, t -> new SubscriberGroup(subscriberLockContention)).add(m);
+		subscriptionsOf(m).add(type);
     }
 
 	/*
 	 * pre: type,m != null
 	 * post: (messageBus.microServiceQueues.get(microService)  != null
-	 * inv: if broadcastSubscribers.get(type) = null -> broadcastSubscribers.add(type, new ArrayList<>()), else broadcastSubscribers.get(type).add(m); 
+	 * inv: if broadcastSubscribers.get(type) = null -> broadcastSubscribers.add(type, new CopyOnWriteArrayList<>()), else broadcastSubscribers.get(type).add(m); 
 	 */
 	@Override
 	public void subscribeBroadcast(Class<? extends Broadcast> type, MicroService m) {
-		 broadcastSubscribers.putIfAbsent(type, new ArrayList<>());
-		 synchronized(broadcastSubscribers.get(type)){
-         broadcastSubscribers.get(type).add(m);
-		 System.out.println("MicroService " + m.getName() + " subscribed to broadcast " + type.getSimpleName());
+		broadcastSubscribers.computeIfAbsent(type, t -> new CopyOnWriteArrayList<>()).addIfAbsent(m);
+		subscriptionsOf(m).add(type);
+		Logger.debug("MicroService {} subscribed to broadcast {}", m, type);
+	}
 
-		 }
+	@Override
+	public void subscribeEventHierarchy(Class<? extends Event<?>> type, MicroService m) {
+		SubscriberGroup group = hierarchyEventSubscribers.get(type);
+		if (group == null) {
+			group = hierarchyEventSubscribers.computeIfAbsent(type, t -> new SubscriberGroup(subscriberLockContention));
+			matchingBaseTypes = new ConcurrentHashMap<>(); // Cached matches do not know the new base type
+		}
+		group.add(m);
+		subscriptionsOf(m).add(type);
+	}
 
+	@Override
+	public void subscribeBroadcastHierarchy(Class<? extends Broadcast> type, MicroService m) {
+		CopyOnWriteArrayList<MicroService> list = hierarchyBroadcastSubscribers.get(type);
+		if (list == null) {
+			list = hierarchyBroadcastSubscribers.computeIfAbsent(type, t -> new CopyOnWriteArrayList<>());
+			matchingBaseTypes = new ConcurrentHashMap<>(); // Cached matches do not know the new base type
+		}
+		list.addIfAbsent(m);
+		subscriptionsOf(m).add(type);
+		Logger.debug("MicroService {} subscribed to broadcast {} and its subtypes", m, type);
 	}
 
+	/*
+	 * Without knowing who handled e, its mailbox is looked up in the in-flight index.
+	 * Microservices complete through complete(MicroService, Event, Object), which goes to their own mailbox.
+	 */
 	@Override
 	public <T> void complete(Event<T> e, T result) {
-		 // Resolve the Future associated with the event
-		 @SuppressWarnings("unchecked")
-		 Future<T> future = (Future<T>) eventFutures.remove(e); // Remove the mapping after resolving
-		 if (future != null) {
-			 future.resolve(result); // Set the result of the Future
-		 }
+		Mailbox mailbox = inFlight.get(e);
+		Future<T> future = mailbox == null ? null : mailbox.release(e);
+		if (future != null) {
+			future.resolve(result); // Set the result of the Future
+			countersOf(e.getClass()).completed.increment();
+		}
 	 }
 
+	@Override
+	public <T> void complete(MicroService m, Event<T> e, T result) {
+		Mailbox mailbox = microServiceQueues.get(m);
+		Future<T> future = mailbox == null ? null : mailbox.release(e);
+		if (future != null) {
+			future.resolve(result); // The Future travelled with the event, no shared lookup
+			countersOf(e.getClass()).completed.increment();
+		} else {
+			complete(e, result); // e was taken from another microservice's queue
+		}
+	}
+
 	 /*
 	* @pre b!=null
  	* @post microServiceQueues
@@ -94,20 +219,38 @@ public class MessageBusImpl implements MessageBus {
 	*/
 	@Override
 	public void sendBroadcast(Broadcast b) {
-		 List<MicroService> subscribers;
-        synchronized (this) {
-            subscribers = broadcastSubscribers.getOrDefault(b.getClass(), Collections.emptyList());
-        }
-        // Add the broadcast message to each subscriber's queue
-		synchronized(subscribers){
-        	for (MicroService microService : subscribers) {
-            	BlockingQueue<Message> queue = microServiceQueues.get(microService);
-            	if (queue != null) {
-                	queue.add(b);
-					System.out.println("Broadcast " + b.getClass().getSimpleName() + " sent to " + microService.getName());
-
+		// The iterator works on the snapshot taken here, concurrent (un)subscribes do not block the fan-out
+		List<MicroService> subscribers = broadcastSubscribers.get(b.getClass());
+		Class<?>[] baseTypes = baseTypesOf(b.getClass());
+		MessagePriority priority = priorityOf(b);
+		boolean conflate = !conflatableTypes.isEmpty() && conflatableTypes.contains(b.getClass());
+		countersOf(b.getClass()).sent.increment();
+		if (baseTypes.length == 0) {
+			if (subscribers != null) {
+				for (MicroService microService : subscribers) {
+					deliver(b, microService, priority, conflate);
+				}
+			}
+			return;
+		}
+		// Subscribers of several matching types get the broadcast once
+		Set<MicroService> delivered = Collections.newSetFromMap(new IdentityHashMap<>());
+		if (subscribers != null) {
+			for (MicroService microService : subscribers) {
+				if (delivered.add(microService)) {
+					deliver(b, microService, priority, conflate);
+				}
+			}
+		}
+		for (Class<?> baseType : baseTypes) {
+			List<MicroService> baseSubscribers = hierarchyBroadcastSubscribers.get(baseType);
+			if (baseSubscribers != null) {
+				for (MicroService microService : baseSubscribers) {
+					if (delivered.add(microService)) {
+						deliver(b, microService, priority, conflate);
+					}
 				}
-        	}
+			}
 		}
     }
 	
@@ -115,33 +258,136 @@ public class MessageBusImpl implements MessageBus {
 	/*
 	* @pre e!=null
  	* @post The event was sent to an sunscriber
-	* @inv Round robin pattern
+	* @inv Round robin pattern, unless another RoutingStrategy was set for the event type
 	*/
 	@Override
 	public <T> Future<T> sendEvent(Event<T> e) {
-		Queue<MicroService> subscribers = eventSubscribers.getOrDefault(e.getClass(), null);
+		return send(e, timeoutOf(e));
+	}
 
-    	if (subscribers == null || subscribers.isEmpty()) {
-        	return null; // No subscribers for this event
-    	}
+	/**
+	 * Sends {@code e} like {@link #sendEvent(Event)}, but fails its Future with
+	 * a {@link java.util.concurrent.TimeoutException} if it is not completed
+	 * within {@code timeout}, whatever the default of its type (see
+	 * {@link #setEventTimeout}). The deadline is checked by a timer with a
+	 * resolution of {@value TimerWheel#TICK_MILLIS} ms.
+	 */
+	@Override
+	public <T> Future<T> sendEvent(Event<T> e, long timeout, TimeUnit unit) {
+		return send(e, unit.toNanos(timeout));
+	}
 
-    	MicroService microService;
-    	synchronized (subscribers) { // Synchronize only on the queue for round-robin
-        	microService = subscribers.poll(); // Get the next subscriber
-        	subscribers.add(microService); // Add it back to the queue
+	private <T> Future<T> send(Event<T> e, long timeoutNanos) {
+		MicroService microService = route(e, load);
+    	if (microService == null) {
+			abandonTrace(e);
+        	return null; // No subscribers for this event, or all of them have unregistered
     	}
 
-    	BlockingQueue<Message> queue = microServiceQueues.get(microService);
-    	if (queue != null) {
+    	Mailbox mailbox = microServiceQueues.get(microService);
+    	if (mailbox != null) {
         	Future<T> future = new Future<>(); // Create a Future for the event
-        	eventFutures.put(e, future); // Store the mapping between the event and its Future
-        	queue.add(e); // Add the event to the microservice's queue
-			System.out.println("Event " + e.getClass().getSimpleName() + " sent to " + microService.getName());
+			countersOf(e.getClass()).sent.increment();
+			Envelope envelope = envelope(e, future);
+        	if (mailbox.offer(envelope, priorityOf(e))) { // The Future travels with the event in the microservice's queue
+				scheduleExpiry(mailbox, envelope, timeoutNanos);
+				Logger.debug("Event {} sent to {}", e.getClass(), microService);
+			} else {
+				// Refused, dropped as the newest, or the blocked sender was interrupted, nobody will complete it
+				future.fail(new RejectedExecutionException("Mailbox of " + microService.getName() + " is full"));
+				Logger.debug("Event {} to {} was not queued, mailbox is full", e.getClass(), microService);
+			}
         	return future; // Return the Future to the sender
     	}
 
+		abandonTrace(e);
     	return null;
 	}
+
+	/**
+	 * Routes each event like {@link #sendEvent}, then queues the events of each
+	 * target micro-service with one {@link Mailbox#offerAll} call, so a batch
+	 * takes the lock of a mailbox and wakes its owner once. The load-aware
+	 * strategies see the events already assigned in the batch.
+	 */
+	@Override
+	public <T> List<Future<T>> sendEvents(Collection<? extends Event<T>> events) {
+		List<Future<T>> futures = new ArrayList<>(events.size());
+		Map<MicroService, Batch> batches = new LinkedHashMap<>();
+		ToIntFunction<MicroService> batchLoad = m -> {
+			Batch batch = batches.get(m);
+			return loadOf(m) + (batch == null ? 0 : batch.envelopes.size());
+		};
+		for (Event<T> e : events) {
+			MicroService microService = route(e, batchLoad);
+			Mailbox mailbox = microService == null ? null : microServiceQueues.get(microService);
+			if (mailbox == null) {
+				abandonTrace(e);
+				futures.add(null); // No subscribers for this event, or all of them have unregistered
+				continue;
+			}
+			Future<T> future = new Future<>();
+			countersOf(e.getClass()).sent.increment();
+			MessagePriority priority = priorityOf(e);
+			Batch batch = batches.get(microService);
+			if (batch == null || batch.priority != priority) {
+				if (batch != null) {
+					offerBatch(microService, batch); // Keep the order when the priority changes within a batch
+				}
+				batch = new Batch(mailbox, priority);
+				batches.put(microService, batch);
+			}
+			Envelope envelope = envelope(e, future);
+			batch.envelopes.add(envelope);
+			batch.sent.add(envelope);
+			futures.add(future);
+		}
+		for (Map.Entry<MicroService, Batch> entry : batches.entrySet()) {
+			offerBatch(entry.getKey(), entry.getValue());
+		}
+		return futures;
+	}
+
+	// Wraps e for its mailbox, stamping the enqueue time of a traced event and abandoning its chain if it fails
+	private Envelope envelope(Event<?> e, Future<?> future) {
+		TraceSpan span = TraceSpan.of(e);
+		if (span != null) {
+			span.enqueued(tracer);
+			long traceId = span.getTraceId();
+			if (traceId != 0) {
+				future.onComplete(result -> {
+					if (future.getFailure() != null) {
+						tracer.abandon(traceId);
+					}
+				});
+			}
+		}
+		return new Envelope(e, future);
+	}
+
+	// A traced event nobody will handle ends its chain
+	private void abandonTrace(Event<?> e) {
+		TraceSpan span = TraceSpan.of(e);
+		if (span != null) {
+			tracer.abandon(span.getTraceId());
+		}
+	}
+
+	private void offerBatch(MicroService microService, Batch batch) {
+		int queued = batch.mailbox.offerAll(batch.envelopes, batch.priority);
+		Logger.debug("{} events sent to {}", queued, microService);
+		for (int i = 0; i < queued; i++) {
+			Envelope envelope = batch.sent.get(i);
+			scheduleExpiry(batch.mailbox, envelope, timeoutOf(envelope.event));
+		}
+		if (queued < batch.sent.size()) {
+			RejectedExecutionException rejected = new RejectedExecutionException("Mailbox of " + microService.getName() + " is full");
+			for (int i = queued; i < batch.sent.size(); i++) {
+				batch.sent.get(i).future.fail(rejected);
+			}
+			Logger.debug("{} events to {} were not queued, mailbox is full", batch.sent.size() - queued, microService);
+		}
+	}
 	
 	/*
 	* @pre m!=null
@@ -150,8 +396,12 @@ public class MessageBusImpl implements MessageBus {
 	*/
 	@Override
 	public void register(MicroService m) {
-		microServiceQueues.putIfAbsent(m, new LinkedBlockingQueue<>());
-
+		MailboxConfig config = mailboxConfigs.getOrDefault(m.getName(), defaultMailboxConfig);
+		microServiceQueues.computeIfAbsent(m, service -> {
+			Mailbox mailbox = Mailbox.create(service.getName(), config.capacity, config.policy, config.type, config.waitStrategy, inFlight);
+			mailbox.setQuiescence(quiescence);
+			return mailbox;
+		});
 	}
 	/*
 	* @pre m!=null
@@ -160,33 +410,510 @@ public class MessageBusImpl implements MessageBus {
 	*/
 	@Override
 	public void unregister(MicroService m) {
-		microServiceQueues.remove(m);
+		Mailbox mailbox = microServiceQueues.remove(m);
+		if (mailbox != null) {
+			mailbox.cancelAll(); // The senders of the events m will never complete stop waiting
+			retiredMailboxes.add(mailbox.snapshot());
+			// Services that come and go must not grow the history forever
+			if (retiredCount.incrementAndGet() > MAX_RETIRED_MAILBOXES && retiredMailboxes.poll() != null) {
+				retiredCount.decrementAndGet();
+			}
+		}
 
-		eventSubscribers.values().forEach(queue -> {
-			synchronized (queue) {
-				queue.remove(m);
+		Set<Class<? extends Message>> types = subscriptions.remove(m);
+		if (types == null) {
+			return; // Never subscribed to anything
+		}
+		for (Class<? extends Message> type : types) {
+			SubscriberGroup group = eventSubscribers.get(type);
+			if (group != null) {
+				group.remove(m);
 			}
-		});
-	
-		broadcastSubscribers.values().forEach(list -> {
-			synchronized (list) {
+			List<MicroService> list = broadcastSubscribers.get(type);
+			if (list != null) {
 				list.remove(m);
 			}
-		});
+			group = hierarchyEventSubscribers.get(type);
+			if (group != null) {
+				group.remove(m);
+			}
+			list = hierarchyBroadcastSubscribers.get(type);
+			if (list != null) {
+				list.remove(m);
+			}
+		}
 	}
 
 
 	@Override
 	public Message awaitMessage(MicroService m) throws InterruptedException {
-		BlockingQueue<Message> queue = microServiceQueues.get(m);
-        if (queue == null) {
+		Mailbox mailbox = microServiceQueues.get(m);
+        if (mailbox == null) {
             throw new IllegalStateException("Microservice is not registered.");
         }
-		System.out.println("Awaiting message for MicroService " + m.getName());
-		return queue.take(); // Blocking call until a message is available
+		Logger.debug("Awaiting message for MicroService {}", m);
+		return mailbox.take(); // Blocking call until a message is available
     }
-	
 
-	
+	@Override
+	public int awaitMessages(MicroService m, Collection<? super Message> batch, int maxMessages) throws InterruptedException {
+		if (maxMessages < 1) {
+			throw new IllegalArgumentException("maxMessages must be positive: " + maxMessages);
+		}
+		Mailbox mailbox = microServiceQueues.get(m);
+        if (mailbox == null) {
+            throw new IllegalStateException("Microservice is not registered.");
+        }
+		Logger.debug("Awaiting up to {} messages for MicroService {}", maxMessages, m);
+		batch.add(mailbox.take()); // Block only for the first message
+		return 1 + mailbox.drainTo(batch, maxMessages - 1);
+	}
+
+	/**
+	 * Moves up to {@code maxMessages} queued messages of {@code m} into
+	 * {@code batch} without waiting, used when {@code m} is run by a
+	 * {@link MicroServiceScheduler} rather than blocking on its own thread.
+	 * <p>
+	 * @return the number of messages added, 0 if the mailbox is empty or {@code m} is not registered.
+	 */
+	int pollMessages(MicroService m, Collection<? super Message> batch, int maxMessages) {
+		Mailbox mailbox = microServiceQueues.get(m);
+		return mailbox == null ? 0 : mailbox.drainTo(batch, maxMessages);
+	}
+
+	/**
+	 * Reports that {@code m} handled {@code count} of the messages it took,
+	 * called by the event loops of {@link MicroService} and
+	 * {@link MicroServiceScheduler} after each batch.
+	 */
+	void messagesHandled(MicroService m, int count) {
+		Mailbox mailbox = count == 0 ? null : microServiceQueues.get(m);
+		if (mailbox != null) {
+			mailbox.handled(count);
+		}
+	}
+
+	/**
+	 * Makes every message queued for {@code m} run {@code onMessage} on the
+	 * sending thread, null stops it.
+	 */
+	void setMessageListener(MicroService m, Runnable onMessage) {
+		Mailbox mailbox = microServiceQueues.get(m);
+		if (mailbox == null) {
+			throw new IllegalStateException("Microservice is not registered.");
+		}
+		mailbox.setListener(onMessage);
+	}
+
+	/**
+	 * @return true if messages are waiting in the mailbox of {@code m}.
+	 */
+	boolean hasMessages(MicroService m) {
+		Mailbox mailbox = microServiceQueues.get(m);
+		return mailbox != null && mailbox.size() > 0;
+	}
+
+	/**
+	 * Sets how the events of {@code type} are divided between its subscribers,
+	 * by default they take turns ({@link RoutingStrategy#roundRobin()}).
+	 * May be called before or after the subscriptions. Events that implement
+	 * {@link KeyedEvent} hand their key to the strategy.
+	 * <p>
+	 * @param type     the event type to route.
+	 * @param strategy a strategy instance used for this type only.
+	 */
+	public void setRoutingStrategy(Class<? extends Event<?>> type, RoutingStrategy strategy) {
+		eventSubscribers.computeIfAbsent(type, t -> new SubscriberGroup(subscriberLockContention)).setStrategy(strategy);
+	}
+
+	/**
+	 * Gives the events of {@code type} a deadline: the Future of an event that
+	 * is not completed within {@code timeout} of being sent is failed with a
+	 * {@link java.util.concurrent.TimeoutException}, and the event is
+	 * forgotten by its handler's mailbox (skipped if it was not taken yet).
+	 * This bounds the memory held by events whose handler never completes
+	 * them. By default events have no deadline.
+	 * <p>
+	 * @param type    the exact event class, subclasses are not affected.
+	 * @param timeout the deadline after sending, 0 or less to remove it.
+	 * @param unit    the unit of {@code timeout}.
+	 */
+	public void setEventTimeout(Class<? extends Event<?>> type, long timeout, TimeUnit unit) {
+		if (timeout > 0) {
+			eventTimeouts.put(type, unit.toNanos(timeout));
+		} else {
+			eventTimeouts.remove(type);
+		}
+	}
+
+	/**
+	 * Sets the mailbox lane of the messages of {@code type}. Messages of
+	 * {@link MessagePriority#CONTROL} types are handled before every queued
+	 * data message and are never dropped by a full mailbox, so only use it for
+	 * messages whose order relative to the data messages does not matter.
+	 * By default every type is {@link MessagePriority#DATA}.
+	 * <p>
+	 * @param type     the event or broadcast type.
+	 * @param priority the lane its messages take.
+	 */
+	public void setMessagePriority(Class<? extends Message> type, MessagePriority priority) {
+		priorities.put(type, priority);
+	}
+
+	/**
+	 * Declares whether the broadcasts of {@code type} are conflatable. A
+	 * conflatable broadcast sent to a microservice that has not taken the
+	 * previous one yet replaces it in the mailbox instead of being queued after
+	 * it, so a lagging microservice only handles the newest instance. Use it
+	 * for broadcasts that carry the latest state, such as the current tick,
+	 * and whose subscribers do not need every intermediate instance.
+	 * By default no type is conflatable.
+	 * <p>
+	 * @param type        the exact broadcast class, subclasses are not affected.
+	 * @param conflatable true to conflate its instances, false to queue every one.
+	 */
+	public void setConflatable(Class<? extends Broadcast> type, boolean conflatable) {
+		if (conflatable) {
+			conflatableTypes.add(type);
+		} else {
+			conflatableTypes.remove(type);
+		}
+	}
+
+	/**
+	 * Sets the mailbox capacity and overflow policy of the microservices named
+	 * {@code serviceName}, or of every microservice without its own setting
+	 * when {@code serviceName} is null. Applies to microservices registered
+	 * after the call. By default mailboxes are unbounded.
+	 * <p>
+	 * @param serviceName the {@link MicroService#getName()} to configure, null for the default.
+	 * @param capacity    the maximal number of queued messages, at least 1.
+	 * @param policy      what to do with a message sent to a full mailbox.
+	 */
+	public void configureMailbox(String serviceName, int capacity, OverflowPolicy policy) {
+		configureMailbox(serviceName, capacity, policy, MailboxType.LOCKED, WaitStrategy.PARK);
+	}
+
+	/**
+	 * Same as {@link #configureMailbox(String, int, OverflowPolicy)}, also
+	 * choosing the mailbox implementation and, for {@link MailboxType#LOCK_FREE}
+	 * mailboxes, how their microservice waits for messages.
+	 * <p>
+	 * @param serviceName  the {@link MicroService#getName()} to configure, null for the default.
+	 * @param capacity     the maximal number of queued messages, at least 1.
+	 * @param policy       what to do with a message sent to a full mailbox.
+	 * @param type         the mailbox implementation.
+	 * @param waitStrategy how an empty lock-free mailbox is waited on, ignored by locked ones.
+	 */
+	public void configureMailbox(String serviceName, int capacity, OverflowPolicy policy, MailboxType type, WaitStrategy waitStrategy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Mailbox capacity must be positive: " + capacity);
+		}
+		MailboxConfig config = new MailboxConfig(capacity, policy, type, waitStrategy);
+		if (serviceName == null) {
+			defaultMailboxConfig = config;
+		} else {
+			mailboxConfigs.put(serviceName, config);
+		}
+	}
+
+	/**
+	 * @return a snapshot of the mailbox counters of every microservice that is
+	 *         or was registered, unregistered ones with their final values
+	 *         (the latest {@value #MAX_RETIRED_MAILBOXES} of them).
+	 */
+	public List<MailboxStatistics> getMailboxStatistics() {
+		List<MailboxStatistics> statistics = new ArrayList<>(retiredMailboxes);
+		microServiceQueues.values().forEach(mailbox -> statistics.add(mailbox.snapshot()));
+		return statistics;
+	}
+
+	/**
+	 * @return a snapshot of the bus counters: sent and completed messages per
+	 *         type, the statistics of every mailbox including their latency
+	 *         histograms, and the lock contention. The same values are exposed
+	 *         through JMX, see {@link MessageBusMXBean}.
+	 */
+	public MessageBusMetrics getMetrics() {
+		Map<String, Long> sent = new TreeMap<>();
+		Map<String, Long> completed = new TreeMap<>();
+		Map<String, Long> expired = new TreeMap<>();
+		messageCounters.forEach((type, counters) -> {
+			sent.put(type.getName(), counters.sent.sum());
+			long completions = counters.completed.sum();
+			if (completions > 0) {
+				completed.put(type.getName(), completions);
+			}
+			long expirations = counters.expired.sum();
+			if (expirations > 0) {
+				expired.put(type.getName(), expirations);
+			}
+		});
+		List<MailboxStatistics> mailboxes = getMailboxStatistics();
+		LatencyHistogram latency = new LatencyHistogram();
+		mailboxes.forEach(statistics -> latency.add(statistics.getLatency()));
+		return new MessageBusMetrics(sent, completed, expired, mailboxes, latency, subscriberLockContention.sum());
+	}
+
+	/**
+	 * Makes the mailboxes count their outstanding messages, so that
+	 * {@link #awaitQuiescence} can tell when every micro-service handled all
+	 * of its messages, including those sent while handling others. Call it
+	 * before the micro-services register, the mailboxes of those already
+	 * registered are not tracked. Only the messages taken by the event loops
+	 * of {@link MicroService} and {@link MicroServiceScheduler} are reported
+	 * handled, not those taken with {@link #awaitMessage}.
+	 */
+	public synchronized void trackQuiescence() {
+		if (quiescence == null) {
+			quiescence = new Quiescence();
+		}
+	}
+
+	/**
+	 * Waits until no message is queued for, or being handled by, a registered
+	 * micro-service, see {@link #trackQuiescence()}. The waiting thread must
+	 * not be one of them with messages taken.
+	 * <p>
+	 * @return false if messages were still outstanding after {@code timeout}.
+	 * @throws IllegalStateException if quiescence is not tracked.
+	 */
+	public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+		Quiescence tracker = quiescence;
+		if (tracker == null) {
+			throw new IllegalStateException("Quiescence is not tracked, call trackQuiescence first.");
+		}
+		return tracker.await(() -> isQuiescent(tracker), unit.toNanos(timeout));
+	}
+
+	// Trusted only if nothing was sent during the scan, see Quiescence
+	private boolean isQuiescent(Quiescence tracker) {
+		long sent = tracker.getSent();
+		for (Mailbox mailbox : microServiceQueues.values()) {
+			if (!mailbox.isIdle()) {
+				return false;
+			}
+		}
+		return tracker.getSent() == sent;
+	}
+
+	/**
+	 * @return the stage latencies of the {@link TracedEvent}s sent through this bus.
+	 */
+	public Tracer getTracer() {
+		return tracer;
+	}
+
+	private void deliver(Broadcast b, MicroService microService, MessagePriority priority, boolean conflate) {
+		Mailbox mailbox = microServiceQueues.get(microService);
+		if (mailbox != null && (conflate ? mailbox.offerLatest(b, priority) : mailbox.offer(b, priority))) {
+			Logger.debug("Broadcast {} sent to {}", b.getClass(), microService);
+		}
+	}
+
+	// The subscriber of the event's type that receives it, else one of its nearest subscribed supertype
+	private MicroService route(Event<?> e, ToIntFunction<MicroService> load) {
+		Object key = e instanceof KeyedEvent ? ((KeyedEvent<?>) e).getRoutingKey() : null;
+		MicroService microService = pick(eventSubscribers.get(e.getClass()), load, key);
+		if (microService == null) {
+			// No subscriber of the exact type, try the nearest subscribed supertype
+			for (Class<?> baseType : baseTypesOf(e.getClass())) {
+				microService = pick(hierarchyEventSubscribers.get(baseType), load, key);
+				if (microService != null) {
+					break;
+				}
+			}
+		}
+		return microService;
+	}
+
+	// Round-robin turn unless the type routes by load, no lock
+	private static MicroService pick(SubscriberGroup group, ToIntFunction<MicroService> load, Object key) {
+		return group == null ? null : group.next(load, key);
+	}
+
+	// The hierarchically subscribed types matching a concrete class, resolved once per class
+	private Class<?>[] baseTypesOf(Class<?> type) {
+		if (hierarchyEventSubscribers.isEmpty() && hierarchyBroadcastSubscribers.isEmpty()) {
+			return NO_TYPES; // Nobody subscribed hierarchically, skip the lookup
+		}
+		return matchingBaseTypes.computeIfAbsent(type, this::resolveBaseTypes);
+	}
+
+	// Walks the supertypes of type breadth-first, so nearer supertypes come first
+	private Class<?>[] resolveBaseTypes(Class<?> type) {
+		List<Class<?>> matches = new ArrayList<>();
+		Set<Class<?>> visited = new HashSet<>();
+		Deque<Class<?>> pending = new ArrayDeque<>();
+		pending.add(type);
+		while (!pending.isEmpty()) {
+			Class<?> current = pending.poll();
+			if (!visited.add(current)) {
+				continue;
+			}
+			if (hierarchyEventSubscribers.containsKey(current) || hierarchyBroadcastSubscribers.containsKey(current)) {
+				matches.add(current);
+			}
+			if (current.getSuperclass() != null) {
+				pending.add(current.getSuperclass());
+			}
+			pending.addAll(Arrays.asList(current.getInterfaces()));
+		}
+		return matches.toArray(NO_TYPES);
+	}
 
+	private long timeoutOf(Event<?> e) {
+		if (eventTimeouts.isEmpty()) {
+			return 0; // No deadlines configured, skip the lookup
+		}
+		Long timeout = eventTimeouts.get(e.getClass());
+		return timeout == null ? 0 : timeout;
+	}
+
+	// Arms the deadline of a queued event, a non-positive timeout means none
+	private void scheduleExpiry(Mailbox mailbox, Envelope envelope, long timeoutNanos) {
+		if (timeoutNanos <= 0) {
+			return;
+		}
+		envelope.timeout = TimerWheel.getInstance().schedule(() -> {
+			LongAdder expired = countersOf(envelope.event.getClass()).expired;
+			expired.increment(); // Counted first, like in the mailbox
+			if (mailbox.expire(envelope)) {
+				Logger.debug("Event {} sent to {} expired", envelope.event.getClass(), mailbox.getOwner());
+			} else {
+				expired.decrement();
+			}
+		}, timeoutNanos, TimeUnit.NANOSECONDS);
+		if (envelope.future.isDone()) {
+			envelope.cancelTimeout(); // Completed before the timeout was published
+		}
+	}
+
+	private MessagePriority priorityOf(Message m) {
+		return priorities.getOrDefault(m.getClass(), MessagePriority.DATA);
+	}
+
+	// The load a RoutingStrategy sees: queued messages plus the work the service reports as pending
+	private int loadOf(MicroService m) {
+		Mailbox mailbox = microServiceQueues.get(m);
+		return (mailbox == null ? 0 : mailbox.size()) + m.getPendingWork();
+	}
+
+	private Set<Class<? extends Message>> subscriptionsOf(MicroService m) {
+		return subscriptions.computeIfAbsent(m, service -> ConcurrentHashMap.newKeySet());
+	}
+
+	private MessageCounters countersOf(Class<?> type) {
+		MessageCounters counters = messageCounters.get(type);
+		return counters != null ? counters : messageCounters.computeIfAbsent(type, t -> new MessageCounters());
+	}
+
+	private void registerMXBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new StandardMBean(new MXBean(), MessageBusMXBean.class, true), new ObjectName(MessageBusMXBean.OBJECT_NAME));
+		} catch (JMException | RuntimeException e) {
+			Logger.warn("The message bus metrics are not available through JMX: {}", e.getMessage());
+		}
+	}
+
+	// The events of one sendEvents call queued together in one mailbox
+	private static class Batch {
+		private final Mailbox mailbox;
+		private final MessagePriority priority;
+		private final List<Message> envelopes = new ArrayList<>(); // Handed to offerAll, which may wrap them
+		private final List<Envelope> sent = new ArrayList<>();
+
+		private Batch(Mailbox mailbox, MessagePriority priority) {
+			this.mailbox = mailbox;
+			this.priority = priority;
+		}
+	}
+
+	private static class MessageCounters {
+		private final LongAdder sent = new LongAdder();
+		private final LongAdder completed = new LongAdder();
+		private final LongAdder expired = new LongAdder();
+	}
+
+	// Reads a fresh snapshot for every attribute
+	private class MXBean implements MessageBusMXBean {
+		@Override
+		public Map<String, Long> getSentCounts() {
+			return getMetrics().getSentCounts();
+		}
+
+		@Override
+		public Map<String, Long> getCompletedCounts() {
+			return getMetrics().getCompletedCounts();
+		}
+
+		@Override
+		public Map<String, Long> getExpiredCounts() {
+			return getMetrics().getExpiredCounts();
+		}
+
+		@Override
+		public Map<String, Integer> getQueueDepths() {
+			Map<String, Integer> depths = new TreeMap<>();
+			microServiceQueues.values().forEach(mailbox -> depths.put(mailbox.getOwner(), mailbox.size()));
+			return depths;
+		}
+
+		@Override
+		public Map<String, Integer> getPeakQueueDepths() {
+			Map<String, Integer> depths = new TreeMap<>();
+			microServiceQueues.values().forEach(mailbox -> depths.put(mailbox.getOwner(), mailbox.snapshot().getPeakDepth()));
+			return depths;
+		}
+
+		@Override
+		public long getLatencySampleCount() {
+			return getMetrics().getLatency().getCount();
+		}
+
+		@Override
+		public double getLatencyMeanMicros() {
+			return getMetrics().getLatency().getMeanNanos() / 1e3;
+		}
+
+		@Override
+		public double getLatencyP50Micros() {
+			return getMetrics().getLatency().getPercentileNanos(50) / 1e3;
+		}
+
+		@Override
+		public double getLatencyP99Micros() {
+			return getMetrics().getLatency().getPercentileNanos(99) / 1e3;
+		}
+
+		@Override
+		public double getLatencyMaxMicros() {
+			return getMetrics().getLatency().getMaxNanos() / 1e3;
+		}
+
+		@Override
+		public long getSubscriberLockContention() {
+			return subscriberLockContention.sum();
+		}
+
+		@Override
+		public long getMailboxLockContention() {
+			return getMetrics().getMailboxLockContention();
+		}
+	}
+
+	private static class MailboxConfig {
+		private final int capacity;
+		private final OverflowPolicy policy;
+		private final MailboxType type;
+		private final WaitStrategy waitStrategy;
+
+		private MailboxConfig(int capacity, OverflowPolicy policy, MailboxType type, WaitStrategy waitStrategy) {
+			this.capacity = capacity;
+			this.policy = policy;
+			this.type = type;
+			this.waitStrategy = waitStrategy;
+		}
+	}
 }
@@ -0,0 +1,58 @@
+package bgu.spl.mics;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link MessageBusImpl}, registered with the
+ * platform MBean server under {@value #OBJECT_NAME}, e.g. for JConsole.
+ * Every attribute is computed from a fresh {@link MessageBusMetrics} snapshot.
+ */
+public interface MessageBusMXBean {
+
+    String OBJECT_NAME = "bgu.spl.mics:type=MessageBus";
+
+    /**
+     * @return the number of events and broadcasts sent per message class.
+     */
+    Map<String, Long> getSentCounts();
+
+    /**
+     * @return the number of completed events per event class.
+     */
+    Map<String, Long> getCompletedCounts();
+
+    /**
+     * @return the number of events per event class whose deadline passed before they were completed.
+     */
+    Map<String, Long> getExpiredCounts();
+
+    /**
+     * @return the number of queued messages per registered micro-service.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * @return the largest number of queued messages per registered micro-service.
+     */
+    Map<String, Integer> getPeakQueueDepths();
+
+    long getLatencySampleCount();
+
+    double getLatencyMeanMicros();
+
+    double getLatencyP50Micros();
+
+    double getLatencyP99Micros();
+
+    double getLatencyMaxMicros();
+
+    /**
+     * @return the number of event (un)subscriptions that waited for the lock of their subscriber group.
+     */
+    long getSubscriberLockContention();
+
+    /**
+     * @return the number of times the lock of a {@link MailboxType#LOCKED} mailbox was found held.
+     */
+    long getMailboxLockContention();
+}
@@ -0,0 +1,90 @@
+package bgu.spl.mics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the counters of the {@link MessageBusImpl}, see
+ * {@link MessageBusImpl#getMetrics()}.
+ * <p>
+ * Counters are cumulative since the bus was created, so the rate of a counter
+ * is the difference between two snapshots.
+ */
+public class MessageBusMetrics {
+
+    private final Map<String, Long> sent;
+    private final Map<String, Long> completed;
+    private final Map<String, Long> expired;
+    private final List<MailboxStatistics> mailboxes;
+    private final LatencyHistogram latency;
+    private final long subscriberLockContention;
+    private final long mailboxLockContention;
+
+    MessageBusMetrics(Map<String, Long> sent, Map<String, Long> completed, Map<String, Long> expired, List<MailboxStatistics> mailboxes,
+            LatencyHistogram latency, long subscriberLockContention) {
+        this.sent = Collections.unmodifiableMap(sent);
+        this.completed = Collections.unmodifiableMap(completed);
+        this.expired = Collections.unmodifiableMap(expired);
+        this.mailboxes = Collections.unmodifiableList(mailboxes);
+        this.latency = latency;
+        this.subscriberLockContention = subscriberLockContention;
+        long contention = 0;
+        for (MailboxStatistics statistics : mailboxes) {
+            contention += statistics.getLockContention();
+        }
+        this.mailboxLockContention = contention;
+    }
+
+    /**
+     * @return the number of events and broadcasts sent, by message class name.
+     *         Events without a subscriber are not counted.
+     */
+    public Map<String, Long> getSentCounts() {
+        return sent;
+    }
+
+    /**
+     * @return the number of completed events, by event class name.
+     */
+    public Map<String, Long> getCompletedCounts() {
+        return completed;
+    }
+
+    /**
+     * @return the number of events whose deadline passed before they were
+     *         completed, by event class name, see {@link MessageBusImpl#setEventTimeout}.
+     */
+    public Map<String, Long> getExpiredCounts() {
+        return expired;
+    }
+
+    /**
+     * @return the statistics of every mailbox, as {@link MessageBusImpl#getMailboxStatistics()}.
+     */
+    public List<MailboxStatistics> getMailboxes() {
+        return mailboxes;
+    }
+
+    /**
+     * @return the enqueue-to-dequeue latency of the sampled messages of all mailboxes.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getSubscriberLockContention() {
+        return subscriberLockContention;
+    }
+
+    public long getMailboxLockContention() {
+        return mailboxLockContention;
+    }
+
+    @Override
+    public String toString() {
+        return "sent " + sent + ", completed " + completed + ", expired " + expired + ", latency " + latency
+                + ", subscriber lock contention " + subscriberLockContention
+                + ", mailbox lock contention " + mailboxLockContention;
+    }
+}
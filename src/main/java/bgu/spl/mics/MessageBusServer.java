@@ -0,0 +1,338 @@
+package bgu.spl.mics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets micro-services of other processes on the same host use a local
+ * {@link MessageBusImpl}, through {@link RemoteMessageBus}.
+ * <p>
+ * The server listens on a TCP port of the loopback interface only, or serves
+ * one client through a {@link SharedMemoryChannel}. Each
+ * micro-service a client registers is represented in the local bus by a proxy
+ * of the same name: the proxy subscribes, sends and completes for it, and a
+ * thread per proxy forwards the messages queued for it over the connection.
+ * Events sent by a client get their Future from the local bus, and its
+ * outcome is sent back once it is resolved. When a client disconnects its
+ * proxies are unregistered, which cancels the events they were holding.
+ * See {@link MessageCodec} for the frames.
+ */
+public final class MessageBusServer implements Closeable {
+
+    private final MessageBusImpl messageBus;
+    private final ServerSocket serverSocket; // Null when serving a shared memory channel
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final MessageCodec codec = new MessageCodec();
+
+    private MessageBusServer(MessageBusImpl messageBus, ServerSocket serverSocket) {
+        this.messageBus = messageBus;
+        this.serverSocket = serverSocket;
+    }
+
+    /**
+     * Starts accepting connections on a daemon thread.
+     * <p>
+     * @param messageBus the bus the remote micro-services join.
+     * @param port       the loopback port to listen on, 0 for any free port (see {@link #getPort()}).
+     */
+    public static MessageBusServer start(MessageBusImpl messageBus, int port) throws IOException {
+        MessageBusServer server = new MessageBusServer(messageBus, new ServerSocket(port, 50, InetAddress.getLoopbackAddress()));
+        Thread acceptor = new Thread(server::accept, "MessageBusServer " + server.getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+
+    /**
+     * Serves the client that {@link SharedMemoryChannel#open opens} {@code channel}, on a daemon thread.
+     * Closing the server closes the channel.
+     */
+    public static MessageBusServer serve(MessageBusImpl messageBus, SharedMemoryChannel channel) {
+        MessageBusServer server = new MessageBusServer(messageBus, null);
+        server.open(new BufferedInputStream(channel.getInputStream()), new BufferedOutputStream(channel.getOutputStream()),
+                channel, "shared memory");
+        return server;
+    }
+
+    /**
+     * @return the port listened on, -1 when serving a shared memory channel.
+     */
+    public int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true); // Frames are small and latency-bound
+                open(new BufferedInputStream(socket.getInputStream()), new BufferedOutputStream(socket.getOutputStream()),
+                        socket, String.valueOf(socket.getRemoteSocketAddress()));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Logger.warn("MessageBusServer failed to accept a connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void open(InputStream input, OutputStream output, Closeable transport, String peer) {
+        Connection connection = new Connection(input, output, transport, peer);
+        connections.add(connection);
+        Thread reader = new Thread(connection::read, "MessageBusServer connection " + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // One client process, its frames are read on one thread and written by any thread under the output lock
+    private final class Connection {
+        private final Closeable transport;
+        private final String peer;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final Map<String, Proxy> proxies = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        private Connection(InputStream input, OutputStream output, Closeable transport, String peer) {
+            this.transport = transport;
+            this.peer = peer;
+            in = new DataInputStream(input);
+            out = new DataOutputStream(output);
+        }
+
+        private void read() {
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    switch (type) {
+                        case MessageCodec.REGISTER:
+                            register(in.readUTF());
+                            break;
+                        case MessageCodec.UNREGISTER:
+                            unregister(in.readUTF());
+                            break;
+                        case MessageCodec.SUBSCRIBE_EVENT:
+                            subscribe(in.readUTF(), in.readUTF(), true, false);
+                            break;
+                        case MessageCodec.SUBSCRIBE_BROADCAST:
+                            subscribe(in.readUTF(), in.readUTF(), false, false);
+                            break;
+                        case MessageCodec.SUBSCRIBE_EVENT_HIERARCHY:
+                            subscribe(in.readUTF(), in.readUTF(), true, true);
+                            break;
+                        case MessageCodec.SUBSCRIBE_BROADCAST_HIERARCHY:
+                            subscribe(in.readUTF(), in.readUTF(), false, true);
+                            break;
+                        case MessageCodec.SEND_EVENT:
+                            sendEvent(in.readLong(), codec.readMessage(in, Event.class));
+                            break;
+                        case MessageCodec.SEND_BROADCAST:
+                            messageBus.sendBroadcast(codec.readMessage(in, Broadcast.class));
+                            break;
+                        case MessageCodec.COMPLETE:
+                            complete(in.readUTF(), in.readLong(), codec.readResult(in));
+                            break;
+                        default:
+                            throw new IOException("Unknown frame type " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                Logger.debug("MessageBusServer client {} disconnected", peer);
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    Logger.warn("MessageBusServer connection {} failed: {}", peer, e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void register(String name) {
+            Proxy proxy = new Proxy(name, this);
+            if (proxies.putIfAbsent(name, proxy) != null) {
+                Logger.warn("MessageBusServer: {} is already registered by this client", name);
+                return;
+            }
+            messageBus.register(proxy);
+            proxy.forwarder.start();
+        }
+
+        private void unregister(String name) {
+            Proxy proxy = proxies.remove(name);
+            if (proxy != null) {
+                proxy.stop();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void subscribe(String name, String className, boolean event, boolean hierarchy) throws IOException {
+            Proxy proxy = proxies.get(name);
+            if (proxy == null) {
+                return;
+            }
+            Class<?> type = codec.classOf(className, event ? Event.class : Broadcast.class);
+            if (event && hierarchy) {
+                messageBus.subscribeEventHierarchy((Class<? extends Event<?>>) type, proxy);
+            } else if (event) {
+                messageBus.subscribeEvent((Class<? extends Event<Object>>) type, proxy);
+            } else if (hierarchy) {
+                messageBus.subscribeBroadcastHierarchy((Class<? extends Broadcast>) type, proxy);
+            } else {
+                messageBus.subscribeBroadcast((Class<? extends Broadcast>) type, proxy);
+            }
+        }
+
+        private void sendEvent(long callId, Event<?> e) throws IOException {
+            Future<?> future = messageBus.sendEvent(e);
+            synchronized (out) {
+                out.writeByte(MessageCodec.SENT);
+                out.writeLong(callId);
+                out.writeBoolean(future != null);
+                out.flush();
+            }
+            if (future != null) {
+                // Registered after SENT is written, so the client always reads SENT first
+                future.onComplete(result -> {
+                    boolean sendable = MessageCodec.isResultType(result);
+                    try {
+                        synchronized (out) {
+                            out.writeByte(MessageCodec.RESULT);
+                            out.writeLong(callId);
+                            codec.writeObject(out, sendable ? result : null);
+                            codec.writeFailure(out, sendable ? future.getFailure()
+                                    : new IllegalArgumentException("Unsupported result class " + result.getClass().getName()));
+                            out.flush();
+                        }
+                    } catch (IOException ex) {
+                        close(); // The client is gone, nobody waits for the result
+                    }
+                });
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(String name, long deliveryId, Object result) {
+            Proxy proxy = proxies.get(name);
+            Event<Object> event = proxy == null ? null : (Event<Object>) proxy.release(deliveryId);
+            if (event != null) {
+                messageBus.complete(proxy, event, result);
+            }
+        }
+
+        private void deliver(String name, long deliveryId, Message m) throws IOException {
+            synchronized (out) {
+                out.writeByte(MessageCodec.DELIVER);
+                out.writeUTF(name);
+                out.writeLong(deliveryId);
+                codec.writeObject(out, m);
+                out.flush();
+            }
+        }
+
+        private void close() {
+            if (!connections.remove(this)) {
+                return; // Already closed
+            }
+            closed = true;
+            try {
+                transport.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            for (Proxy proxy : proxies.values()) {
+                proxy.stop();
+            }
+            proxies.clear();
+        }
+    }
+
+    // Stands in the local bus for a micro-service of the client
+    private final class Proxy extends MicroService {
+        private final Connection connection;
+        private final Thread forwarder;
+        // Events forwarded to the client and not completed yet, by delivery id, owned by the forwarder and the reader
+        private final Map<Long, Event<?>> delivered = new HashMap<>();
+        private long nextDeliveryId = 1;
+
+        private Proxy(String name, Connection connection) {
+            super(name, messageBus);
+            this.connection = connection;
+            forwarder = new Thread(this::forward, "MessageBusServer proxy " + name);
+            forwarder.setDaemon(true);
+        }
+
+        @Override
+        protected void initialize() {
+            // Never run, the forwarder thread takes its messages
+        }
+
+        private void forward() {
+            try {
+                while (true) {
+                    Message m = messageBus.awaitMessage(this);
+                    long deliveryId = 0;
+                    if (m instanceof Event) {
+                        synchronized (delivered) {
+                            deliveryId = nextDeliveryId++;
+                            delivered.put(deliveryId, (Event<?>) m);
+                        }
+                    }
+                    connection.deliver(getName(), deliveryId, m);
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            } catch (IllegalStateException e) {
+                // Unregistered meanwhile, the connection is closing or the proxy stopping
+                Logger.debug("MessageBusServer proxy {} ended: {}", getName(), e.getMessage());
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+
+        private Event<?> release(long deliveryId) {
+            synchronized (delivered) {
+                return delivered.remove(deliveryId);
+            }
+        }
+
+        // Stops forwarding, then unregisters so the events still held are cancelled
+        private void stop() {
+            forwarder.interrupt();
+            if (Thread.currentThread() != forwarder) {
+                try {
+                    forwarder.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            messageBus.unregister(this);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package bgu.spl.mics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.google.gson.Gson;
+
+/**
+ * The wire format shared by {@link MessageBusServer} and {@link RemoteMessageBus}.
+ * <p>
+ * A connection carries frames in both directions. A frame is a one-byte type
+ * followed by its fields in {@link DataOutputStream} encoding: ids are longs,
+ * service and class names are modified UTF-8 strings. An object (a message or
+ * an event result) is its class name followed by its JSON form, as a
+ * length-prefixed UTF-8 byte array, or an empty class name for null. Both
+ * processes need the message classes on their class path, but no Java
+ * serialization is involved and the messages need not be
+ * {@link java.io.Serializable}. Results are rebuilt from the JSON with their
+ * runtime class, so generic containers lose their element types.
+ * <p>
+ * A class name read from a connection is only loaded, without being
+ * initialized, and checked before anything is built from it: a message must
+ * be of the type the frame carries, a result one of the boxed primitives or
+ * a String (see {@link #isResultType}), which is not even loaded otherwise.
+ * Any process that can connect thus cannot make the other side initialize
+ * or instantiate arbitrary classes of its class path.
+ */
+final class MessageCodec {
+
+    // Client to server
+    static final byte REGISTER = 1;            // service name
+    static final byte UNREGISTER = 2;          // service name
+    static final byte SUBSCRIBE_EVENT = 3;     // service name, event class name
+    static final byte SUBSCRIBE_BROADCAST = 4; // service name, broadcast class name
+    static final byte SEND_EVENT = 5;          // call id, event
+    static final byte SEND_BROADCAST = 6;      // broadcast
+    static final byte COMPLETE = 7;            // service name, delivery id, result
+    // Server to client
+    static final byte DELIVER = 8;             // service name, delivery id (0 for a broadcast), message
+    static final byte SENT = 9;                // call id, true if the event had a subscriber
+    static final byte RESULT = 10;             // call id, result, failure
+    // Client to server, added later
+    static final byte SUBSCRIBE_EVENT_HIERARCHY = 11;     // service name, base event type name
+    static final byte SUBSCRIBE_BROADCAST_HIERARCHY = 12; // service name, base broadcast type name
+
+    // The types an event result may have on the wire by name, null aside
+    private static final Map<String, Class<?>> RESULT_TYPES = new HashMap<>();
+    static {
+        for (Class<?> type : new Class<?>[] {String.class, Boolean.class, Character.class, Byte.class, Short.class,
+                Integer.class, Long.class, Float.class, Double.class}) {
+            RESULT_TYPES.put(type.getName(), type);
+        }
+    }
+
+    private final Gson gson = new Gson();
+    private final ClassLoader classLoader;
+    private final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    MessageCodec() {
+        // The creator's loader sees the application's message classes, the connection threads inherit it
+        ClassLoader context = Thread.currentThread().getContextClassLoader();
+        classLoader = context != null ? context : MessageCodec.class.getClassLoader();
+    }
+
+    void writeObject(DataOutputStream out, Object o) throws IOException {
+        if (o == null) {
+            out.writeUTF("");
+            return;
+        }
+        out.writeUTF(o.getClass().getName());
+        byte[] json = gson.toJson(o).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(json.length);
+        out.write(json);
+    }
+
+    /**
+     * Reads a message written by {@link #writeObject}.
+     * <p>
+     * @throws IOException if the frame names a class that is not an {@code expected}.
+     */
+    <T extends Message> T readMessage(DataInputStream in, Class<T> expected) throws IOException {
+        String className = in.readUTF();
+        if (className.isEmpty()) {
+            return null;
+        }
+        return expected.cast(readJson(in, classOf(className, expected)));
+    }
+
+    /**
+     * Reads an event result written by {@link #writeObject}.
+     * <p>
+     * @throws IOException if the frame names a class that is not a result type.
+     */
+    Object readResult(DataInputStream in) throws IOException {
+        String className = in.readUTF();
+        if (className.isEmpty()) {
+            return null;
+        }
+        Class<?> type = RESULT_TYPES.get(className);
+        if (type == null) {
+            throw new IOException("Unsupported result class " + className);
+        }
+        return readJson(in, type);
+    }
+
+    /**
+     * @return true if {@code result} can be sent as an event result: null, a
+     *         String, or a boxed primitive other than Void.
+     */
+    static boolean isResultType(Object result) {
+        return result == null || RESULT_TYPES.containsKey(result.getClass().getName());
+    }
+
+    private Object readJson(DataInputStream in, Class<?> type) throws IOException {
+        byte[] json = new byte[in.readInt()];
+        in.readFully(json);
+        return gson.fromJson(new String(json, StandardCharsets.UTF_8), type);
+    }
+
+    /**
+     * Writes the class name and message of {@code failure}, or false for none.
+     */
+    void writeFailure(DataOutputStream out, Throwable failure) throws IOException {
+        out.writeBoolean(failure != null);
+        if (failure != null) {
+            out.writeUTF(failure.getClass().getName());
+            out.writeUTF(String.valueOf(failure.getMessage()));
+        }
+    }
+
+    /**
+     * @return the failure written by {@link #writeFailure}, as the same class
+     *         for the failures of the message-bus, null if there was none.
+     */
+    Throwable readFailure(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String className = in.readUTF();
+        String message = in.readUTF();
+        if (className.equals(CancellationException.class.getName())) {
+            return new CancellationException(message);
+        }
+        if (className.equals(TimeoutException.class.getName())) {
+            return new TimeoutException(message);
+        }
+        if (className.equals(RejectedExecutionException.class.getName())) {
+            return new RejectedExecutionException(message);
+        }
+        return new IllegalStateException(className + ": " + message);
+    }
+
+    /**
+     * Loads {@code className} without initializing it.
+     * <p>
+     * @throws IOException if there is no such class or it is not an {@code expected}.
+     */
+    Class<?> classOf(String className, Class<?> expected) throws IOException {
+        Class<?> type = classes.get(className);
+        if (type == null) {
+            try {
+                type = Class.forName(className, false, classLoader);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unknown message class " + className, e);
+            }
+            classes.put(className, type);
+        }
+        if (!expected.isAssignableFrom(type)) {
+            throw new IOException(className + " is not a " + expected.getSimpleName());
+        }
+        return type;
+    }
+}
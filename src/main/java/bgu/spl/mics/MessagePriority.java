@@ -0,0 +1,12 @@
+package bgu.spl.mics;
+
+/**
+ * The lane a message takes through a micro-service mailbox, see
+ * {@link MessageBusImpl#setMessagePriority(Class, MessagePriority)}.
+ */
+public enum MessagePriority {
+    /** Overtakes every queued data message, and is never dropped or refused by a full mailbox. */
+    CONTROL,
+    /** Queued in order behind the other data messages, the default. */
+    DATA
+}
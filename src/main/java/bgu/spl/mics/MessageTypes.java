@@ -0,0 +1,28 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives every message class a small, dense integer id the first time it is
+ * subscribed to or received, so micro-services can index their callbacks by
+ * type in an array instead of hashing the class of every message.
+ * Ids are never reused and the lookup does not lock.
+ */
+final class MessageTypes {
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private static final ClassValue<Integer> ids = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return nextId.getAndIncrement();
+        }
+    };
+
+    private MessageTypes() {
+    }
+
+    static int idOf(Class<?> type) {
+        return ids.get(type);
+    }
+}
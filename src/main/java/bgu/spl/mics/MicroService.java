@@ -1,7 +1,10 @@
 package bgu.spl.mics;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 /**
  * The MicroService is an abstract class that any micro-service in the system
  * must extend. The abstract MicroService class is responsible to get and
@@ -22,19 +25,44 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public abstract class MicroService implements Runnable {
 
+    /**
+     * The default maximal number of queued messages handled per wakeup of the event loop.
+     */
+    public static final int DEFAULT_MESSAGE_BATCH_SIZE = 32;
+
     private boolean terminated = false;
+    private int messageBatchSize = DEFAULT_MESSAGE_BATCH_SIZE;
     private final String name;
     private final MessageBus messageBus;
-    private final Map<Class<? extends Message>, Callback<?>> callbacks;
+    // Callbacks of exact subscriptions, indexed by the MessageTypes id of the subscribed class
+    private volatile Callback<Message>[] exactCallbacks = emptyTable();
+    // The exact callbacks plus the ones resolved for subtypes of hierarchical subscriptions, NO_CALLBACK marks
+    // classes resolved to nothing. Replaced (never written in place) under this object's lock.
+    private volatile Callback<Message>[] dispatch = emptyTable();
+    // Hierarchical subscriptions in subscription order, guarded by this
+    private final List<Class<?>> baseTypes = new ArrayList<>();
+    private final List<Callback<Message>> baseCallbacks = new ArrayList<>();
+
+    private static final Callback<Message> NO_CALLBACK = message -> {
+    };
 
     /**
      * @param name the micro-service name (used mainly for debugging purposes -
      *             does not have to be unique)
      */
     public MicroService(String name) {
+        this(name, MessageBusImpl.getInstance()); // Get the singleton MessageBus
+    }
+
+    /**
+     * @param name       the micro-service name.
+     * @param messageBus the bus this micro-service registers with and sends
+     *                   through, e.g. one of {@link MessageBusImpl#newInstance()}
+     *                   to run it apart from the singleton's micro-services.
+     */
+    public MicroService(String name, MessageBus messageBus) {
         this.name = name;
-        this.messageBus = MessageBusImpl.getInstance(); // Get the singleton MessageBus
-        this.callbacks = new ConcurrentHashMap<>(); 
+        this.messageBus = messageBus;
     }
 
     /**
@@ -59,8 +87,35 @@ public abstract class MicroService implements Runnable {
      *                 queue.
      */
     protected final <T, E extends Event<T>> void subscribeEvent(Class<E> type, Callback<E> callback) {
-        messageBus.subscribeEvent(type, this); // Register with the MessageBus
-        callbacks.put(type, callback); // Store the callback for this event type
+        Callback<Message> previous = setCallback(type, callback); // Store the callback before messages of this type can arrive
+        try {
+            messageBus.subscribeEvent(type, this); // Register with the MessageBus
+        } catch (RuntimeException e) {
+            setCallback(type, previous); // Not subscribed, no dispatch entry is left behind
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #subscribeEvent(Class, Callback)}, but also receives events of
+     * every subclass or implementation of {@code type}. An event of a class
+     * with subscribers of its own goes to them, see
+     * {@link MessageBus#subscribeEventHierarchy(Class, MicroService)}.
+     * The callback for a received class is resolved once and cached: an exact
+     * subscription wins, otherwise the most specific subscribed supertype.
+     * <p>
+     * @param <E>      The base type of events to subscribe to.
+     * @param type     The base class or interface of the events.
+     * @param callback The callback called with the received events.
+     */
+    protected final <E extends Event<?>> void subscribeEventHierarchy(Class<E> type, Callback<E> callback) {
+        addBaseCallback(type, callback);
+        try {
+            messageBus.subscribeEventHierarchy(type, this);
+        } catch (RuntimeException e) {
+            removeBaseCallback(type, callback); // E.g. a bus without hierarchical subscriptions
+            throw e;
+        }
     }
 
     /**
@@ -84,8 +139,33 @@ public abstract class MicroService implements Runnable {
      *                 queue.
      */
     protected final <B extends Broadcast> void subscribeBroadcast(Class<B> type, Callback<B> callback) {
-        messageBus.subscribeBroadcast(type, this); // Register with the MessageBus
-        callbacks.put(type, callback); // Store the callback for this broadcast type
+        Callback<Message> previous = setCallback(type, callback); // Store the callback before messages of this type can arrive
+        try {
+            messageBus.subscribeBroadcast(type, this); // Register with the MessageBus
+        } catch (RuntimeException e) {
+            setCallback(type, previous); // Not subscribed, no dispatch entry is left behind
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #subscribeBroadcast(Class, Callback)}, but also receives
+     * broadcasts of every subclass or implementation of {@code type}.
+     * The callback for a received class is resolved once and cached: an exact
+     * subscription wins, otherwise the most specific subscribed supertype.
+     * <p>
+     * @param <B>      The base type of broadcasts to subscribe to.
+     * @param type     The base class or interface of the broadcasts.
+     * @param callback The callback called with the received broadcasts.
+     */
+    protected final <B extends Broadcast> void subscribeBroadcastHierarchy(Class<B> type, Callback<B> callback) {
+        addBaseCallback(type, callback);
+        try {
+            messageBus.subscribeBroadcastHierarchy(type, this);
+        } catch (RuntimeException e) {
+            removeBaseCallback(type, callback); // E.g. a bus without hierarchical subscriptions
+            throw e;
+        }
     }
 
     /**
@@ -104,6 +184,29 @@ public abstract class MicroService implements Runnable {
         return messageBus.sendEvent(e); // Use the MessageBus to send the event
     }
 
+    /**
+     * Sends the event {@code e} with a deadline, see
+     * {@link MessageBus#sendEvent(Event, long, TimeUnit)}. The returned Future
+     * fails with a {@link java.util.concurrent.TimeoutException} if no result
+     * arrives within {@code timeout}.
+     */
+    protected final <T> Future<T> sendEvent(Event<T> e, long timeout, TimeUnit unit) {
+        return messageBus.sendEvent(e, timeout, unit);
+    }
+
+    /**
+     * Sends a batch of events, see {@link MessageBus#sendEvents(Collection)}.
+     * Cheaper than a {@link #sendEvent} call per event when several events
+     * go out together.
+     * <p>
+     * @param events    The events to send, in order
+     * @return          the Future of each event in the same order, null for an
+     *                  event no micro-service has subscribed to.
+     */
+    protected final <T> List<Future<T>> sendEvents(Collection<? extends Event<T>> events) {
+        return messageBus.sendEvents(events);
+    }
+
     /**
      * A Micro-Service calls this method in order to send the broadcast message {@code b} using the message-bus
      * to all the services subscribed to it.
@@ -125,7 +228,7 @@ public abstract class MicroService implements Runnable {
      *               {@code e}.
      */
     protected final <T> void complete(Event<T> e, T result) {
-        messageBus.complete(e, result); // Use the MessageBus to complete the event
+        messageBus.complete(this, e, result); // Use the MessageBus to complete the event
     }
 
     /**
@@ -142,6 +245,33 @@ public abstract class MicroService implements Runnable {
         this.terminated = true;
     }
 
+    /**
+     * Sets how many already queued messages the event loop takes from the
+     * message-bus per wakeup. Messages are still handled one at a time and in
+     * order, 1 restores one blocking take per message.
+     * <p>
+     * @param messageBatchSize the maximal number of messages per wakeup, at least 1.
+     */
+    protected final void setMessageBatchSize(int messageBatchSize) {
+        if (messageBatchSize < 1) {
+            throw new IllegalArgumentException("Message batch size must be positive: " + messageBatchSize);
+        }
+        this.messageBatchSize = messageBatchSize;
+    }
+
+    /**
+     * Work this micro-service accepted but has not finished, beyond the
+     * messages still in its queue (e.g. events it holds until a later tick).
+     * Load-aware {@link RoutingStrategy routing strategies} add it to the queue
+     * length. Called from the senders' threads, so it should only read a
+     * counter or a size and may be slightly stale.
+     * <p>
+     * @return the number of pending work items, 0 unless overridden.
+     */
+    protected int getPendingWork() {
+        return 0;
+    }
+
     /**
      * @return the name of the service - the service name is given to it in the
      *         construction time and is used mainly for debugging purposes.
@@ -159,26 +289,126 @@ public abstract class MicroService implements Runnable {
         messageBus.register(this); // Register the microservice with the MessageBus
         initialize(); // Perform any microservice-specific initialization
 
+        List<Message> batch = new ArrayList<>();
         while (!terminated) {
             try {
-                Message message = messageBus.awaitMessage(this); // Block until a message is available
-                if (message != null) {
-                    // @SuppressWarnings("unchecked")
-                    Callback<Message> callback = (Callback<Message>) callbacks.get(message.getClass());
-                    if (callback != null) {
-                        callback.call(message); // Execute the callback for the received message
+                messageBus.awaitMessages(this, batch, messageBatchSize); // Block until at least one message is available
+                for (Message message : batch) {
+                    if (terminated) {
+                        break; // The rest of the batch is discarded with the queue on unregister
                     }
+                    handle(message);
                 }
 
             } catch (InterruptedException e) {
-                System.out.println(Thread.currentThread().getName()+" interrupted");
+                Logger.debug("{} interrupted", this);
                 Thread.currentThread().interrupt(); // Restore interrupted status
+            } finally {
+                reportHandled(batch.size());
+                batch.clear();
             }
             
         }
-        System.out.println(Thread.currentThread().getName()+" terminated");
+        Logger.debug("{} terminated", this);
         messageBus.unregister(this); // Unregister the microservice upon termination
         Thread.currentThread().interrupt(); // Restore interrupted status
         
     }
+
+    /**
+     * Calls the callback subscribed to the type of {@code message}, if any.
+     * Used by the event loop and by {@link MicroServiceScheduler}.
+     */
+    final void handle(Message message) {
+        if (message != null) {
+            int id = MessageTypes.idOf(message.getClass());
+            Callback<Message>[] table = dispatch;
+            Callback<Message> callback = id < table.length ? table[id] : null;
+            if (callback == null) {
+                callback = resolveCallback(message.getClass(), id); // First message of this class
+            }
+            if (callback != NO_CALLBACK) {
+                TraceSpan span = TraceSpan.of(message);
+                if (span != null) {
+                    span.started();
+                }
+                callback.call(message); // Execute the callback for the received message
+                if (span != null) {
+                    span.ended(message.getClass());
+                }
+            }
+        }
+    }
+
+    // Lets a bus that tracks quiescence know the batch is done, including the messages skipped on termination
+    private void reportHandled(int count) {
+        if (messageBus instanceof MessageBusImpl) {
+            ((MessageBusImpl) messageBus).messagesHandled(this, count);
+        }
+    }
+
+    final boolean isTerminated() {
+        return terminated;
+    }
+
+    final int getMessageBatchSize() {
+        return messageBatchSize;
+    }
+
+    // Sets the exact callback of type, null for none, and returns the one it replaced
+    @SuppressWarnings("unchecked")
+    private synchronized Callback<Message> setCallback(Class<?> type, Callback<?> callback) {
+        int id = MessageTypes.idOf(type);
+        Callback<Message>[] table = Arrays.copyOf(exactCallbacks, Math.max(exactCallbacks.length, id + 1));
+        Callback<Message> previous = table[id];
+        table[id] = (Callback<Message>) callback;
+        exactCallbacks = table;
+        dispatch = table.clone(); // Classes resolved through a supertype may now have an exact callback
+        return previous;
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void addBaseCallback(Class<?> type, Callback<?> callback) {
+        baseTypes.add(type);
+        baseCallbacks.add((Callback<Message>) callback);
+        dispatch = exactCallbacks.clone(); // Forget the resolved classes, the new base type may match them
+    }
+
+    // Undoes addBaseCallback
+    private synchronized void removeBaseCallback(Class<?> type, Callback<?> callback) {
+        for (int i = baseTypes.size() - 1; i >= 0; i--) {
+            if (baseTypes.get(i) == type && baseCallbacks.get(i) == callback) {
+                baseTypes.remove(i);
+                baseCallbacks.remove(i);
+                break;
+            }
+        }
+        dispatch = exactCallbacks.clone(); // Forget the classes resolved to it
+    }
+
+    // Finds and caches the callback of a class without an exact one
+    private synchronized Callback<Message> resolveCallback(Class<?> type, int id) {
+        Callback<Message>[] table = dispatch;
+        if (id < table.length && table[id] != null) {
+            return table[id]; // Resolved meanwhile
+        }
+        Class<?> best = null;
+        Callback<Message> callback = NO_CALLBACK;
+        for (int i = 0; i < baseTypes.size(); i++) {
+            Class<?> baseType = baseTypes.get(i);
+            if (baseType.isAssignableFrom(type) && (best == null || best.isAssignableFrom(baseType))) {
+                best = baseType; // The most specific matching base type
+                callback = baseCallbacks.get(i);
+            }
+        }
+        table = Arrays.copyOf(table, Math.max(table.length, id + 1));
+        table[id] = callback;
+        dispatch = table;
+        return callback;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Callback<Message>[] emptyTable() {
+        return (Callback<Message>[]) new Callback<?>[0];
+    }
 }
@@ -0,0 +1,206 @@
+package bgu.spl.mics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Starts micro-services and decides which threads run their event loops.
+ * <p>
+ * In {@link ExecutionMode#THREADS} mode every micro-service gets its own
+ * platform thread blocked on its mailbox, as {@link MicroService#run()} does.
+ * In {@link ExecutionMode#POOLED} mode a micro-service owns no thread: queuing
+ * a message for it schedules it on a shared work-stealing {@link ForkJoinPool},
+ * where it handles up to a batch of messages (see
+ * {@link MicroService#DEFAULT_MESSAGE_BATCH_SIZE}) and yields the worker to the next ready micro-service. It is never
+ * run by two workers at once, so callbacks keep their single-threaded
+ * semantics, and {@code initialize} and {@code terminate} behave as in the
+ * thread mode. {@link ExecutionMode#VIRTUAL} runs the usual event loop of each
+ * micro-service on a virtual thread and needs JDK 21 or newer.
+ * <p>
+ * Micro-services that block inside {@code initialize} (the TimeService sleeps
+ * between ticks there) should keep their own thread.
+ */
+public final class MicroServiceScheduler {
+
+    /**
+     * How the event loops of the micro-services are run.
+     */
+    public enum ExecutionMode {
+        THREADS, POOLED, VIRTUAL
+    }
+
+    private final ExecutionMode mode;
+    private final ExecutorService executor;
+    private final MessageBusImpl messageBus;
+    private int running; // Started and not terminated micro-services, guarded by this
+
+    private MicroServiceScheduler(ExecutionMode mode, ExecutorService executor, MessageBusImpl messageBus) {
+        this.mode = mode;
+        this.executor = executor;
+        this.messageBus = messageBus;
+    }
+
+    /**
+     * Creates a scheduler for micro-services of the singleton message bus.
+     * <p>
+     * @param mode     how the event loops are run.
+     * @param poolSize the number of pool workers in {@link ExecutionMode#POOLED} mode, ignored otherwise.
+     * @throws UnsupportedOperationException if {@code mode} is {@link ExecutionMode#VIRTUAL}
+     *                                       and the JDK has no virtual threads.
+     */
+    public static MicroServiceScheduler create(ExecutionMode mode, int poolSize) {
+        return create(mode, poolSize, (MessageBusImpl) MessageBusImpl.getInstance());
+    }
+
+    /**
+     * Same as {@link #create(ExecutionMode, int)} for micro-services created
+     * with {@code messageBus} (see {@link MicroService#MicroService(String, MessageBus)}).
+     */
+    public static MicroServiceScheduler create(ExecutionMode mode, int poolSize, MessageBusImpl messageBus) {
+        switch (mode) {
+            case POOLED:
+                if (poolSize < 1) {
+                    throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+                }
+                return new MicroServiceScheduler(mode, new ForkJoinPool(poolSize, pool -> {
+                    ForkJoinWorkerThread worker = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    worker.setName("MicroService pool worker " + worker.getPoolIndex());
+                    return worker;
+                }, null, true), messageBus); // FIFO local queues, the micro-services are event-style tasks
+            case VIRTUAL:
+                return new MicroServiceScheduler(mode, newVirtualThreadExecutor(), messageBus);
+            default:
+                return new MicroServiceScheduler(mode, null, messageBus);
+        }
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Registers {@code m} and runs its {@code initialize} and event loop according to the mode.
+     */
+    public void start(MicroService m) {
+        synchronized (this) {
+            running++;
+        }
+        switch (mode) {
+            case POOLED:
+                messageBus.register(m);
+                Activation activation = new Activation(m);
+                messageBus.setMessageListener(m, activation::signal);
+                executor.execute(activation); // Runs initialize first
+                break;
+            case VIRTUAL:
+                executor.execute(() -> runLoop(m));
+                break;
+            default:
+                Thread serviceThread = new Thread(() -> runLoop(m), m.getName() + " Thread");
+                serviceThread.start();
+                Logger.debug("Thread {} was started", serviceThread.getName());
+        }
+    }
+
+    /**
+     * Waits until every started micro-service has terminated.
+     */
+    public void awaitTermination() throws InterruptedException {
+        synchronized (this) {
+            while (running > 0) {
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Releases the pool threads, micro-services still running are not interrupted.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private void runLoop(MicroService m) {
+        try {
+            m.run();
+        } finally {
+            terminated();
+        }
+    }
+
+    private synchronized void terminated() {
+        running--;
+        notifyAll();
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively so the sources still build for Java 8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need JDK 21 or newer", e);
+        }
+    }
+
+    // The event loop of one micro-service in pooled mode, submitted whenever it has messages
+    private final class Activation implements Runnable {
+        private final MicroService service;
+        // Set while the activation is submitted or running, so a micro-service never runs twice at once
+        private final AtomicBoolean scheduled = new AtomicBoolean(true);
+        private final List<Message> batch = new ArrayList<>();
+        private boolean initialized;
+
+        private Activation(MicroService service) {
+            this.service = service;
+        }
+
+        // Called by the sending thread after each message queued for the service
+        private void signal() {
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!initialized) {
+                    initialized = true;
+                    service.initialize();
+                } else {
+                    messageBus.pollMessages(service, batch, service.getMessageBatchSize());
+                    for (Message message : batch) {
+                        if (service.isTerminated()) {
+                            break; // The rest of the batch is discarded with the queue on unregister
+                        }
+                        service.handle(message);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Logger.error("{} failed", service, e);
+                service.terminate();
+            } finally {
+                messageBus.messagesHandled(service, batch.size());
+                batch.clear();
+            }
+            if (service.isTerminated()) {
+                Logger.debug("{} terminated", service);
+                messageBus.unregister(service);
+                terminated();
+                return;
+            }
+            scheduled.set(false);
+            // A message queued after the poll found scheduled still set, take it now
+            if (messageBus.hasMessages(service)) {
+                signal();
+            }
+        }
+    }
+}
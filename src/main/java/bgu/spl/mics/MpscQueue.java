@@ -0,0 +1,99 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An unbounded, lock-free queue for many producers and a single consumer.
+ * <p>
+ * Elements are stored in fixed-size array segments linked in order. A
+ * producer claims a position with one atomic increment and writes its
+ * element into that slot, so offering never locks and allocates only one
+ * segment per {@link #SEGMENT_SIZE} elements. The consumer reads the slots in
+ * position order. A slot that was claimed but not written yet reads as empty
+ * until its producer finishes, which keeps each producer's elements in order.
+ * Only the owner of the queue may call {@link #poll()}, or one thread at a
+ * time if the callers share a lock.
+ */
+final class MpscQueue<E> {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    private final AtomicLong tailIndex = new AtomicLong();
+    // The segment of a recently claimed position, producers start their search there
+    private final AtomicReference<Segment<E>> tailSegment;
+    // Consumer side, only touched by the single consumer
+    private Segment<E> headSegment;
+    private long headIndex;
+
+    MpscQueue() {
+        Segment<E> first = new Segment<>(0);
+        tailSegment = new AtomicReference<>(first);
+        headSegment = first;
+    }
+
+    /**
+     * Appends {@code e}, never blocks. May be called by any thread.
+     */
+    void offer(E e) {
+        // Read the tail before claiming: it only ever moves to segments of positions claimed earlier
+        Segment<E> segment = tailSegment.get();
+        long index = tailIndex.getAndIncrement();
+        while (index >= segment.base + SEGMENT_SIZE) {
+            Segment<E> next = segment.next;
+            if (next == null) {
+                Segment<E> created = new Segment<>(segment.base + SEGMENT_SIZE);
+                next = Segment.NEXT.compareAndSet(segment, null, created) ? created : segment.next;
+            }
+            segment = next;
+        }
+        Segment<E> tail = tailSegment.get();
+        if (tail.base < segment.base) {
+            tailSegment.compareAndSet(tail, segment); // Losing the race is fine, someone moved it forward
+        }
+        segment.slots.set((int) (index - segment.base), e);
+    }
+
+    /**
+     * Removes the head element. Only the single consumer may call it, or
+     * callers holding a common lock.
+     * <p>
+     * @return the head element, or null if the queue is empty or the head
+     *         position is claimed but not written yet.
+     */
+    E poll() {
+        Segment<E> segment = headSegment;
+        int offset = (int) (headIndex - segment.base);
+        if (offset == SEGMENT_SIZE) {
+            Segment<E> next = segment.next;
+            if (next == null) {
+                return null; // The next segment is not even created yet
+            }
+            headSegment = segment = next; // The old segment is garbage once producers are done with it
+            offset = 0;
+        }
+        E e = segment.slots.get(offset);
+        if (e == null) {
+            return null;
+        }
+        segment.slots.lazySet(offset, null); // Let the element be collected
+        headIndex++;
+        return e;
+    }
+
+    private static final class Segment<E> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Segment, Segment> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Segment.class, Segment.class, "next");
+
+        private final long base;
+        private final AtomicReferenceArray<E> slots = new AtomicReferenceArray<>(SEGMENT_SIZE);
+        private volatile Segment<E> next;
+
+        private Segment(long base) {
+            this.base = base;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package bgu.spl.mics;
+
+/**
+ * What a bounded micro-service mailbox does with a message that arrives when
+ * the mailbox is already full. Whatever the policy, the {@link Future} of an
+ * event that ends up not queued, or evicted from the queue, is failed.
+ */
+public enum OverflowPolicy {
+    /** The sender waits until the receiver makes room, or gives up if it is interrupted. */
+    BLOCK,
+    /** The oldest queued message is discarded to make room for the new one. */
+    DROP_OLDEST,
+    /** The new message is discarded, the queued ones are kept. */
+    DROP_NEWEST,
+    /** The new message is refused and the {@link Future} of a refused event is failed. */
+    REJECT
+}
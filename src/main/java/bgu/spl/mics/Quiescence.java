@@ -0,0 +1,51 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * What a {@link MessageBusImpl} needs to tell when no micro-service has work
+ * left (see {@link MessageBusImpl#trackQuiescence()}): a count of the
+ * messages sent, and a monitor signalled whenever a mailbox becomes idle.
+ * <p>
+ * Each tracked {@link Mailbox} counts its messages queued or taken and not
+ * handled yet. Scanning the mailboxes for zero counts is not atomic, a
+ * message could move from a mailbox not scanned yet to one already scanned,
+ * so the scan is only trusted if no message was sent while it ran: counts
+ * only grow by sends, so every count seen at zero was still zero at the end.
+ */
+final class Quiescence {
+
+    private final AtomicLong sent = new AtomicLong();
+
+    // Called by the sender after counting the message in its mailbox
+    void sent() {
+        sent.incrementAndGet();
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    // Called when the count of a mailbox drops to zero
+    synchronized void idle() {
+        notifyAll();
+    }
+
+    /**
+     * Waits until {@code quiescent} holds, checking it again each time a mailbox becomes idle.
+     * <p>
+     * @return false if it still did not hold after {@code timeoutNanos}.
+     */
+    synchronized boolean await(BooleanSupplier quiescent, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!quiescent.getAsBoolean()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+        }
+        return true;
+    }
+}
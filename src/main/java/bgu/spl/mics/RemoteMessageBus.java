@@ -0,0 +1,400 @@
+package bgu.spl.mics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MessageBus} of another process, reached through a
+ * {@link MessageBusServer} on the same host, over a socket or a
+ * {@link SharedMemoryChannel}.
+ * <p>
+ * Micro-services created with this bus (see
+ * {@link MicroService#MicroService(String, MessageBus)}) run in this process
+ * and take part in the remote bus as if they were local: their
+ * subscriptions, events and broadcasts go over the connection, and the
+ * messages queued for them come back into a local queue per micro-service.
+ * {@link #sendEvent} waits for the server to route the event, so it still
+ * returns null when nobody subscribed, and returns a Future resolved when the
+ * remote handler completes the event. The Futures are resolved on the thread
+ * reading the connection, whose continuations therefore must not send events
+ * through this bus. Registered micro-services are known to
+ * the server by name, which must be unique per connection. Event results
+ * cross the connection as strings, boxed primitives or null only.
+ * <p>
+ * If the connection is lost, pending Futures fail and {@link #awaitMessage}
+ * throws {@link IllegalStateException}, as for an unregistered micro-service.
+ */
+public final class RemoteMessageBus implements MessageBus, Closeable {
+
+    // Queued for every micro-service when the connection is lost
+    private static final Message CLOSED = new Message() {
+    };
+
+    private final Closeable transport;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final MessageCodec codec = new MessageCodec();
+    private final Map<String, RemoteMailbox> mailboxes = new ConcurrentHashMap<>();
+    // Futures of the events sent from this process, by call id
+    private final Map<Long, Future<Object>> calls = new ConcurrentHashMap<>();
+    // Whether the server found a subscriber, by call id, awaited by the sender
+    private final Map<Long, Future<Boolean>> routed = new ConcurrentHashMap<>();
+    private final AtomicLong nextCallId = new AtomicLong();
+    private volatile boolean closed;
+    private volatile Thread reader;
+
+    private RemoteMessageBus(InputStream input, OutputStream output, Closeable transport) {
+        this.transport = transport;
+        in = new DataInputStream(input);
+        out = new DataOutputStream(output);
+    }
+
+    /**
+     * Connects to the {@link MessageBusServer} listening on {@code port} and
+     * starts reading its frames on a daemon thread.
+     */
+    public static RemoteMessageBus connect(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true); // Frames are small and latency-bound
+        return start(new RemoteMessageBus(new BufferedInputStream(socket.getInputStream()),
+                new BufferedOutputStream(socket.getOutputStream()), socket), host + ":" + port);
+    }
+
+    /**
+     * Connects to the {@link MessageBusServer} serving {@code channel} (see
+     * {@link SharedMemoryChannel#open}) and starts reading its frames on a
+     * daemon thread. Closing this bus closes the channel.
+     */
+    public static RemoteMessageBus connect(SharedMemoryChannel channel) {
+        return start(new RemoteMessageBus(new BufferedInputStream(channel.getInputStream()),
+                new BufferedOutputStream(channel.getOutputStream()), channel), "shared memory");
+    }
+
+    private static RemoteMessageBus start(RemoteMessageBus bus, String peer) {
+        Thread reader = new Thread(bus::read, "RemoteMessageBus " + peer);
+        reader.setDaemon(true);
+        bus.reader = reader;
+        reader.start();
+        return bus;
+    }
+
+    @Override
+    public <T> void subscribeEvent(Class<? extends Event<T>> type, MicroService m) {
+        subscribe(MessageCodec.SUBSCRIBE_EVENT, type, m);
+    }
+
+    @Override
+    public void subscribeBroadcast(Class<? extends Broadcast> type, MicroService m) {
+        subscribe(MessageCodec.SUBSCRIBE_BROADCAST, type, m);
+    }
+
+    @Override
+    public void subscribeEventHierarchy(Class<? extends Event<?>> type, MicroService m) {
+        subscribe(MessageCodec.SUBSCRIBE_EVENT_HIERARCHY, type, m);
+    }
+
+    @Override
+    public void subscribeBroadcastHierarchy(Class<? extends Broadcast> type, MicroService m) {
+        subscribe(MessageCodec.SUBSCRIBE_BROADCAST_HIERARCHY, type, m);
+    }
+
+    @Override
+    public <T> void complete(Event<T> e, T result) {
+        for (Map.Entry<String, RemoteMailbox> entry : mailboxes.entrySet()) {
+            if (complete(entry.getKey(), entry.getValue(), e, result)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public <T> void complete(MicroService m, Event<T> e, T result) {
+        RemoteMailbox mailbox = mailboxes.get(m.getName());
+        if (mailbox == null || !complete(m.getName(), mailbox, e, result)) {
+            complete(e, result); // e was taken by another micro-service of this process
+        }
+    }
+
+    @Override
+    public void sendBroadcast(Broadcast b) {
+        write(() -> {
+            out.writeByte(MessageCodec.SEND_BROADCAST);
+            codec.writeObject(out, b);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits for the server to route {@code e}. If the calling thread is
+     * interrupted meanwhile, the interrupt status is kept and the Future is
+     * returned anyway: it is resolved if the event had a subscriber, failed
+     * with a {@link RejectedExecutionException} otherwise.
+     * <p>
+     * @throws IllegalStateException if called on the thread reading the
+     *         connection, e.g. from a continuation of a remote Future, as the
+     *         server's answer could never be read.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> sendEvent(Event<T> e) {
+        if (Thread.currentThread() == reader) {
+            throw new IllegalStateException("Events cannot be sent from the thread reading the connection");
+        }
+        long callId = nextCallId.incrementAndGet();
+        Future<T> future = new Future<>();
+        Future<Boolean> sent = new Future<>();
+        calls.put(callId, (Future<Object>) future);
+        routed.put(callId, sent);
+        if (closed) {
+            routed.remove(callId); // Put after the disconnection released the waiting senders
+            calls.remove(callId);
+            return null;
+        }
+        // A write failure disconnects, which resolves sent with false
+        write(() -> {
+            out.writeByte(MessageCodec.SEND_EVENT);
+            out.writeLong(callId);
+            codec.writeObject(out, e);
+        });
+        Boolean hasSubscriber = sent.get();
+        if (hasSubscriber == null) {
+            return future; // Interrupted, the reader settles the call when the server answers
+        }
+        return hasSubscriber ? future : null;
+    }
+
+    @Override
+    public void register(MicroService m) {
+        mailboxes.putIfAbsent(m.getName(), new RemoteMailbox());
+        write(() -> {
+            out.writeByte(MessageCodec.REGISTER);
+            out.writeUTF(m.getName());
+        });
+    }
+
+    @Override
+    public void unregister(MicroService m) {
+        if (mailboxes.remove(m.getName()) != null && !closed) {
+            write(() -> {
+                out.writeByte(MessageCodec.UNREGISTER);
+                out.writeUTF(m.getName());
+            });
+        }
+    }
+
+    @Override
+    public Message awaitMessage(MicroService m) throws InterruptedException {
+        RemoteMailbox mailbox = mailboxOf(m);
+        return mailbox.open(mailbox.queue.take());
+    }
+
+    @Override
+    public int awaitMessages(MicroService m, Collection<? super Message> batch, int maxMessages) throws InterruptedException {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("maxMessages must be positive: " + maxMessages);
+        }
+        RemoteMailbox mailbox = mailboxOf(m);
+        batch.add(mailbox.open(mailbox.queue.take()));
+        int count = 1;
+        Message next;
+        while (count < maxMessages && (next = mailbox.queue.peek()) != null && next != CLOSED) {
+            batch.add(mailbox.open(mailbox.queue.poll()));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Closes the connection, the server unregisters the micro-services of this process.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        transport.close();
+    }
+
+    private RemoteMailbox mailboxOf(MicroService m) {
+        RemoteMailbox mailbox = mailboxes.get(m.getName());
+        if (mailbox == null) {
+            throw new IllegalStateException("Microservice is not registered.");
+        }
+        return mailbox;
+    }
+
+    private void subscribe(byte frame, Class<?> type, MicroService m) {
+        write(() -> {
+            out.writeByte(frame);
+            out.writeUTF(m.getName());
+            out.writeUTF(type.getName());
+        });
+    }
+
+    private <T> boolean complete(String name, RemoteMailbox mailbox, Event<T> e, T result) {
+        if (!MessageCodec.isResultType(result)) {
+            throw new IllegalArgumentException("Only strings and boxed primitives can be sent as results, not "
+                    + result.getClass().getName());
+        }
+        Long deliveryId = mailbox.release(e);
+        if (deliveryId == null) {
+            return false;
+        }
+        write(() -> {
+            out.writeByte(MessageCodec.COMPLETE);
+            out.writeUTF(name);
+            out.writeLong(deliveryId);
+            codec.writeObject(out, result);
+        });
+        return true;
+    }
+
+    private void read() {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                switch (type) {
+                    case MessageCodec.DELIVER: {
+                        String name = in.readUTF();
+                        long deliveryId = in.readLong();
+                        Message m = codec.readMessage(in, Message.class);
+                        RemoteMailbox mailbox = mailboxes.get(name);
+                        if (mailbox != null) {
+                            mailbox.deliver(m, deliveryId);
+                        }
+                        break;
+                    }
+                    case MessageCodec.SENT: {
+                        long callId = in.readLong();
+                        boolean hasSubscriber = in.readBoolean();
+                        if (!hasSubscriber) {
+                            // Failed for a sender that stopped waiting, the others return null
+                            Future<Object> future = calls.remove(callId);
+                            if (future != null) {
+                                future.fail(new RejectedExecutionException("No micro-service is subscribed to the event"));
+                            }
+                        }
+                        Future<Boolean> sent = routed.remove(callId);
+                        if (sent != null) {
+                            sent.resolve(hasSubscriber);
+                        }
+                        break;
+                    }
+                    case MessageCodec.RESULT: {
+                        Future<Object> future = calls.remove(in.readLong());
+                        Object result = codec.readResult(in);
+                        Throwable failure = codec.readFailure(in);
+                        if (future != null) {
+                            if (failure != null) {
+                                future.fail(failure);
+                            } else {
+                                future.resolve(result);
+                            }
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            Logger.debug("RemoteMessageBus: the server closed the connection");
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                Logger.warn("RemoteMessageBus connection failed: {}", e.getMessage());
+            }
+        } finally {
+            disconnected();
+        }
+    }
+
+    // Fails everything that waits for the server
+    private void disconnected() {
+        closed = true;
+        try {
+            transport.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        IOException cause = new IOException("Connection to the message-bus is closed");
+        for (Long callId : routed.keySet()) {
+            Future<Boolean> sent = routed.remove(callId);
+            if (sent != null) {
+                sent.resolve(false);
+            }
+        }
+        for (Long callId : calls.keySet()) {
+            Future<Object> future = calls.remove(callId);
+            if (future != null) {
+                future.fail(cause);
+            }
+        }
+        for (RemoteMailbox mailbox : mailboxes.values()) {
+            mailbox.queue.add(CLOSED);
+        }
+    }
+
+    private void write(Frame frame) {
+        if (closed) {
+            return; // Messages to a closed connection are lost, like messages to an unregistered micro-service
+        }
+        try {
+            synchronized (out) {
+                frame.write();
+                out.flush();
+            }
+        } catch (IOException e) {
+            Logger.warn("RemoteMessageBus failed to write to the server: {}", e.getMessage());
+            disconnected();
+        }
+    }
+
+    private interface Frame {
+        void write() throws IOException;
+    }
+
+    // The queue of a local micro-service and the delivery ids of the events it took
+    private static final class RemoteMailbox {
+        private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+        // Events queued or taken and not completed yet, guarded by itself
+        private final Map<Event<?>, Long> inFlight = new IdentityHashMap<>();
+
+        private void deliver(Message m, long deliveryId) {
+            if (deliveryId != 0) {
+                synchronized (inFlight) {
+                    inFlight.put((Event<?>) m, deliveryId);
+                }
+            }
+            queue.add(m);
+        }
+
+        private Message open(Message m) {
+            if (m == CLOSED) {
+                queue.add(CLOSED); // Keep it for the next call
+                throw new IllegalStateException("Connection to the message-bus is closed");
+            }
+            return m;
+        }
+
+        private Long release(Event<?> e) {
+            synchronized (inFlight) {
+                return inFlight.remove(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package bgu.spl.mics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Chooses which of the micro-services subscribed to an {@link Event} type
+ * receives the next event of that type, see
+ * {@link MessageBusImpl#setRoutingStrategy(Class, RoutingStrategy)}.
+ * <p>
+ * A strategy instance serves a single event type and may keep state (such as
+ * a round-robin cursor), so create one per type with the factory methods.
+ * {@link #select} is called concurrently by all senders of the type and must
+ * not lock.
+ */
+public interface RoutingStrategy {
+
+    /**
+     * @param subscribers the current subscribers, never empty. Must not be modified.
+     * @param load        the current load of a subscriber: its queued messages
+     *                    plus the work it reports as pending (see {@link MicroService#getPendingWork()}).
+     * @return the subscriber that receives the event.
+     */
+    MicroService select(MicroService[] subscribers, ToIntFunction<MicroService> load);
+
+    /**
+     * Selects the subscriber of a {@link KeyedEvent}. Strategies that do not
+     * route by key ignore it, which is the default.
+     * <p>
+     * @param key the routing key of the event, never null.
+     */
+    default MicroService select(MicroService[] subscribers, ToIntFunction<MicroService> load, Object key) {
+        return select(subscribers, load);
+    }
+
+    /**
+     * @return a strategy that takes turns in subscription order and ignores the load, the default.
+     */
+    static RoutingStrategy roundRobin() {
+        AtomicInteger cursor = new AtomicInteger();
+        // Masking keeps the index non-negative once the cursor wraps around
+        return (subscribers, load) -> subscribers[(cursor.getAndIncrement() & Integer.MAX_VALUE) % subscribers.length];
+    }
+
+    /**
+     * @return a strategy that picks the least loaded subscriber, ties are
+     *         broken in round-robin order. Reads the load of every subscriber.
+     */
+    static RoutingStrategy shortestQueue() {
+        AtomicInteger cursor = new AtomicInteger();
+        return (subscribers, load) -> {
+            int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % subscribers.length;
+            MicroService best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            for (int i = 0; i < subscribers.length; i++) {
+                MicroService candidate = subscribers[(start + i) % subscribers.length];
+                int candidateLoad = load.applyAsInt(candidate);
+                if (candidateLoad < bestLoad) {
+                    best = candidate;
+                    bestLoad = candidateLoad;
+                }
+            }
+            return best;
+        };
+    }
+
+    /**
+     * @return a strategy that samples two random subscribers and picks the
+     *         less loaded one. Reads two loads whatever the number of subscribers.
+     */
+    static RoutingStrategy powerOfTwoChoices() {
+        return (subscribers, load) -> {
+            if (subscribers.length == 1) {
+                return subscribers[0];
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(subscribers.length);
+            int second = random.nextInt(subscribers.length - 1);
+            if (second >= first) {
+                second++; // Two distinct subscribers
+            }
+            return load.applyAsInt(subscribers[second]) < load.applyAsInt(subscribers[first])
+                    ? subscribers[second]
+                    : subscribers[first];
+        };
+    }
+
+    /**
+     * @return a strategy that sends the {@link KeyedEvent keyed events} with
+     *         equal keys to the same subscriber, placing the subscribers on a
+     *         consistent-hash ring by name. When a subscriber unregisters only
+     *         its keys move to the others. Ignores the load, unkeyed events
+     *         take turns.
+     */
+    static RoutingStrategy consistentHash() {
+        return new ConsistentHashRouting();
+    }
+
+    /**
+     * @param name "round-robin", "shortest-queue", "power-of-two" or "consistent-hash" (case and
+     *             separators are ignored).
+     * @return a new strategy of that kind.
+     */
+    static RoutingStrategy forName(String name) {
+        switch (name.replaceAll("[-_ ]", "").toLowerCase()) {
+            case "roundrobin":
+                return roundRobin();
+            case "shortestqueue":
+                return shortestQueue();
+            case "poweroftwo":
+            case "poweroftwochoices":
+                return powerOfTwoChoices();
+            case "consistenthash":
+                return consistentHash();
+            default:
+                throw new IllegalArgumentException("Unknown routing strategy: " + name);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package bgu.spl.mics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A duplex byte channel between two processes of the same host through two
+ * memory-mapped files, one per direction, for running a
+ * {@link MessageBusServer} and a {@link RemoteMessageBus} without sockets
+ * (see {@link MessageBusServer#serve(MessageBusImpl, SharedMemoryChannel)} and
+ * {@link RemoteMessageBus#connect(SharedMemoryChannel)}).
+ * <p>
+ * Each file is a single-producer single-consumer ring of bytes. Its header
+ * holds the write position, written by the producer only, and the read
+ * position, written by the consumer only, on separate cache lines; both only
+ * grow. The producer copies bytes in behind the write position and publishes
+ * them on {@code flush} by storing the new position after a release fence;
+ * the consumer reads the position, then an acquire fence, then the bytes, and
+ * publishes its own position after each read of a range of bytes, or once it
+ * read all the bytes it saw when reading them one at a time. So
+ * no message crosses a system call: a side that finds the ring empty (or
+ * full) spins, then yields, then parks for {@value #PARK_MICROS} us at a time.
+ * The streams have no buffer of their own, their users wrap them in buffered
+ * streams as they would a socket's.
+ * <p>
+ * The server side {@link #create creates} the files and the client side
+ * {@link #open opens} them. Closing either side marks both rings closed, the
+ * other side then reads the end of the stream once it drained what was sent.
+ */
+public final class SharedMemoryChannel implements Closeable {
+
+    static final String CLIENT_TO_SERVER = "client-to-server.ring";
+    static final String SERVER_TO_CLIENT = "server-to-client.ring";
+    private static final long PARK_MICROS = 50;
+
+    private final Ring inbound;
+    private final Ring outbound;
+    private final InputStream input;
+    private final OutputStream output;
+
+    private SharedMemoryChannel(Ring inbound, Ring outbound) {
+        this.inbound = inbound;
+        this.outbound = outbound;
+        input = new RingInputStream(inbound);
+        output = new RingOutputStream(outbound);
+    }
+
+    /**
+     * Creates (or resets) the ring files in {@code directory}, for the server side.
+     * <p>
+     * @param capacity the bytes each ring holds, rounded up to a power of two.
+     *                 A frame larger than the ring is written in several parts.
+     */
+    public static SharedMemoryChannel create(Path directory, int capacity) throws IOException {
+        Files.createDirectories(directory);
+        int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        return new SharedMemoryChannel(Ring.create(directory.resolve(CLIENT_TO_SERVER), size),
+                Ring.create(directory.resolve(SERVER_TO_CLIENT), size));
+    }
+
+    /**
+     * Opens the ring files created by the server in {@code directory}, for the client side.
+     */
+    public static SharedMemoryChannel open(Path directory) throws IOException {
+        return new SharedMemoryChannel(Ring.open(directory.resolve(SERVER_TO_CLIENT)),
+                Ring.open(directory.resolve(CLIENT_TO_SERVER)));
+    }
+
+    InputStream getInputStream() {
+        return input;
+    }
+
+    OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Marks both rings closed. The mappings are released by the garbage collector.
+     */
+    @Override
+    public void close() {
+        inbound.close();
+        outbound.close();
+    }
+
+    // Spins, then yields, then parks, between checks of a condition another process changes.
+    // Like a blocking socket, the wait ignores interrupts: only closing the channel ends it.
+    private static void backOff(int attempt) {
+        if (attempt < 100) {
+            return;
+        }
+        if (attempt < 200 || Thread.currentThread().isInterrupted()) {
+            Thread.yield(); // parkNanos would return at once
+        } else {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(PARK_MICROS));
+        }
+    }
+
+    // One direction: the header and a power-of-two data area in one mapped file
+    private static final class Ring {
+        private static final int MAGIC = 0x53524231; // "SRB1"
+        private static final int CAPACITY = 4;
+        private static final int WRITE_POSITION = 64; // Written by the producer only
+        private static final int READ_POSITION = 128; // Written by the consumer only
+        private static final int CLOSED = 192;        // Set by either side, never cleared
+        private static final int DATA = 256;
+
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final int mask;
+
+        private Ring(MappedByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a shared memory ring");
+            }
+            capacity = buffer.getInt(CAPACITY);
+            mask = capacity - 1;
+        }
+
+        private static Ring create(Path file, int capacity) throws IOException {
+            MappedByteBuffer buffer = map(file, DATA + capacity, true);
+            buffer.putLong(WRITE_POSITION, 0);
+            buffer.putLong(READ_POSITION, 0);
+            buffer.putInt(CLOSED, 0);
+            buffer.putInt(CAPACITY, capacity);
+            MemoryFences.release();
+            buffer.putInt(0, MAGIC); // Last, a client that sees it sees an initialized ring
+            return new Ring(buffer);
+        }
+
+        private static Ring open(Path file) throws IOException {
+            return new Ring(map(file, Files.size(file), false));
+        }
+
+        private static MappedByteBuffer map(Path file, long size, boolean create) throws IOException {
+            StandardOpenOption[] options = create
+                    ? new StandardOpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE}
+                    : new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE};
+            try (FileChannel channel = FileChannel.open(file, options)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // The mapping outlives the channel
+            }
+        }
+
+        private long writePosition() {
+            long position = buffer.getLong(WRITE_POSITION);
+            MemoryFences.acquire();
+            return position;
+        }
+
+        private long readPosition() {
+            long position = buffer.getLong(READ_POSITION);
+            MemoryFences.acquire();
+            return position;
+        }
+
+        private void publishWrite(long position) {
+            MemoryFences.release();
+            buffer.putLong(WRITE_POSITION, position);
+        }
+
+        private void publishRead(long position) {
+            MemoryFences.release();
+            buffer.putLong(READ_POSITION, position);
+        }
+
+        private boolean isClosed() {
+            return buffer.getInt(CLOSED) != 0;
+        }
+
+        private void close() {
+            MemoryFences.release();
+            buffer.putInt(CLOSED, 1);
+        }
+    }
+
+    // The consumer side, used by a single reader thread
+    private static final class RingInputStream extends InputStream {
+        private final Ring ring;
+        private final ByteBuffer view;
+        private long readPosition;
+        private long available; // Write position last seen
+
+        private RingInputStream(Ring ring) {
+            this.ring = ring;
+            view = ring.buffer.duplicate();
+            readPosition = ring.buffer.getLong(Ring.READ_POSITION);
+            available = readPosition;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!awaitBytes()) {
+                return -1;
+            }
+            int b = ring.buffer.get(Ring.DATA + (int) (readPosition & ring.mask)) & 0xff;
+            readPosition++;
+            if (readPosition == available) {
+                ring.publishRead(readPosition); // Not per byte, a waiting producer gets the room once the bytes it saw are read
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!awaitBytes()) {
+                return -1;
+            }
+            int index = (int) (readPosition & ring.mask);
+            int count = (int) Math.min(len, Math.min(available - readPosition, ring.capacity - index));
+            view.position(Ring.DATA + index);
+            view.get(b, off, count);
+            readPosition += count;
+            ring.publishRead(readPosition);
+            return count;
+        }
+
+        // Waits until a byte is published, false at the end of the stream
+        private boolean awaitBytes() {
+            int attempt = 0;
+            while (available == readPosition) {
+                available = ring.writePosition();
+                if (available != readPosition) {
+                    break;
+                }
+                if (ring.isClosed()) {
+                    available = ring.writePosition(); // Bytes published before closing are still read
+                    return available != readPosition;
+                }
+                backOff(attempt++);
+            }
+            return true;
+        }
+
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, ring.writePosition() - readPosition);
+        }
+    }
+
+    // The producer side, writers serialize on the stream (MessageBusServer and RemoteMessageBus lock it)
+    private static final class RingOutputStream extends OutputStream {
+        private final Ring ring;
+        private final ByteBuffer view;
+        private long writePosition; // Written but not published before flush
+        private long freeUntil;     // Read position last seen plus the capacity
+
+        private RingOutputStream(Ring ring) {
+            this.ring = ring;
+            view = ring.buffer.duplicate();
+            writePosition = ring.buffer.getLong(Ring.WRITE_POSITION);
+            freeUntil = ring.buffer.getLong(Ring.READ_POSITION) + ring.capacity;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            awaitRoom();
+            ring.buffer.put(Ring.DATA + (int) (writePosition & ring.mask), (byte) b);
+            writePosition++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                awaitRoom();
+                int index = (int) (writePosition & ring.mask);
+                int count = (int) Math.min(len, Math.min(freeUntil - writePosition, ring.capacity - index));
+                view.position(Ring.DATA + index);
+                view.put(b, off, count);
+                writePosition += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        // Waits until the reader freed room for a byte at least
+        private void awaitRoom() throws IOException {
+            int attempt = 0;
+            while (writePosition == freeUntil) {
+                flush(); // The reader cannot free room for bytes it does not see
+                freeUntil = ring.readPosition() + ring.capacity;
+                if (writePosition != freeUntil) {
+                    break;
+                }
+                if (ring.isClosed()) {
+                    throw new IOException("Shared memory ring closed");
+                }
+                backOff(attempt++);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (ring.isClosed()) {
+                throw new IOException("Shared memory ring closed");
+            }
+            ring.publishWrite(writePosition);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package bgu.spl.mics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * The micro-services subscribed to a single {@link Event} type.
+ * <p>
+ * Subscribers are kept in an immutable array that is replaced on every
+ * subscribe/unsubscribe (the rare slow path, serialized by a lock whose
+ * contention is counted).
+ * Picking the next subscriber only reads the array and asks the group's
+ * {@link RoutingStrategy} (round-robin unless set otherwise), so
+ * {@link MessageBusImpl#sendEvent(Event)} does not lock.
+ */
+final class SubscriberGroup {
+
+    private static final MicroService[] EMPTY = new MicroService[0];
+
+    private volatile MicroService[] subscribers = EMPTY;
+    private volatile RoutingStrategy strategy = RoutingStrategy.roundRobin();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Shared by the groups of a bus, counts the (un)subscribes that found the lock held
+    private final LongAdder contention;
+
+    SubscriberGroup(LongAdder contention) {
+        this.contention = contention;
+    }
+
+    /**
+     * Adds {@code m} to the group, subscribing twice has no effect.
+     */
+    void add(MicroService m) {
+        acquire();
+        try {
+            MicroService[] current = subscribers;
+            for (MicroService s : current) {
+                if (s == m) {
+                    return;
+                }
+            }
+            MicroService[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = m;
+            subscribers = next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes {@code m} from the group if it is subscribed.
+     */
+    void remove(MicroService m) {
+        acquire();
+        try {
+            MicroService[] current = subscribers;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == m) {
+                    MicroService[] next = new MicroService[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    subscribers = next;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire() {
+        if (!lock.tryLock()) {
+            contention.increment();
+            lock.lock();
+        }
+    }
+
+    void setStrategy(RoutingStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param load the current load of a subscriber, for strategies that look at it.
+     * @param key  the routing key of a {@link KeyedEvent}, null for other events.
+     * @return the subscriber chosen by the strategy, null if the group is empty.
+     */
+    MicroService next(ToIntFunction<MicroService> load, Object key) {
+        MicroService[] current = subscribers;
+        if (current.length == 0) {
+            return null;
+        }
+        return key == null ? strategy.select(current, load) : strategy.select(current, load, key);
+    }
+}
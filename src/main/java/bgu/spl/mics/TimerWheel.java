@@ -0,0 +1,155 @@
+package bgu.spl.mics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel running the expiry of event deadlines on a single
+ * daemon thread.
+ * <p>
+ * Time is cut into ticks of {@value #TICK_MILLIS} ms and a task is put in the
+ * bucket of the tick it is due in, modulo the wheel size, so scheduling and
+ * cancelling cost O(1) whatever the number of pending deadlines. Every tick
+ * the thread visits one bucket and runs the tasks that are due, the others
+ * wait for a later turn of the wheel. A cancelled task only drops its
+ * references, the wheel forgets it the next time its bucket is visited.
+ * <p>
+ * Tasks run on the timer thread and must be short. The thread parks without
+ * a deadline while nothing is scheduled.
+ */
+final class TimerWheel {
+
+    static final long TICK_MILLIS = 10;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private static final int WHEEL_SIZE = 512; // A power of two, one turn is about 5 seconds
+
+    private static class TimerWheelHolder {
+        private static final TimerWheel instance = new TimerWheel("MessageBus timer");
+    }
+
+    private final String threadName;
+    private final long startNanos = System.nanoTime();
+    // Scheduled by any thread, moved to the buckets by the timer thread
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    // Owned by the timer thread
+    private final List<List<Timeout>> buckets = new ArrayList<>(WHEEL_SIZE);
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread thread;
+    private volatile boolean idle;
+    private long processedTick = -1;
+    private int pending; // Timeouts in the buckets, owned by the timer thread
+
+    private TimerWheel(String threadName) {
+        this.threadName = threadName;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            buckets.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * @return the wheel shared by all message buses.
+     */
+    static TimerWheel getInstance() {
+        return TimerWheelHolder.instance;
+    }
+
+    /**
+     * Runs {@code task} on the timer thread once {@code delay} has passed,
+     * rounded up to the next tick.
+     * <p>
+     * @return the handle to cancel the task with.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadlineNanos = System.nanoTime() - startNanos + unit.toNanos(delay);
+        Timeout timeout = new Timeout(task, (deadlineNanos + TICK_NANOS - 1) / TICK_NANOS);
+        added.add(timeout);
+        if (started.compareAndSet(false, true)) {
+            Thread timer = new Thread(this::run, threadName);
+            timer.setDaemon(true);
+            thread = timer;
+            timer.start();
+        } else if (idle) {
+            LockSupport.unpark(thread);
+        }
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long currentTick = (System.nanoTime() - startNanos) / TICK_NANOS;
+            transferAdded();
+            // After a late wake-up every bucket may hold due tasks, but none needs more than one visit
+            long firstTick = Math.max(processedTick + 1, currentTick - WHEEL_SIZE + 1);
+            for (long tick = firstTick; tick <= currentTick; tick++) {
+                expire(buckets.get((int) (tick & (WHEEL_SIZE - 1))), currentTick);
+            }
+            processedTick = currentTick;
+            if (pending == 0) {
+                idle = true;
+                if (added.isEmpty()) {
+                    LockSupport.park(this); // A schedule that saw idle unparks, one that did not left its timeout in added
+                }
+                idle = false;
+            } else {
+                LockSupport.parkNanos(this, startNanos + (currentTick + 1) * TICK_NANOS - System.nanoTime());
+            }
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.task != null) {
+                // A deadline already behind goes to the next visited bucket
+                long tick = Math.max(timeout.deadlineTick, processedTick + 1);
+                buckets.get((int) (tick & (WHEEL_SIZE - 1))).add(timeout);
+                pending++;
+            }
+        }
+    }
+
+    private void expire(List<Timeout> bucket, long currentTick) {
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            Timeout timeout = it.next();
+            Runnable task = timeout.task;
+            if (task == null || timeout.deadlineTick <= currentTick) {
+                it.remove();
+                pending--;
+                if (task != null) {
+                    timeout.task = null;
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Logger.error("Timer task failed: {}", e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A scheduled task, see {@link #schedule}.
+     */
+    static final class Timeout {
+        private volatile Runnable task;
+        private final long deadlineTick;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Prevents the task from running if it has not run yet.
+         */
+        void cancel() {
+            task = null;
+        }
+    }
+}
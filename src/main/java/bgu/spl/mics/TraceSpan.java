@@ -0,0 +1,77 @@
+package bgu.spl.mics;
+
+/**
+ * One hop of a trace: the trace id and the {@link System#nanoTime()} at which
+ * a {@link TracedEvent} was queued, dequeued, and handled.
+ * <p>
+ * The times are written by the sender before the event is queued and by the
+ * receiving micro-service's thread afterwards, the mailbox orders them. They
+ * are 0 until set, and are not sent to other processes (see
+ * {@link RemoteMessageBus}), only the trace id is.
+ */
+public final class TraceSpan {
+
+    private final long traceId;
+    // The tracer of the bus the event was sent through, null until then
+    private transient Tracer tracer;
+    private transient long enqueuedAt;
+    private transient long dequeuedAt;
+    private transient long startedAt;
+    private transient long endedAt;
+
+    /**
+     * @param traceId the id of the chain the event belongs to, see {@link Tracer#begin()}, 0 for none.
+     */
+    public TraceSpan(long traceId) {
+        this.traceId = traceId;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    public long getDequeuedAt() {
+        return dequeuedAt;
+    }
+
+    /**
+     * @return when the receiving callback started, the time the event reached its handler.
+     */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getEndedAt() {
+        return endedAt;
+    }
+
+    // The span of m, null if m is not traced
+    static TraceSpan of(Message m) {
+        return m instanceof TracedEvent ? ((TracedEvent<?>) m).getTrace() : null;
+    }
+
+    void enqueued(Tracer tracer) {
+        this.tracer = tracer;
+        enqueuedAt = System.nanoTime();
+    }
+
+    void dequeued() {
+        dequeuedAt = System.nanoTime();
+    }
+
+    void started() {
+        startedAt = System.nanoTime();
+    }
+
+    // Records the stages of the hop, unless the event was handled without going through a bus
+    void ended(Class<?> type) {
+        endedAt = System.nanoTime();
+        if (tracer != null && dequeuedAt != 0) {
+            tracer.recordHop(type, this);
+        }
+    }
+}
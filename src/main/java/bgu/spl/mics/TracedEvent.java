@@ -0,0 +1,20 @@
+package bgu.spl.mics;
+
+/**
+ * An {@link Event} whose way through the message-bus is timed: the bus stamps
+ * its {@link TraceSpan} when it is queued and dequeued, the receiving
+ * micro-service when its callback starts and ends, and the stages are
+ * recorded in the {@link Tracer} of the bus.
+ * <p>
+ * Events of one causal chain (a camera frame, the tracked objects computed
+ * from it) carry spans with the same trace id, so the chain can be timed
+ * from its first sender to its last handler with {@link Tracer#begin()} and
+ * {@link Tracer#end(long, String)}.
+ */
+public interface TracedEvent<T> extends Event<T> {
+
+    /**
+     * @return the span of this event, the same instance on every call.
+     */
+    TraceSpan getTrace();
+}
@@ -0,0 +1,100 @@
+package bgu.spl.mics;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms per stage of the traced events of a
+ * {@link MessageBusImpl} (see {@link MessageBusImpl#getTracer()}).
+ * <p>
+ * Every hop of a {@link TracedEvent} records three stages named after the
+ * event's class: {@code queued} from enqueue to dequeue, {@code dispatch}
+ * from dequeue to the start of the callback (the wait behind the rest of a
+ * drained batch), and {@code handler} for the callback itself. The
+ * application records its own stages with {@link #record}, and times whole
+ * chains with {@link #begin()} and {@link #end}.
+ * <p>
+ * A chain that cannot reach its end is forgotten without being recorded:
+ * the bus abandons the chain of a traced event that has no subscriber, or
+ * whose Future is failed (cancelled, expired, dropped by a full mailbox).
+ */
+public final class Tracer {
+
+    private final AtomicLong lastTraceId = new AtomicLong();
+    // Start time of the chains begun and not ended yet, by trace id
+    private final Map<Long, Long> startTimes = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> stages = new ConcurrentHashMap<>();
+    // Stage names in the order they were first recorded, roughly the order of the pipeline
+    private final List<String> stageOrder = new CopyOnWriteArrayList<>();
+    // The queued, dispatch and handler stage names per event class, so recording a hop does not build strings
+    private final Map<Class<?>, String[]> hopStages = new ConcurrentHashMap<>();
+
+    Tracer() {
+    }
+
+    /**
+     * Starts a chain now.
+     * <p>
+     * @return its trace id, never 0.
+     */
+    public long begin() {
+        long traceId = lastTraceId.incrementAndGet();
+        startTimes.put(traceId, System.nanoTime());
+        return traceId;
+    }
+
+    /**
+     * Records the time since {@link #begin()} returned {@code traceId} in
+     * {@code stage}, and forgets the chain. Does nothing for a chain already
+     * ended, or not begun by this tracer (a trace id of 0).
+     */
+    public void end(long traceId, String stage) {
+        Long startedAt = startTimes.remove(traceId);
+        if (startedAt != null) {
+            record(stage, System.nanoTime() - startedAt);
+        }
+    }
+
+    // Forgets a chain that will never end
+    void abandon(long traceId) {
+        startTimes.remove(traceId);
+    }
+
+    public void record(String stage, long nanos) {
+        LatencyHistogram histogram = stages.get(stage);
+        if (histogram == null) {
+            synchronized (stageOrder) {
+                histogram = stages.get(stage);
+                if (histogram == null) {
+                    histogram = new LatencyHistogram();
+                    stages.put(stage, histogram);
+                    stageOrder.add(stage);
+                }
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    void recordHop(Class<?> type, TraceSpan span) {
+        String[] names = hopStages.computeIfAbsent(type,
+                t -> new String[] {t.getSimpleName() + " queued", t.getSimpleName() + " dispatch", t.getSimpleName() + " handler"});
+        record(names[0], span.getDequeuedAt() - span.getEnqueuedAt());
+        record(names[1], span.getStartedAt() - span.getDequeuedAt());
+        record(names[2], span.getEndedAt() - span.getStartedAt());
+    }
+
+    /**
+     * @return a copy of the histogram of every stage, in the order they were first recorded.
+     */
+    public Map<String, LatencyHistogram> getStages() {
+        Map<String, LatencyHistogram> copy = new LinkedHashMap<>();
+        for (String stage : stageOrder) {
+            copy.put(stage, stages.get(stage).snapshot());
+        }
+        return copy;
+    }
+}
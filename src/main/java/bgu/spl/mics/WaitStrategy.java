@@ -0,0 +1,16 @@
+package bgu.spl.mics;
+
+/**
+ * How the owner of a {@link MailboxType#LOCK_FREE} mailbox waits in
+ * {@link MessageBus#awaitMessage(MicroService)} while its mailbox is empty.
+ * The strategies trade CPU time for the latency between a send and the
+ * owner seeing the message.
+ */
+public enum WaitStrategy {
+    /** Parks at once until a sender unparks it. Uses no CPU while idle, the default. */
+    PARK,
+    /** Busy-spins for a short while, then parks. Catches messages that follow each other closely. */
+    SPIN_THEN_PARK,
+    /** Keeps yielding the processor until a message arrives. Lowest latency, keeps a core busy. */
+    YIELD
+}
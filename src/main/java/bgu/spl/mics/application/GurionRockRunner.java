@@ -2,16 +2,33 @@ package bgu.spl.mics.application;
 
 import java.io.File;
 import java.io.FileReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import bgu.spl.mics.Event;
 import bgu.spl.mics.MessageBus;
+import bgu.spl.mics.Logger;
+import bgu.spl.mics.MailboxType;
 import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MessagePriority;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.MicroServiceScheduler;
+import bgu.spl.mics.MicroServiceScheduler.ExecutionMode;
+import bgu.spl.mics.OverflowPolicy;
+import bgu.spl.mics.RoutingStrategy;
+import bgu.spl.mics.WaitStrategy;
+import bgu.spl.mics.application.messages.CrashedBroadcast;
+import bgu.spl.mics.application.messages.DetectObjectsEvent;
 import bgu.spl.mics.application.objects.Camera;
 import bgu.spl.mics.application.objects.DetectedObject;
 import bgu.spl.mics.application.objects.FusionSlam;
@@ -45,134 +62,288 @@ public class GurionRockRunner {
      *
      * @param args Command-line arguments. The first argument is expected to be the path to the configuration file.
      */
-     @SuppressWarnings("unused") //It is created only to the singletones
     public static void main(String[] args) {
         
         String configPath = args[0];
-        CountDownLatch initializationLatch;
         //Main thread
         Thread.currentThread().setName("Main Thread");
-        System.out.println(Thread.currentThread().getName() + " was started <-----------------");
+        Logger.info("{} was started", Thread.currentThread().getName());
         try {
-            // Initialize MessageBus 
-            MessageBus messageBus = MessageBusImpl.getInstance();
-
-            // Initialize Statistical Folder
-            StatisticalFolder statisticalFolder = StatisticalFolder.getInstance() ;
-
-            // Parse configuration file
-            JsonObject config = JsonParser.parseReader(new FileReader(configPath)).getAsJsonObject();
-
-            // Get the base directory of the configuration file
-            File configFile = new File(configPath);
-            String baseDir = configFile.getParent(); // Get the parent directory
-
-            // Parse Cameras + services
-            List<Camera> cameras = new ArrayList<>();
-            List<MicroService> services = new ArrayList<>();
-            // Access the "Cameras" object
-            JsonObject camerasObject = config.getAsJsonObject("Cameras");
-
-            // Get the "camera_datas_path" field and resolve its absolute path
-            String cameraDataPath = new File(baseDir, camerasObject.get("camera_datas_path").getAsString()).getAbsolutePath();
-
-            // Get the "CamerasConfigurations" array
-            JsonArray cameraConfigurations = camerasObject.getAsJsonArray("CamerasConfigurations");
-
-            cameraConfigurations.forEach(cameraConfig -> {
-                JsonObject cameraJson = cameraConfig.getAsJsonObject();
-                Camera camera = new Camera(
-                        cameraJson.get("id").getAsInt(),
-                        cameraJson.get("frequency").getAsInt(),
-                        STATUS.UP,
-                        fromCameraJsonToDetectedObjects(cameraDataPath,cameraJson.get("camera_key").getAsString())
-                      
-                );
-                
-                cameras.add(camera);
-            });
+            run(configPath, RunContext.getDefault());
+        } catch (Exception e) {
+            Logger.error("Failed to initialize simulation. Error: {}", e.getMessage(), e);
+        }
+    }
 
-            // Initializing cameraCount
-            cameraCount.getInstance().setCameraCount(cameras.size());
+    /**
+     * Runs the simulation of the configuration file {@code configPath} with the
+     * bus and state objects of {@code context}, and returns once all its
+     * services terminated. The output file is written next to the configuration
+     * file. Runs with different contexts (see {@link RunContext#create()}) and
+     * configuration directories may run in parallel in one JVM.
+     */
+    public static void run(String configPath, RunContext context) throws Exception {
+        CountDownLatch initializationLatch;
+        // The run's MessageBus
+        MessageBusImpl messageBus = context.getMessageBus();
 
-            // Access the "LiDarWorkers" object
-            JsonObject lidarWorkersObject = config.getAsJsonObject("LiDarWorkers");
+        // Parse configuration file
+        JsonObject config = JsonParser.parseReader(new FileReader(configPath)).getAsJsonObject();
 
-            // Get the "lidars_data_path" field and resolve its absolute path
-            String lidarDataPath = new File(baseDir, lidarWorkersObject.get("lidars_data_path").getAsString()).getAbsolutePath();
+        // Get the base directory of the configuration file
+        File configFile = new File(configPath);
+        String baseDir = configFile.getParent(); // Get the parent directory
 
-            LiDarDataBase liDarDataBase = LiDarDataBase.getInstance(lidarDataPath);
+        // Optional mailbox capacities and overflow policies
+        configureMailboxes(config, messageBus);
 
-            // Get the "LidarConfigurations" array
-            JsonArray lidarConfigurations = lidarWorkersObject.getAsJsonArray("LidarConfigurations");
+        // Optional routing strategies per event type
+        configureRouting(config, messageBus);
 
-            // Parse LiDAR Workers
-            List<LiDarWorkerTracker> lidarWorkers = new ArrayList<>();
-            lidarConfigurations.forEach(lidarConfig -> {
-                JsonObject lidarJson = lidarConfig.getAsJsonObject();
-                LiDarWorkerTracker worker = new LiDarWorkerTracker(
-                        lidarJson.get("id").getAsInt(),
-                        lidarJson.get("frequency").getAsInt(),
-                        STATUS.UP,
-                        new ArrayList<>()
-                );
-                lidarWorkers.add(worker);
-            });
+        // Optional tick timing, counting the outstanding messages must start before the services register
+        TimeService.Mode timeMode = timeModeOf(config);
+        if (timeMode == TimeService.Mode.AS_FAST_AS_POSSIBLE) {
+            messageBus.trackQuiescence();
+        }
 
-            // Create latch for initialization synchronization
-            initializationLatch = new CountDownLatch(cameras.size() + lidarWorkers.size() + 2); // +2 for FusionSlamService and PoseService
+        // A crash overtakes queued ticks and frames. TerminatedBroadcasts stay in order:
+        // the sensors' ones must arrive after the frames they sent before terminating.
+        messageBus.setMessagePriority(CrashedBroadcast.class, MessagePriority.CONTROL);
+
+        // Parse Cameras + services
+        List<Camera> cameras = new ArrayList<>();
+        List<MicroService> services = new ArrayList<>();
+        // Access the "Cameras" object
+        JsonObject camerasObject = config.getAsJsonObject("Cameras");
+
+        // Get the "camera_datas_path" field and resolve its absolute path
+        String cameraDataPath = new File(baseDir, camerasObject.get("camera_datas_path").getAsString()).getAbsolutePath();
+
+        // Get the "CamerasConfigurations" array
+        JsonArray cameraConfigurations = camerasObject.getAsJsonArray("CamerasConfigurations");
+
+        cameraConfigurations.forEach(cameraConfig -> {
+            JsonObject cameraJson = cameraConfig.getAsJsonObject();
+            Camera camera = new Camera(
+                    cameraJson.get("id").getAsInt(),
+                    cameraJson.get("frequency").getAsInt(),
+                    STATUS.UP,
+                    fromCameraJsonToDetectedObjects(cameraDataPath,cameraJson.get("camera_key").getAsString())
+                  
+            );
+            
+            cameras.add(camera);
+        });
 
-            // Add Camera Services
-            cameras.forEach(camera -> {
-                services.add(new CameraService(camera, initializationLatch, "camera" + camera.getId()));
-            });
+        // Initializing cameraCount
+        context.getCameraCount().setCameraCount(cameras.size());
 
-            // Add LiDAR Services
-            lidarWorkers.forEach(worker -> {
-                MicroService LiDarService = new LiDarService(worker, initializationLatch);
-                services.add(LiDarService);
-            });
+        // Access the "LiDarWorkers" object
+        JsonObject lidarWorkersObject = config.getAsJsonObject("LiDarWorkers");
 
+        // Get the "lidars_data_path" field and resolve its absolute path
+        String lidarDataPath = new File(baseDir, lidarWorkersObject.get("lidars_data_path").getAsString()).getAbsolutePath();
 
-            // Initialize Fusion Slam (Singleton)
-            FusionSlam fusionSlam = FusionSlam.getInstance();
-            services.add(new FusionSlamService(fusionSlam, initializationLatch, cameras.size() + lidarWorkers.size(), configPath)); 
+        context.getLiDarDataBase().loadData(lidarDataPath);
+
+        // Get the "LidarConfigurations" array
+        JsonArray lidarConfigurations = lidarWorkersObject.getAsJsonArray("LidarConfigurations");
+
+        // Parse LiDAR Workers
+        List<LiDarWorkerTracker> lidarWorkers = new ArrayList<>();
+        lidarConfigurations.forEach(lidarConfig -> {
+            JsonObject lidarJson = lidarConfig.getAsJsonObject();
+            LiDarWorkerTracker worker = new LiDarWorkerTracker(
+                    lidarJson.get("id").getAsInt(),
+                    lidarJson.get("frequency").getAsInt(),
+                    STATUS.UP,
+                    new ArrayList<>()
+            );
+            lidarWorkers.add(worker);
+        });
+
+        // Create latch for initialization synchronization
+        initializationLatch = new CountDownLatch(cameras.size() + lidarWorkers.size() + 2); // +2 for FusionSlamService and PoseService
+
+        // Add Camera Services
+        cameras.forEach(camera -> {
+            services.add(new CameraService(camera, initializationLatch, "camera" + camera.getId(), context));
+        });
+
+        // Add LiDAR Services
+        lidarWorkers.forEach(worker -> {
+            MicroService LiDarService = new LiDarService(worker, initializationLatch, context);
+            services.add(LiDarService);
+        });
+
+
+        // The run's Fusion Slam
+        FusionSlam fusionSlam = context.getFusionSlam();
+        services.add(new FusionSlamService(fusionSlam, initializationLatch, cameras.size() + lidarWorkers.size(), configPath, context)); 
 
-            
-            // Get the "poseJsonFile" field and resolve its absolute path
-            String poseDataPath = new File(baseDir, config.get("poseJsonFile").getAsString()).getAbsolutePath();
-            services.add(new PoseService(new GPSIMU(0, STATUS.UP, fromPoseJsonToPosesList(poseDataPath)), initializationLatch));
-
-
-
-            // Start the Services
-            services.forEach(service -> {
-                Thread serviceThread = new Thread(service);
-                serviceThread.setName(service.getName() + " Thread");
-                serviceThread.start();
-                System.out.println("Thread "+ serviceThread.getName() + " was started");
-            });
-
-            // Wait for all services to initialize
-            initializationLatch.await();
-
-            // Start the TimeService after all services are ready
-            int tickTime = config.get("TickTime").getAsInt();
-            int duration = config.get("Duration").getAsInt();
-            TimeService timeService = new TimeService(tickTime, duration);
-            Thread timeServiceThread = new Thread(timeService);
-            timeServiceThread.setName("Time service thread");
-            System.out.println("Thread "+ timeServiceThread.getName() + " was started");
-            timeServiceThread.start();
         
+        // Get the "poseJsonFile" field and resolve its absolute path
+        String poseDataPath = new File(baseDir, config.get("poseJsonFile").getAsString()).getAbsolutePath();
+        services.add(new PoseService(new GPSIMU(0, STATUS.UP, fromPoseJsonToPosesList(poseDataPath)), initializationLatch, context));
 
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Failed to initialize simulation. Error: " + e.getMessage());
-        }
+
+        // Start the Services, on their own threads or on a shared pool
+        MicroServiceScheduler scheduler = createScheduler(config, messageBus);
+        services.forEach(scheduler::start);
+
+        // Wait for all services to initialize
+        initializationLatch.await();
+
+        // Start the TimeService after all services are ready
+        long tickNanos = tickNanosOf(config);
+        int duration = config.get("Duration").getAsInt();
+        TimeService timeService = new TimeService(tickNanos, TimeUnit.NANOSECONDS, duration, context, timeMode);
+        Thread timeServiceThread = new Thread(timeService);
+        timeServiceThread.setName("Time service thread");
+        Logger.debug("Thread {} was started", timeServiceThread.getName());
+        timeServiceThread.start();
+
+        // Pool and virtual threads are daemons, keep the JVM alive until the services are done
+        scheduler.awaitTermination();
+        scheduler.shutdown();
     }
     
+    /**
+     * Applies the optional "Mailboxes" section of the configuration file, e.g.
+     * {@code "Mailboxes": {"default": {"capacity": 1000, "overflow": "BLOCK"},
+     * "FusionSlamService": {"capacity": 200, "overflow": "DROP_OLDEST",
+     * "type": "lock-free", "wait": "spin-then-park"}}}.
+     * Keys are service names, "default" applies to every other service. The
+     * capacity defaults to unbounded, "type" to "locked" and "wait" to "park".
+     */
+    public static void configureMailboxes(JsonObject config, MessageBusImpl messageBus) {
+        if (!config.has("Mailboxes")) {
+            return;
+        }
+        for (Map.Entry<String, JsonElement> entry : config.getAsJsonObject("Mailboxes").entrySet()) {
+            JsonObject mailboxJson = entry.getValue().getAsJsonObject();
+            int capacity = mailboxJson.has("capacity") ? mailboxJson.get("capacity").getAsInt() : Integer.MAX_VALUE;
+            OverflowPolicy policy = mailboxJson.has("overflow")
+                    ? OverflowPolicy.valueOf(mailboxJson.get("overflow").getAsString().toUpperCase())
+                    : OverflowPolicy.BLOCK;
+            MailboxType type = mailboxJson.has("type")
+                    ? MailboxType.valueOf(enumName(mailboxJson.get("type").getAsString()))
+                    : MailboxType.LOCKED;
+            WaitStrategy waitStrategy = mailboxJson.has("wait")
+                    ? WaitStrategy.valueOf(enumName(mailboxJson.get("wait").getAsString()))
+                    : WaitStrategy.PARK;
+            String serviceName = entry.getKey().equals("default") ? null : entry.getKey();
+            messageBus.configureMailbox(serviceName, capacity, policy, type, waitStrategy);
+        }
+    }
+
+    /**
+     * Applies the optional "Routing" section of the configuration file, e.g.
+     * {@code "Routing": {"DetectObjectsEvent": "shortest-queue"}}. Keys are
+     * event classes of the application's messages package, values are
+     * "round-robin" (the default), "shortest-queue", "power-of-two" or
+     * "consistent-hash" (the frames of each camera stick to one LiDAR worker).
+     */
+    @SuppressWarnings("unchecked")
+    public static void configureRouting(JsonObject config, MessageBusImpl messageBus) throws ClassNotFoundException {
+        if (!config.has("Routing")) {
+            return;
+        }
+        for (Map.Entry<String, JsonElement> entry : config.getAsJsonObject("Routing").entrySet()) {
+            Class<?> type = Class.forName(DetectObjectsEvent.class.getPackage().getName() + "." + entry.getKey());
+            if (!Event.class.isAssignableFrom(type)) {
+                throw new IllegalArgumentException(entry.getKey() + " is not an event");
+            }
+            messageBus.setRoutingStrategy((Class<? extends Event<?>>) type, RoutingStrategy.forName(entry.getValue().getAsString()));
+        }
+    }
+
+    /**
+     * Reads the optional "TimeMode" field: "paced" (the default), one tick per
+     * TickTime, or "as-fast-as-possible", the next tick once the
+     * services handled the current one, for batch runs.
+     */
+    public static TimeService.Mode timeModeOf(JsonObject config) {
+        return config.has("TimeMode")
+                ? TimeService.Mode.valueOf(enumName(config.get("TimeMode").getAsString()))
+                : TimeService.Mode.PACED;
+    }
+
+    /**
+     * Reads the "TickTime" field in nanoseconds: a number of seconds, possibly
+     * fractional ({@code 1}, {@code 0.01}), or a string with a unit of "s",
+     * "ms", "us" or "ns" ({@code "250ms"}, {@code "500us"}).
+     */
+    public static long tickNanosOf(JsonObject config) {
+        JsonElement tickTime = config.get("TickTime");
+        if (tickTime.getAsJsonPrimitive().isNumber()) {
+            return toNanos(tickTime.getAsBigDecimal(), TimeUnit.SECONDS);
+        }
+        Matcher matcher = DURATION.matcher(tickTime.getAsString().trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid TickTime: " + tickTime);
+        }
+        return toNanos(new BigDecimal(matcher.group(1)), unitOf(matcher.group(2)));
+    }
+
+    // "250ms", "1.5 s"
+    private static final Pattern DURATION = Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*(s|ms|us|ns)");
+
+    private static TimeUnit unitOf(String symbol) {
+        switch (symbol) {
+            case "ms":
+                return TimeUnit.MILLISECONDS;
+            case "us":
+                return TimeUnit.MICROSECONDS;
+            case "ns":
+                return TimeUnit.NANOSECONDS;
+            default:
+                return TimeUnit.SECONDS;
+        }
+    }
+
+    private static long toNanos(BigDecimal amount, TimeUnit unit) {
+        long nanos = amount.multiply(BigDecimal.valueOf(unit.toNanos(1))).setScale(0, RoundingMode.HALF_UP).longValueExact();
+        if (nanos <= 0) {
+            throw new IllegalArgumentException("TickTime must be positive: " + amount + " " + unit);
+        }
+        return nanos;
+    }
+
+    /**
+     * Creates the scheduler selected by the optional "ExecutionMode" field
+     * ("threads", the default, "pooled" or "virtual") and "PoolSize" field
+     * (pool workers in pooled mode, the number of processors by default).
+     * Falls back to the pooled mode when virtual threads are not available.
+     */
+    public static MicroServiceScheduler createScheduler(JsonObject config) {
+        return createScheduler(config, (MessageBusImpl) MessageBusImpl.getInstance());
+    }
+
+    /**
+     * Same as {@link #createScheduler(JsonObject)} for the services of {@code messageBus}.
+     */
+    public static MicroServiceScheduler createScheduler(JsonObject config, MessageBusImpl messageBus) {
+        ExecutionMode mode = config.has("ExecutionMode")
+                ? ExecutionMode.valueOf(config.get("ExecutionMode").getAsString().toUpperCase())
+                : ExecutionMode.THREADS;
+        int poolSize = config.has("PoolSize")
+                ? config.get("PoolSize").getAsInt()
+                : Runtime.getRuntime().availableProcessors();
+        try {
+            return MicroServiceScheduler.create(mode, poolSize, messageBus);
+        } catch (UnsupportedOperationException e) {
+            Logger.warn("{}, using the pooled execution mode", e.getMessage());
+            return MicroServiceScheduler.create(ExecutionMode.POOLED, poolSize, messageBus);
+        }
+    }
+
+    // "spin-then-park" -> SPIN_THEN_PARK
+    private static String enumName(String value) {
+        return value.trim().replace('-', '_').toUpperCase();
+    }
+
     public static List<StampedDetectedObjects> fromCameraJsonToDetectedObjects(String filePath, String cameraKey) {
 
         List<StampedDetectedObjects> stampedDetectedObjectsList = new ArrayList<>();
@@ -205,10 +376,10 @@ public class GurionRockRunner {
                     stampedDetectedObjectsList.add(new StampedDetectedObjects(time, detectedObjects));
                 }
             } else {
-                System.err.println("Camera key '" + cameraKey + "' not found in the JSON file.");
+                Logger.error("Camera key '{}' not found in the JSON file.", cameraKey);
             }
         } catch (Exception e) {
-            System.err.println("Error reading or parsing the JSON file: " + e.getMessage());
+            Logger.error("Error reading or parsing the JSON file: {}", e.getMessage());
         }
     
         return stampedDetectedObjectsList;
@@ -237,7 +408,7 @@ public class GurionRockRunner {
                 poses.add(new Pose(x, y, yaw, time));
             }
         } catch (Exception e) {
-            System.err.println("Error parsing pose JSON file: " + e.getMessage());
+            Logger.error("Error parsing pose JSON file: {}", e.getMessage());
         }
     
         return poses;
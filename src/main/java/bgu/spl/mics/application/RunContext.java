@@ -0,0 +1,83 @@
+package bgu.spl.mics.application;
+
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.application.objects.FusionSlam;
+import bgu.spl.mics.application.objects.LastFrames;
+import bgu.spl.mics.application.objects.LiDarDataBase;
+import bgu.spl.mics.application.objects.StatisticalFolder;
+import bgu.spl.mics.application.objects.cameraCount;
+
+/**
+ * The message bus and shared state objects of one simulation run.
+ * <p>
+ * The services of a run get its context in their constructors and use its
+ * objects instead of the singletons, so several runs can share a JVM (see
+ * {@link GurionRockRunner#run(String, RunContext)}). {@link #getDefault()} is
+ * made of the {@code getInstance()} singletons, which keep working for code
+ * that does not pass a context.
+ */
+public final class RunContext {
+
+    private static class RunContextHolder {
+        private static final RunContext instance = new RunContext((MessageBusImpl) MessageBusImpl.getInstance(),
+                FusionSlam.getInstance(), StatisticalFolder.getInstance(), LiDarDataBase.getInstance(),
+                cameraCount.getInstance(), LastFrames.getInstance());
+    }
+
+    private final MessageBusImpl messageBus;
+    private final FusionSlam fusionSlam;
+    private final StatisticalFolder statisticalFolder;
+    private final LiDarDataBase liDarDataBase;
+    private final cameraCount cameraCounter;
+    private final LastFrames lastFrames;
+
+    private RunContext(MessageBusImpl messageBus, FusionSlam fusionSlam, StatisticalFolder statisticalFolder,
+            LiDarDataBase liDarDataBase, cameraCount cameraCounter, LastFrames lastFrames) {
+        this.messageBus = messageBus;
+        this.fusionSlam = fusionSlam;
+        this.statisticalFolder = statisticalFolder;
+        this.liDarDataBase = liDarDataBase;
+        this.cameraCounter = cameraCounter;
+        this.lastFrames = lastFrames;
+    }
+
+    /**
+     * @return the context of the singletons, used by the services created without a context.
+     */
+    public static RunContext getDefault() {
+        return RunContextHolder.instance;
+    }
+
+    /**
+     * @return a new context with its own message bus and empty state objects.
+     */
+    public static RunContext create() {
+        MessageBusImpl messageBus = MessageBusImpl.newInstance();
+        return new RunContext(messageBus, new FusionSlam(), new StatisticalFolder(), new LiDarDataBase(),
+                new cameraCount(0), new LastFrames());
+    }
+
+    public MessageBusImpl getMessageBus() {
+        return messageBus;
+    }
+
+    public FusionSlam getFusionSlam() {
+        return fusionSlam;
+    }
+
+    public StatisticalFolder getStatisticalFolder() {
+        return statisticalFolder;
+    }
+
+    public LiDarDataBase getLiDarDataBase() {
+        return liDarDataBase;
+    }
+
+    public cameraCount getCameraCount() {
+        return cameraCounter;
+    }
+
+    public LastFrames getLastFrames() {
+        return lastFrames;
+    }
+}
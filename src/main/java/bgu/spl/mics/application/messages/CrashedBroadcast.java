@@ -1,9 +1,9 @@
 package bgu.spl.mics.application.messages;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.application.objects.LastFrames;
 import bgu.spl.mics.application.objects.StampedDetectedObjects;
 import bgu.spl.mics.application.objects.TrackedObject;
 
@@ -11,8 +11,6 @@ public class CrashedBroadcast implements Broadcast{
     private final String errorDescription;
     private final String faultySensor;
     private final String sender;
-    private static final Map<String, StampedDetectedObjects> lastCameraFrames = new ConcurrentHashMap<>();
-    private static final Map<String, List<TrackedObject>> lastLiDarFrames = new ConcurrentHashMap<>();
 
     public CrashedBroadcast(String errorDescription, String faultySensor, String sender) {
         this.errorDescription = errorDescription;
@@ -32,21 +30,22 @@ public class CrashedBroadcast implements Broadcast{
         return sender;
     }
 
+    // The static accessors below use the frames of the default run, see LastFrames
+
     public static Map<String, StampedDetectedObjects> getLastCameraFrames() {
-        return lastCameraFrames;
+        return LastFrames.getInstance().getCameraFrames();
     }
 
     public static Map<String, List<TrackedObject>> getLastLiDarFrames() {
-        return lastLiDarFrames;
+        return LastFrames.getInstance().getLiDarFrames();
     }
 
     public static void updateLastCameraFrames(String cameraId, StampedDetectedObjects frameData) {
-        lastCameraFrames.put(cameraId, frameData);
-
+        LastFrames.getInstance().updateCameraFrame(cameraId, frameData);
     }
 
     public static void updateLastLiDarFrames(String lidarId, List<TrackedObject> frameData) {
-        lastLiDarFrames.put(lidarId, frameData);
+        LastFrames.getInstance().updateLiDarFrame(lidarId, frameData);
     }
 
 }
@@ -1,18 +1,42 @@
 package bgu.spl.mics.application.messages;
 
-import bgu.spl.mics.Event;
+import bgu.spl.mics.KeyedEvent;
+import bgu.spl.mics.TraceSpan;
+import bgu.spl.mics.TracedEvent;
 import bgu.spl.mics.application.objects.StampedDetectedObjects;
 
 
 
 
-public class DetectObjectsEvent implements Event<Boolean> {
+public class DetectObjectsEvent implements KeyedEvent<Boolean>, TracedEvent<Boolean> {
     private final StampedDetectedObjects detectedObjects; // List of detected objects 
     private final int time; // Time T when the objects were detected
+    private final String camera; // The sending camera, the routing key
+    private final int sentAt; // The tick the camera sent it at
+    private final TraceSpan trace; // Carries the trace id of the frame
 
     public DetectObjectsEvent(StampedDetectedObjects detectedObjects, int time) {
+        this(detectedObjects, time, null);
+    }
+
+    /**
+     * @param camera the name of the sending camera. Under consistent-hash
+     *               routing the frames of a camera, which keep showing the
+     *               same objects, all go to the same LiDAR worker.
+     */
+    public DetectObjectsEvent(StampedDetectedObjects detectedObjects, int time, String camera) {
+        this(detectedObjects, time, camera, time);
+    }
+
+    /**
+     * @param sentAt the tick the camera sent the frame at, its detection time plus the camera's frequency.
+     */
+    public DetectObjectsEvent(StampedDetectedObjects detectedObjects, int time, String camera, int sentAt) {
         this.detectedObjects = detectedObjects;
         this.time = time;
+        this.camera = camera;
+        this.sentAt = sentAt;
+        trace = new TraceSpan(detectedObjects == null ? 0 : detectedObjects.getTraceId());
     }
 
     public StampedDetectedObjects getDetectedObjects() {
@@ -22,5 +46,19 @@ public class DetectObjectsEvent implements Event<Boolean> {
     public int getTime() {
         return time;
     }
+
+    public int getSentAt() {
+        return sentAt;
+    }
+
+    @Override
+    public Object getRoutingKey() {
+        return camera;
+    }
+
+    @Override
+    public TraceSpan getTrace() {
+        return trace;
+    }
 }
 
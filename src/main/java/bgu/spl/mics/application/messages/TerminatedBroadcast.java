@@ -4,13 +4,26 @@ import bgu.spl.mics.Broadcast;
 
 public class TerminatedBroadcast implements Broadcast{
     String sender;
+    private final int tick; // The tick the sender terminated at, -1 if not known
 
    public TerminatedBroadcast(String sender) {
+    this(sender, -1);
+   }
+
+   /**
+    * @param tick the tick at which the sender terminated.
+    */
+   public TerminatedBroadcast(String sender, int tick) {
     this.sender = sender;
+    this.tick = tick;
    }
 
    public String getSender(){
     return sender;
    }
 
+   public int getTick(){
+    return tick;
+   }
+
 }
@@ -2,19 +2,34 @@ package bgu.spl.mics.application.messages;
 
 import java.util.List;
 
-import bgu.spl.mics.Event;
+import bgu.spl.mics.TraceSpan;
+import bgu.spl.mics.TracedEvent;
 import bgu.spl.mics.application.objects.TrackedObject;
 
-public class TrackedObjectsEvent implements Event<Void> {
+public class TrackedObjectsEvent implements TracedEvent<Void> {
     
     private List<TrackedObject> trackedObjects;
+    private final TraceSpan trace;
 
     public TrackedObjectsEvent(List<TrackedObject> trackedObjects) {
+        this(trackedObjects, 0);
+    }
+
+    /**
+     * @param traceId the trace of the camera frame the objects were tracked from.
+     */
+    public TrackedObjectsEvent(List<TrackedObject> trackedObjects, long traceId) {
         this.trackedObjects = trackedObjects;
+        trace = new TraceSpan(traceId);
     }
 
     public List<TrackedObject> getTrackedObjects() {
         return trackedObjects;
     }
 
+    @Override
+    public TraceSpan getTrace() {
+        return trace;
+    }
+
 }
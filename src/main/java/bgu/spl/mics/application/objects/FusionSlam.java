@@ -7,7 +7,8 @@ import java.util.concurrent.CopyOnWriteArrayList;
 /**
  * Manages the fusion of sensor data for simultaneous localization and mapping (SLAM).
  * Combines data from multiple sensors (e.g., LiDAR, camera) to build and update a global map.
- * Implements the Singleton pattern to ensure a single instance of FusionSlam exists.
+ * {@link #getInstance()} is the instance of the default run, a RunContext of
+ * another simulation creates its own.
  */
 public class FusionSlam {
     private static class FusionSlamHolder{
@@ -21,7 +22,7 @@ public class FusionSlam {
     private boolean working;
 
     
-    private FusionSlam() {
+    public FusionSlam() {
         this.landmarks = new ArrayList<>();
         this.poses = new ArrayList<>();
         this.working = true;
@@ -126,4 +127,4 @@ public void updateLandmark(TrackedObject trackedObject) {
     }
 }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,39 @@
+package bgu.spl.mics.application.objects;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last frame each sensor handled, recorded when a CrashedBroadcast stops
+ * the sensors and written to the error output by the FusionSlamService.
+ */
+public class LastFrames {
+    private static class LastFramesHolder{
+        // Instance of the default run
+        private static LastFrames instance = new LastFrames();
+    }
+
+    private final Map<String, StampedDetectedObjects> cameraFrames = new ConcurrentHashMap<>();
+    private final Map<String, List<TrackedObject>> liDarFrames = new ConcurrentHashMap<>();
+
+    public static LastFrames getInstance() {
+        return LastFramesHolder.instance;
+    }
+
+    public Map<String, StampedDetectedObjects> getCameraFrames() {
+        return cameraFrames;
+    }
+
+    public Map<String, List<TrackedObject>> getLiDarFrames() {
+        return liDarFrames;
+    }
+
+    public void updateCameraFrame(String cameraId, StampedDetectedObjects frameData) {
+        cameraFrames.put(cameraId, frameData);
+    }
+
+    public void updateLiDarFrame(String lidarId, List<TrackedObject> frameData) {
+        liDarFrames.put(lidarId, frameData);
+    }
+}
@@ -10,6 +10,8 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import bgu.spl.mics.Logger;
+
 /**
  * LiDarDataBase is a singleton class responsible for managing LiDAR data.
  * It provides access to cloud point data and other relevant information for tracked objects.
@@ -23,7 +25,10 @@ public class LiDarDataBase {
 
     private List<StampedCloudPoints> cloudPoints;
 
-    private LiDarDataBase() {
+    /**
+     * Creates an empty database, {@link #getInstance()} is the one of the default run.
+     */
+    public LiDarDataBase() {
         this.cloudPoints = new CopyOnWriteArrayList<>();
     }
 
@@ -41,7 +46,10 @@ public class LiDarDataBase {
     }
 
 
-    private void loadData(String filePath) {
+    /**
+     * Replaces the cloud points with the ones in the LiDAR data file {@code filePath}.
+     */
+    public void loadData(String filePath) {
         Gson gson = new Gson();
         try (FileReader reader = new FileReader(filePath)) {
             Type listType = new TypeToken<List<StampedCloudPoints>>() {}.getType();
@@ -50,7 +58,7 @@ public class LiDarDataBase {
                 this.cloudPoints = loadedCloudPoints;
             }
         } catch (IOException e) {
-            System.err.println("Error loading LiDAR data: " + e.getMessage());
+            Logger.error("Error loading LiDAR data: {}", e.getMessage());
         }
     }
 
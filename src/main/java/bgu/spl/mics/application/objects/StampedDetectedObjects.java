@@ -9,6 +9,8 @@ import java.util.List;
 public class StampedDetectedObjects {
     private int time;
     private List<DetectedObject> detectedObjects;
+    // The trace of the frame, 0 until the camera sends it, not part of the output
+    private transient long traceId;
 
     public StampedDetectedObjects(int time, List<DetectedObject> detectedObjects) {
         this.time = time;
@@ -22,4 +24,12 @@ public class StampedDetectedObjects {
     public List<DetectedObject> getDetectedObjects() {
         return detectedObjects;
     }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(long traceId) {
+        this.traceId = traceId;
+    }
 }
@@ -2,6 +2,8 @@ package bgu.spl.mics.application.objects;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+import bgu.spl.mics.LatencyHistogram;
+
 /**
  * Holds statistical information about the system's operation.
  * This class aggregates metrics such as the runtime of the system,
@@ -12,6 +14,8 @@ public class StatisticalFolder {
     private final AtomicInteger numDetectedObjects;
     private final AtomicInteger numTrackedObjects;
     private final AtomicInteger numLandmarks;
+    private volatile LatencyHistogram tickJitter = new LatencyHistogram(); // Lateness of each paced tick
+    private final AtomicInteger tickOverruns = new AtomicInteger(); // Ticks late by a whole period or more
 
 
     private static class StatisticalFolderHolder{
@@ -23,6 +27,10 @@ public class StatisticalFolder {
         return StatisticalFolderHolder.instance;
         }
     
+        public StatisticalFolder() {
+            this(0, 0, 0, 0);
+        }
+
         private StatisticalFolder(int systemRuntime, int numDetectedObjects, int numTrackedObjects, int numLandmarks) {
             this.systemRuntime =  new AtomicInteger(systemRuntime);
             this.numDetectedObjects =  new AtomicInteger(numDetectedObjects);
@@ -48,6 +56,15 @@ public class StatisticalFolder {
             return numLandmarks.get();
         }
 
+        // How late the paced ticks were sent after their deadlines
+        public LatencyHistogram getTickJitter() {
+            return tickJitter.snapshot();
+        }
+
+        public int getTickOverruns() {
+            return tickOverruns.get();
+        }
+
         // Setters
 
         public void incrementSystemRuntime(int increment) {
@@ -66,11 +83,24 @@ public class StatisticalFolder {
             numLandmarks.addAndGet(increment);
         }
 
+        /**
+         * Records a tick sent {@code latenessNanos} after its deadline, an
+         * overrun if it missed the deadline of the next tick too.
+         */
+        public void recordTick(long latenessNanos, long periodNanos) {
+            tickJitter.record(latenessNanos);
+            if (latenessNanos >= periodNanos) {
+                tickOverruns.incrementAndGet();
+            }
+        }
+
         public void reset(){
              systemRuntime.set(0);
              numDetectedObjects.set(0);
              numTrackedObjects.set(0);
              numLandmarks.set(0);
+             tickJitter = new LatencyHistogram();
+             tickOverruns.set(0);
         }
     
 }
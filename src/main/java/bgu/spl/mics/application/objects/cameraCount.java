@@ -7,7 +7,7 @@ public class cameraCount {
         private static cameraCount instance = new cameraCount(0);
     }
     private AtomicInteger cameras;
-    private cameraCount(int cameras){
+    public cameraCount(int cameras){
         this.cameras = new AtomicInteger(cameras);
     }
     public static cameraCount getInstance(){
@@ -3,9 +3,13 @@ package bgu.spl.mics.application.services;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import bgu.spl.mics.Future;
+import bgu.spl.mics.Logger;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.RunContext;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
 import bgu.spl.mics.application.messages.DetectObjectsEvent;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
@@ -14,7 +18,6 @@ import bgu.spl.mics.application.objects.Camera;
 import bgu.spl.mics.application.objects.DetectedObject;
 import bgu.spl.mics.application.objects.STATUS;
 import bgu.spl.mics.application.objects.StampedDetectedObjects;
-import bgu.spl.mics.application.objects.StatisticalFolder;
 import bgu.spl.mics.application.objects.cameraCount;;
 
 /**
@@ -30,6 +33,9 @@ public class CameraService extends MicroService {
     private final CountDownLatch initializationLatch;
     private int needsToDetect;
     private StampedDetectedObjects lastStampedDetectedObjects;
+    // Frames sent to the LiDAR workers that were not acknowledged yet, updated from the workers' threads
+    private final AtomicInteger unacknowledgedFrames = new AtomicInteger();
+    private final RunContext context;
 
     /**
      * Constructor for CameraService.
@@ -37,7 +43,15 @@ public class CameraService extends MicroService {
      * @param camera The Camera object that this service will use to detect objects.
      */
     public CameraService(Camera camera , CountDownLatch initializationLatch, String name) {
-        super(name);
+        this(camera, initializationLatch, name, RunContext.getDefault());
+    }
+
+    /**
+     * @param context the run this service belongs to, whose bus and statistics it uses.
+     */
+    public CameraService(Camera camera , CountDownLatch initializationLatch, String name, RunContext context) {
+        super(name, context.getMessageBus());
+        this.context = context;
         this.camera = camera;
         this.initializationLatch = initializationLatch;
         this.needsToDetect = camera.getDetectedObjectsList().size();
@@ -53,13 +67,13 @@ public class CameraService extends MicroService {
     @Override
     protected void initialize() {
         try{
-            System.out.println("Initializing "+Thread.currentThread().getName()+"...");
+            Logger.debug("Initializing {}...", this);
 
             // Subscribe to TickBroadcast
             subscribeBroadcast(TickBroadcast.class, tickBroadcast -> {
                 int currentTick = tickBroadcast.getCurrentTick();
                 if(needsToDetect == 0){
-                    sendBroadcast(new TerminatedBroadcast("Camera"));
+                    sendBroadcast(new TerminatedBroadcast("Camera", currentTick));
                     camera.setStatus(STATUS.DOWN);
                     terminate();
                 }
@@ -81,7 +95,7 @@ public class CameraService extends MicroService {
             // Subscribe to CrashedBroadcast
             subscribeBroadcast(CrashedBroadcast.class, crashedBroadcast -> {
                 camera.setStatus(STATUS.ERROR);
-                CrashedBroadcast.updateLastCameraFrames("Camera " + camera.getId(), lastStampedDetectedObjects);
+                context.getLastFrames().updateCameraFrame("Camera " + camera.getId(), lastStampedDetectedObjects);
                 terminate(); // Terminate the service due to the crash
             });
 
@@ -108,10 +122,12 @@ public class CameraService extends MicroService {
 
         // Get the list of stamped detected objects
         List<StampedDetectedObjects> detectedObjectsList = camera.getDetectedObjectsList();
+        List<DetectObjectsEvent> frames = new ArrayList<>();
         for (StampedDetectedObjects stampedObjects : detectedObjectsList) {
             if(stampedObjects.getTime()==currentTick){
                 for(DetectedObject object: stampedObjects.getDetectedObjects()){
                     if (object.getId().equals("ERROR")) {
+                        sendFrames(frames); // The frames detected before the error still reach the workers first
                         sendBroadcast(new CrashedBroadcast(object.getDescription(), "Camera" + camera.getId(),"Camera" ));
                         camera.setStatus(STATUS.ERROR);
                         terminate();
@@ -124,15 +140,43 @@ public class CameraService extends MicroService {
                 break;
             }
             else if(stampedObjects.getTime() == detectionTime && stampedObjects.getDetectedObjects() != null){
-                // Create and send DetectObjectsEvent
-                System.out.println("CameraService is sending DetectObjectsEvent...");
-                sendEvent(new DetectObjectsEvent(stampedObjects, detectionTime));
+                // Create the DetectObjectsEvent, the frames of the tick are sent together
+                Logger.debug("{} is sending DetectObjectsEvent for time {}", this, detectionTime);
+                stampedObjects.setTraceId(context.getMessageBus().getTracer().begin()); // Timed until its landmark update
+                frames.add(new DetectObjectsEvent(stampedObjects, detectionTime, "Camera" + camera.getId(), currentTick));
                 lastStampedDetectedObjects = stampedObjects;
                 needsToDetect--; 
 
                 // Update the statistics
-                StatisticalFolder.getInstance().incrementDetectedObjects(stampedObjects.getDetectedObjects().size());
+                context.getStatisticalFolder().incrementDetectedObjects(stampedObjects.getDetectedObjects().size());
             }
         }   
+        sendFrames(frames);
     } 
+
+    // Sends the frames of a tick as one batch and tracks their acknowledgements
+    private void sendFrames(List<DetectObjectsEvent> frames) {
+        if (frames.isEmpty()) {
+            return;
+        }
+        List<Future<Boolean>> acks = sendEvents(frames);
+        for (int i = 0; i < frames.size(); i++) {
+            Future<Boolean> ack = acks.get(i);
+            if (ack != null) {
+                int detectionTime = frames.get(i).getTime();
+                unacknowledgedFrames.incrementAndGet();
+                ack.onComplete(processed -> onAcknowledged(detectionTime, processed));
+            }
+        }
+    }
+
+    // Runs on the LiDAR worker's thread once it handled (or failed) the frame
+    private void onAcknowledged(int detectionTime, Boolean processed) {
+        int left = unacknowledgedFrames.decrementAndGet();
+        if (Boolean.TRUE.equals(processed)) {
+            Logger.debug("{} frame of time {} acknowledged, {} still pending", this, detectionTime, left);
+        } else {
+            Logger.debug("{} frame of time {} was not processed, {} still pending", this, detectionTime, left);
+        }
+    }
 }
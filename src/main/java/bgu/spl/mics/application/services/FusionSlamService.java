@@ -19,7 +19,9 @@ import com.google.gson.stream.JsonWriter;
 
 // import bgu.spl.mics.MessageBus;
 // import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.Logger;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.RunContext;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
 import bgu.spl.mics.application.messages.PoseEvent;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
@@ -38,6 +40,12 @@ import bgu.spl.mics.application.objects.LandMark;
  * 
  * This service receives TrackedObjectsEvents from LiDAR workers and PoseEvents from the PoseService,
  * transforming and updating the map with new landmarks.
+ * <p>
+ * The objects tracked at a tick and the pose of that tick are sent by
+ * different services at the same time, so they can arrive in either order.
+ * Tracked objects whose pose did not arrive yet are held, and applied in
+ * their order of arrival once the PoseService got past their time, so the
+ * map does not depend on which of the two came first.
  */
 public class FusionSlamService extends MicroService {
     
@@ -48,13 +56,26 @@ public class FusionSlamService extends MicroService {
     private String faultySensor = null;
     private final Map<String, Object> lastFrames = new ConcurrentHashMap<>();
     private final String configPath;
+    private final RunContext context;
+    // Tracked objects waiting for the pose of their time, in order of arrival
+    private final List<TrackedObjectsEvent> awaitingPose = new ArrayList<>();
+    private int lastPoseTime = -1;
+    private boolean sensorsTerminated = false;
     /**
      * Constructor for FusionSlamService.
      *
      * @param fusionSlam The FusionSLAM object responsible for managing the global map.
      */
     public FusionSlamService(FusionSlam fusionSlam,  CountDownLatch initializationLatch, int activeSensors, String configPath) {
-        super("FusionSlamService");
+        this(fusionSlam, initializationLatch, activeSensors, configPath, RunContext.getDefault());
+    }
+
+    /**
+     * @param context the run this service belongs to, whose bus, statistics and sensor frames it uses.
+     */
+    public FusionSlamService(FusionSlam fusionSlam,  CountDownLatch initializationLatch, int activeSensors, String configPath, RunContext context) {
+        super("FusionSlamService", context.getMessageBus());
+        this.context = context;
         this.fusionSlam = fusionSlam;
         this.activeSensors = new AtomicInteger(activeSensors);
         this.initializationLatch = initializationLatch;
@@ -80,11 +101,10 @@ public class FusionSlamService extends MicroService {
                 }
                 else if(terminatedBroadcast.getSender() == "Camera" || terminatedBroadcast.getSender() == "Lidar"){
                     int remainingSensors = activeSensors.decrementAndGet();
-                    System.out.println("Current state of active sensors: " + remainingSensors);
+                    Logger.debug("Current state of active sensors: {}", remainingSensors);
                     if (remainingSensors == 0) {
-                        FusionSlam.getInstance().terminateFusionSlam();
-                        outputFinalState();
-                        terminate();
+                        sensorsTerminated = true;
+                        terminateWhenMapped();
                     }
                     
                 }
@@ -101,9 +121,9 @@ public class FusionSlamService extends MicroService {
                     errorDescription = crashedBroadcast.getErrorDescription();
                     faultySensor = crashedBroadcast.getFaultySensor();
                     // Capture last frames from sensors
-                    lastFrames.put("cameras", CrashedBroadcast.getLastCameraFrames());
-                    lastFrames.put("LiDarWorkers", CrashedBroadcast.getLastLiDarFrames());
-                    FusionSlam.getInstance().terminateFusionSlam();
+                    lastFrames.put("cameras", context.getLastFrames().getCameraFrames());
+                    lastFrames.put("LiDarWorkers", context.getLastFrames().getLiDarFrames());
+                    fusionSlam.terminateFusionSlam();
                     outputFinalState();
                     terminate(); // Terminate the service due to a crash
                     }
@@ -113,40 +133,27 @@ public class FusionSlamService extends MicroService {
 
             // Subscribe to TrackedObjectsEvent
             subscribeEvent(TrackedObjectsEvent.class, trackedObjectsEvent -> {
-                try {
-                    for (TrackedObject trackedObject : trackedObjectsEvent.getTrackedObjects()) {
-                        // Retrieve the pose at the detection timestamp
-                        Pose poseAtDetectionTime = fusionSlam.getPoseAt(trackedObject.getTime());
-                        if (poseAtDetectionTime == null) {
-                            complete(trackedObjectsEvent, null); // Skip if necessary data is missing
-                            return;
-                        }
-                        // Transform the object's coordinates to the global coordinate system
-                        trackedObject.setCoordinates(fusionSlam.transformCoordinatesToGlobal(trackedObject, poseAtDetectionTime));
-
-                        // Update the map in FusionSLAM
-                        if (fusionSlam.isNewLandmark(trackedObject)) {
-                            fusionSlam.addLandmark(trackedObject);
-                            StatisticalFolder.getInstance().incrementLandmarks(1); // Track new landmarks
-                        } else {
-                            fusionSlam.updateLandmark(trackedObject);
-                        }
-                    }
-                    // Complete the event successfully
-                    complete(trackedObjectsEvent, null);
-                } catch (Exception e) {
-                    complete(trackedObjectsEvent, null); // Mark the event as failed if an error occurs
+                // Behind held objects as well, the landmarks are updated in order of arrival
+                if (!awaitingPose.isEmpty() || !hasPose(trackedObjectsEvent)) {
+                    awaitingPose.add(trackedObjectsEvent);
+                    return;
                 }
+                updateMap(trackedObjectsEvent);
             });
 
             // Subscribe to PoseEvent to update the robot's pose
             subscribeEvent(PoseEvent.class, poseEvent -> {
                 try {
                     fusionSlam.updatePose(poseEvent.getPose());
+                    lastPoseTime = Math.max(lastPoseTime, poseEvent.getPose().getTime());
                     complete(poseEvent, null); // Complete the event successfully
                 } catch (Exception e) {
                     complete(poseEvent, null); // Mark the event as failed if an error occurs
                 }
+                while (!awaitingPose.isEmpty() && hasPose(awaitingPose.get(0))) {
+                    updateMap(awaitingPose.remove(0));
+                }
+                terminateWhenMapped();
             });
         } finally {
             initializationLatch.countDown(); // Signal that initialization is complete
@@ -154,9 +161,57 @@ public class FusionSlamService extends MicroService {
     }
 
 
+    // Poses are sent in order of time, past the objects' latest time a missing pose never comes
+    private boolean hasPose(TrackedObjectsEvent trackedObjectsEvent) {
+        for (TrackedObject trackedObject : trackedObjectsEvent.getTrackedObjects()) {
+            if (trackedObject.getTime() > lastPoseTime) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateMap(TrackedObjectsEvent trackedObjectsEvent) {
+        try {
+            for (TrackedObject trackedObject : trackedObjectsEvent.getTrackedObjects()) {
+                // Retrieve the pose at the detection timestamp
+                Pose poseAtDetectionTime = fusionSlam.getPoseAt(trackedObject.getTime());
+                if (poseAtDetectionTime == null) {
+                    complete(trackedObjectsEvent, null); // Skip if necessary data is missing
+                    return;
+                }
+                // Transform the object's coordinates to the global coordinate system
+                trackedObject.setCoordinates(fusionSlam.transformCoordinatesToGlobal(trackedObject, poseAtDetectionTime));
+
+                // Update the map in FusionSLAM
+                if (fusionSlam.isNewLandmark(trackedObject)) {
+                    fusionSlam.addLandmark(trackedObject);
+                    context.getStatisticalFolder().incrementLandmarks(1); // Track new landmarks
+                } else {
+                    fusionSlam.updateLandmark(trackedObject);
+                }
+            }
+            // Complete the event successfully
+            complete(trackedObjectsEvent, null);
+        } catch (Exception e) {
+            complete(trackedObjectsEvent, null); // Mark the event as failed if an error occurs
+        } finally {
+            context.getMessageBus().getTracer().end(trackedObjectsEvent.getTrace().getTraceId(), "camera frame to landmark update");
+        }
+    }
+
+    // Once every sensor terminated, waits for the poses of the objects still held, the TimeService ticks meanwhile
+    private void terminateWhenMapped() {
+        if (sensorsTerminated && awaitingPose.isEmpty()) {
+            fusionSlam.terminateFusionSlam();
+            outputFinalState();
+            terminate();
+        }
+    }
+
     // Outputs the final state of the system to a JSON file.
     private void outputFinalState() {
-        System.out.println("Writing final state to JSON...");
+        Logger.info("Writing final state to JSON...");
         Gson gson = new GsonBuilder()
             .disableHtmlEscaping()
             .create();
@@ -167,23 +222,28 @@ public class FusionSlamService extends MicroService {
             File outputFile = new File(configDir, "output_file.json");
             
             try (FileWriter writer = new FileWriter(outputFile)) {
-                System.out.println("---------------Output file parameters check---------------");
-                System.out.println("Statistics: Num Detected-" + StatisticalFolder.getInstance().getNumDetectedObjects() +
-                                " Num landmarks- " + StatisticalFolder.getInstance().getNumLandmarks() +
-                                " Num tracked: " + StatisticalFolder.getInstance().getNumTrackedObjects());
-                System.out.println("run time " + StatisticalFolder.getInstance().getSystemRuntime());
+                Logger.info("Statistics: Num Detected- {} Num landmarks- {} Num tracked: {}",
+                                context.getStatisticalFolder().getNumDetectedObjects(),
+                                context.getStatisticalFolder().getNumLandmarks(),
+                                context.getStatisticalFolder().getNumTrackedObjects());
+                Logger.info("run time {}", context.getStatisticalFolder().getSystemRuntime());
+                // Current and peak queue depths of the mailboxes, and latency per stage of the traced camera frames
+                context.getMessageBus().getMailboxStatistics().forEach(mailbox -> Logger.info("Mailbox {}", mailbox));
+                context.getMessageBus().getTracer().getStages().forEach((stage, latency) -> Logger.info("Trace stage {}: {}", stage, latency));
+                Logger.info("Tick jitter: {}, overruns {}", context.getStatisticalFolder().getTickJitter(),
+                        context.getStatisticalFolder().getTickOverruns());
         
                 if (errorDescription != null && faultySensor != null) {
                     // Error case
-                    System.out.println("Error: " + errorDescription);
-                    System.out.println("Faulty Sensor: " + faultySensor);
-                    System.out.println("Poses: " + fusionSlam.getPoses());
+                    Logger.info("Error: {}", errorDescription);
+                    Logger.info("Faulty Sensor: {}", faultySensor);
+                    Logger.info("Poses: {}", fusionSlam.getPoses());
     
                     Map<String, Object> errorOutput = new LinkedHashMap<>();
                     errorOutput.put("error", errorDescription);
                     errorOutput.put("faultySensor", faultySensor);
-                    errorOutput.put("lastCamerasFrame", CrashedBroadcast.getLastCameraFrames());
-                    errorOutput.put("lastLiDarWorkerTrackersFrame", CrashedBroadcast.getLastLiDarFrames());
+                    errorOutput.put("lastCamerasFrame", context.getLastFrames().getCameraFrames());
+                    errorOutput.put("lastLiDarWorkerTrackersFrame", context.getLastFrames().getLiDarFrames());
                     errorOutput.put("poses", fusionSlam.getPoses());
                     
                     Map<String, Object> statistics = createStatisticsMap();
@@ -194,7 +254,7 @@ public class FusionSlamService extends MicroService {
                     writer.write(gson.toJson(errorOutput));
                 } else {
                     // Successful run
-                    System.out.println("Landmarks: " + fusionSlam.getLandmarks());
+                    Logger.info("Landmarks: {}", fusionSlam.getLandmarks());
     
                     // Create the first part of the JSON (statistics)
                     Map<String, Object> statistics = createStatisticsMap();
@@ -221,16 +281,17 @@ public class FusionSlamService extends MicroService {
                 }
             }
         } catch (IOException e) {
-            System.err.println("Error writing output file: " + e.getMessage());
+            Logger.error("Error writing output file: {}", e.getMessage());
         }
     }
 
 private Map<String, Object> createStatisticsMap() {
     Map<String, Object> statistics = new LinkedHashMap<>();
-    statistics.put("systemRuntime", StatisticalFolder.getInstance().getSystemRuntime());
-    statistics.put("numDetectedObjects", StatisticalFolder.getInstance().getNumDetectedObjects());
-    statistics.put("numTrackedObjects", StatisticalFolder.getInstance().getNumTrackedObjects());
-    statistics.put("numLandmarks", StatisticalFolder.getInstance().getNumLandmarks());
+    StatisticalFolder statisticalFolder = context.getStatisticalFolder();
+    statistics.put("systemRuntime", statisticalFolder.getSystemRuntime());
+    statistics.put("numDetectedObjects", statisticalFolder.getNumDetectedObjects());
+    statistics.put("numTrackedObjects", statisticalFolder.getNumTrackedObjects());
+    statistics.put("numLandmarks", statisticalFolder.getNumLandmarks());
     return statistics;
 }
 
@@ -5,19 +5,20 @@ import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import bgu.spl.mics.Logger;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.TraceSpan;
+import bgu.spl.mics.Tracer;
+import bgu.spl.mics.application.RunContext;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
 import bgu.spl.mics.application.messages.DetectObjectsEvent;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
 import bgu.spl.mics.application.messages.TickBroadcast;
 import bgu.spl.mics.application.messages.TrackedObjectsEvent;
-import bgu.spl.mics.application.objects.LiDarDataBase;
 import bgu.spl.mics.application.objects.LiDarWorkerTracker;
 import bgu.spl.mics.application.objects.STATUS;
 import bgu.spl.mics.application.objects.StampedCloudPoints;
-import bgu.spl.mics.application.objects.StatisticalFolder;
 import bgu.spl.mics.application.objects.TrackedObject;
-import bgu.spl.mics.application.objects.cameraCount;
 import bgu.spl.mics.application.objects.CloudPoint;
 import bgu.spl.mics.application.objects.DetectedObject;
 /**
@@ -27,6 +28,12 @@ import bgu.spl.mics.application.objects.DetectedObject;
  * This service interacts with the LiDarWorkerTracker object to retrieve and process
  * cloud point data and updates the system's StatisticalFolder upon sending its
  * observations.
+ * <p>
+ * A camera reacts to a tick while the TimeService may still be broadcasting
+ * it, so the camera's frame or termination can arrive before the tick
+ * itself. Such a message first runs the ticks it was sent after, and these
+ * ticks are skipped when they arrive, so the worker handles the tick and
+ * the camera's message in the same order whichever came first.
  */
 public class LiDarService extends MicroService {
 
@@ -35,6 +42,7 @@ public class LiDarService extends MicroService {
     private  List<DetectObjectsEvent> eventsInHold = new ArrayList<>();
     private int currentTick;
     private List<TrackedObject> lastTrackedObjects;
+    private final RunContext context;
 
     /**
      * Constructor for LiDarService.
@@ -42,10 +50,18 @@ public class LiDarService extends MicroService {
      * @param LiDarWorkerTracker A LiDAR Tracker worker object that this service will use to process data.
      */
     public LiDarService(LiDarWorkerTracker LiDarWorkerTracker, CountDownLatch initializationLatch) {
-        super("LiDarWorkerService_" + LiDarWorkerTracker.getId());
+        this(LiDarWorkerTracker, initializationLatch, RunContext.getDefault());
+    }
+
+    /**
+     * @param context the run this service belongs to, whose bus, LiDAR database and counters it uses.
+     */
+    public LiDarService(LiDarWorkerTracker LiDarWorkerTracker, CountDownLatch initializationLatch, RunContext context) {
+        super("LiDarWorkerService_" + LiDarWorkerTracker.getId(), context.getMessageBus());
+        this.context = context;
         this.LiDarWorkerTracker = LiDarWorkerTracker;
         this.initializationLatch = initializationLatch;
-        currentTick = 0;
+        currentTick = -1; // No tick handled yet
         lastTrackedObjects = null;
     }
 
@@ -57,52 +73,16 @@ public class LiDarService extends MicroService {
     @Override
     protected void initialize() {
         try{
-            System.out.println("Initializing "+Thread.currentThread().getName()+"...");
+            Logger.debug("Initializing {}...", this);
 
             // Subscribe to TickBroadcast
-            subscribeBroadcast(TickBroadcast.class, tickBroadcast -> {
-                currentTick = tickBroadcast.getCurrentTick();
-                for( StampedCloudPoints CP : LiDarDataBase.getInstance().getCloudPoints()){
-                    if(CP.getTime() > currentTick){
-                        break;
-                    }
-                    else if(CP.getTime() == currentTick){
-                        if(CP.getId() == "ERROR"){
-                            sendBroadcast(new CrashedBroadcast("LiDAR sensor disconnected","LiDarWorkerTracker" + LiDarWorkerTracker.getId(),"Lidar"));
-                                LiDarWorkerTracker.setStatus(STATUS.ERROR);
-                                terminate();
-                                return;
-                        }
-                        else{ 
-                            List<DetectObjectsEvent> processedEvents = new ArrayList<>(); 
-                        
-                            if(eventsInHold.size() > 0){
-                                for(DetectObjectsEvent e : eventsInHold){
-                                    if(currentTick >= (e.getTime()) + LiDarWorkerTracker.getFrequency()){
-                                        processDetectedObjectsEvent(e);
-                                        processedEvents.add(e);
-                                    }
-                                }
-                            eventsInHold.removeAll(processedEvents);
-                            }
-                        
-                        }
-               
-                    }
-                
-                }
-                if(eventsInHold.size() <= 0 && cameraCount.getInstance().getCameraCount() <= 0){
-                    sendBroadcast(new TerminatedBroadcast("Lidar"));
-                    LiDarWorkerTracker.setStatus(STATUS.DOWN); 
-                    terminate();
-                }
-                
-            });
+            subscribeBroadcast(TickBroadcast.class, tickBroadcast -> advanceTo(tickBroadcast.getCurrentTick()));
 
             // Subscribe to TerminatedBroadcast
             subscribeBroadcast(TerminatedBroadcast.class, terminatedBroadcast -> {
                 if(terminatedBroadcast.getSender() == "Camera"){
-                    cameraCount.getInstance().decrementCameraCount();
+                    advanceTo(terminatedBroadcast.getTick()); // The camera was still working at the tick it terminated at
+                    context.getCameraCount().decrementCameraCount();
                 }
                 if(terminatedBroadcast.getSender() == "Time Service"){
                     LiDarWorkerTracker.setStatus(STATUS.DOWN); 
@@ -115,13 +95,14 @@ public class LiDarService extends MicroService {
                 LiDarWorkerTracker.setStatus(STATUS.ERROR); 
 
                 // Capture last frames (last tracked objects)
-                CrashedBroadcast.updateLastLiDarFrames("LiDarWorkerTracker "+ LiDarWorkerTracker.getId(), lastTrackedObjects);
+                context.getLastFrames().updateLiDarFrame("LiDarWorkerTracker "+ LiDarWorkerTracker.getId(), lastTrackedObjects);
                 terminate(); // Terminate the service due to the crash
             });
 
             // Subscribe to DetectObjectsEvent
             subscribeEvent(DetectObjectsEvent.class, detectObjectsEvent -> {
                 try {
+                    advanceTo(detectObjectsEvent.getSentAt());
 
                     // Check if the event should be processed at this tick
                     if ((currentTick >= (detectObjectsEvent.getTime()) + LiDarWorkerTracker.getFrequency())) {
@@ -147,7 +128,70 @@ public class LiDarService extends MicroService {
             initializationLatch.countDown(); // Signal that initialization is complete
         }
     }
+
+    // Handles the ticks up to tick that were not handled yet, in order
+    private void advanceTo(int tick) {
+        while (currentTick < tick && LiDarWorkerTracker.getStatus() == STATUS.UP) {
+            onTick(currentTick + 1);
+        }
+    }
+
+    private void onTick(int tick) {
+        currentTick = tick;
+        for( StampedCloudPoints CP : context.getLiDarDataBase().getCloudPoints()){
+            if(CP.getTime() > currentTick){
+                break;
+            }
+            else if(CP.getTime() == currentTick){
+                if(CP.getId() == "ERROR"){
+                    sendBroadcast(new CrashedBroadcast("LiDAR sensor disconnected","LiDarWorkerTracker" + LiDarWorkerTracker.getId(),"Lidar"));
+                        LiDarWorkerTracker.setStatus(STATUS.ERROR);
+                        terminate();
+                        return;
+                }
+                else{ 
+                    List<DetectObjectsEvent> processedEvents = new ArrayList<>(); 
+                
+                    if(eventsInHold.size() > 0){
+                        for(DetectObjectsEvent e : eventsInHold){
+                            if(currentTick >= (e.getTime()) + LiDarWorkerTracker.getFrequency()){
+                                processDetectedObjectsEvent(e);
+                                processedEvents.add(e);
+                            }
+                        }
+                    eventsInHold.removeAll(processedEvents);
+                    }
+                
+                }
+       
+            }
+        
+        }
+        if(eventsInHold.size() <= 0 && context.getCameraCount().getCameraCount() <= 0){
+            sendBroadcast(new TerminatedBroadcast("Lidar", currentTick));
+            LiDarWorkerTracker.setStatus(STATUS.DOWN); 
+            terminate();
+        }
+    }
+
+    /**
+     * Frames held until the LiDAR frequency allows processing them, so
+     * load-aware routing of DetectObjectsEvents sees this worker's backlog.
+     */
+    @Override
+    protected int getPendingWork() {
+        return eventsInHold.size(); // A racy read from the sender's thread is fine for a load estimate
+    }
+
     public void processDetectedObjectsEvent(DetectObjectsEvent e){
+        // Time spent in eventsInHold, from the arrival of the frame to now
+        Tracer tracer = context.getMessageBus().getTracer();
+        long processingStart = System.nanoTime();
+        TraceSpan trace = e.getTrace();
+        if (trace.getStartedAt() != 0) {
+            tracer.record("LiDAR hold", processingStart - trace.getStartedAt());
+        }
+
         //  Initialize Tracked Objects
         List<TrackedObject> trackedObjects = new ArrayList<>();
 
@@ -155,7 +199,7 @@ public class LiDarService extends MicroService {
         for (DetectedObject detectedObject : e.getDetectedObjects().getDetectedObjects()) {
             
             // Retrieve cloud points for the object
-            List<StampedCloudPoints> matchingPoints = LiDarDataBase.getInstance().getCloudPoints().stream()
+            List<StampedCloudPoints> matchingPoints = context.getLiDarDataBase().getCloudPoints().stream()
                     .filter(point -> point.getId().equals(detectedObject.getId()))
                     .filter(point -> point.getTime() == e.getTime()) // Ensure the timestamp is valid
                     .collect(Collectors.toList());
@@ -182,12 +226,13 @@ public class LiDarService extends MicroService {
         LiDarWorkerTracker.getLastTrackedObjects().addAll(trackedObjects);
 
         // Send a TrackedObjectsEvent to Fusion-SLAM
-        System.out.println("LiDarService is sending TrackedObjectsEvent...");
-        sendEvent(new TrackedObjectsEvent(trackedObjects));
+        Logger.debug("{} is sending TrackedObjectsEvent", this);
+        sendEvent(new TrackedObjectsEvent(trackedObjects, trace.getTraceId()));
         lastTrackedObjects = trackedObjects;
+        tracer.record("LiDAR processing", System.nanoTime() - processingStart);
 
         // Update statistical folder
-        StatisticalFolder.getInstance().incrementTrackedObjects(trackedObjects.size());
+        context.getStatisticalFolder().incrementTrackedObjects(trackedObjects.size());
     
 
         // Respond to Camera with True result
@@ -3,6 +3,7 @@ package bgu.spl.mics.application.services;
 import java.util.concurrent.CountDownLatch;
 
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.RunContext;
 import bgu.spl.mics.application.messages.CrashedBroadcast;
 import bgu.spl.mics.application.messages.PoseEvent;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
@@ -26,7 +27,14 @@ public class PoseService extends MicroService {
      * @param gpsimu The GPSIMU object that provides the robot's pose data.
      */
     public PoseService(GPSIMU gpsimu, CountDownLatch initializationLatch) {
-        super("PoseService");
+        this(gpsimu, initializationLatch, RunContext.getDefault());
+    }
+
+    /**
+     * @param context the run this service belongs to, whose bus it uses.
+     */
+    public PoseService(GPSIMU gpsimu, CountDownLatch initializationLatch, RunContext context) {
+        super("PoseService", context.getMessageBus());
         this.gpsimu = gpsimu;
         this.initializationLatch = initializationLatch;
     }
@@ -1,30 +1,92 @@
 package bgu.spl.mics.application.services;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import bgu.spl.mics.Logger;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.application.RunContext;
 import bgu.spl.mics.application.messages.TerminatedBroadcast;
 import bgu.spl.mics.application.messages.TickBroadcast;
-import bgu.spl.mics.application.objects.FusionSlam;
-import bgu.spl.mics.application.objects.StatisticalFolder;
 
 /**
  * TimeService acts as the global timer for the system, broadcasting TickBroadcast messages
  * at regular intervals and controlling the simulation's duration.
+ * <p>
+ * Paced ticks are due at absolute times, the start plus a whole number of
+ * tick periods, so the time spent broadcasting does not accumulate into
+ * drift. A late tick is sent at once and the next one stays on schedule. The
+ * lateness of every tick is reported to the StatisticalFolder as jitter, a
+ * tick later than a whole period as an overrun.
  */
 public class TimeService extends MicroService {
 
-    private final int TickTime; // Duration of each tick in milliseconds
+    /**
+     * How the next tick is timed.
+     */
+    public enum Mode {
+        /** One tick per TickTime of wall time. */
+        PACED,
+        /**
+         * The next tick as soon as every service handled the current one and
+         * everything it caused (the frames, tracked objects and poses sent in
+         * reaction), so a run takes its CPU time only. The bus of the run must
+         * track quiescence (see {@link bgu.spl.mics.MessageBusImpl#trackQuiescence()})
+         * from before the services register. The services see the same ticks
+         * in the same state as in the paced mode, so the output is the same,
+         * as long as the work of a tick does not depend on the order in which
+         * services reacting to it at the same time are heard (FusionSlamService
+         * holds tracked objects until their pose arrives for that reason).
+         */
+        AS_FAST_AS_POSSIBLE
+    }
+
+    // How close to a deadline to stop parking and yield, parkNanos can oversleep by tens of microseconds
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final long TickTime; // Duration of each tick in nanoseconds
     private final int Duration; // Total number of ticks before termination
+    private final RunContext context;
+    private final Mode mode;
 
     /**
      * Constructor for TimeService.
      *
-     * @param TickTime  The duration of each tick in milliseconds.
+     * @param TickTime  The duration of each tick in seconds.
      * @param Duration  The total number of ticks before the service terminates.
      */
     public TimeService(int TickTime, int Duration) {
-        super("TimeService");
-        this.TickTime = TickTime * 1000;  // Convertion to milliseconds
+        this(TickTime, Duration, RunContext.getDefault());
+    }
+
+    /**
+     * @param context the run this service belongs to, whose bus and state it uses.
+     */
+    public TimeService(int TickTime, int Duration, RunContext context) {
+        this(TickTime, Duration, context, Mode.PACED);
+    }
+
+    /**
+     * @param mode how the next tick is timed. As fast as possible, TickTime
+     *             only bounds the wait for a tick whose work does not settle.
+     */
+    public TimeService(int TickTime, int Duration, RunContext context, Mode mode) {
+        this(TickTime, TimeUnit.SECONDS, Duration, context, mode);
+    }
+
+    /**
+     * @param tickTime the duration of each tick in {@code unit}, sub-second
+     *                 periods run the simulation in real time at up to some kHz.
+     */
+    public TimeService(long tickTime, TimeUnit unit, int Duration, RunContext context, Mode mode) {
+        super("TimeService", context.getMessageBus());
+        if (tickTime <= 0) {
+            throw new IllegalArgumentException("The tick time must be positive: " + tickTime + " " + unit);
+        }
+        this.context = context;
+        this.TickTime = unit.toNanos(tickTime);
         this.Duration = Duration;
+        this.mode = mode;
     }
 
     /**
@@ -34,22 +96,50 @@ public class TimeService extends MicroService {
     @Override
     protected void initialize() {
         int currentTick = 0;
-        while (currentTick < Duration && FusionSlam.getInstance().isWorking()) {
+        long deadline = System.nanoTime(); // When the current tick is due
+        while (currentTick < Duration && context.getFusionSlam().isWorking()) {
+            if (mode == Mode.PACED) {
+                context.getStatisticalFolder().recordTick(System.nanoTime() - deadline, TickTime);
+            }
             sendBroadcast(new TickBroadcast(currentTick)); // Send a TickBroadcast
-            System.out.println("Tick broadcast was sent, tick number: " + currentTick);
+            Logger.debug("Tick broadcast was sent, tick number: {}", currentTick);
             try {
-                Thread.sleep(TickTime); // Wait for the next tick
+                if (mode == Mode.AS_FAST_AS_POSSIBLE) {
+                    // Wait for the services to finish the tick instead of the clock
+                    if (!context.getMessageBus().awaitQuiescence(TickTime, TimeUnit.NANOSECONDS)) {
+                        Logger.warn("Tick {} did not settle within {} ms, sending the next one anyway", currentTick,
+                                TimeUnit.NANOSECONDS.toMillis(TickTime));
+                    }
+                } else {
+                    deadline += TickTime;
+                    awaitDeadline(deadline); // Wait for the next tick
+                }
             
             } catch (InterruptedException e)
             {
                 Thread.currentThread().interrupt();
-                System.err.println(getName() + " was interrupted.");
+                Logger.warn("{} was interrupted.", this);
                 break;
             }
             currentTick++;
-            StatisticalFolder.getInstance().incrementSystemRuntime(1); // Update runtime
+            context.getStatisticalFolder().incrementSystemRuntime(1); // Update runtime
         }
                 sendBroadcast(new TerminatedBroadcast("Time Service")); // Send a TerminatedBroadcast
                 terminate(); // Terminate this service
     }
+
+    // Parks most of the way to the deadline, then yields to it
+    private static void awaitDeadline(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
 }
@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.OverflowPolicy;
+
+/**
+ * Compares the throughput of taking messages one {@link MessageBusImpl#awaitMessage}
+ * call at a time against {@link MessageBusImpl#awaitMessages} batches.
+ * <p>
+ * A producer thread keeps a bounded ({@link OverflowPolicy#BLOCK}) mailbox full,
+ * so the mailbox capacity sets the queue depth the consumer sees.
+ * Not a unit test (surefire skips it), run it by hand after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes BatchDrainBenchmark}
+ */
+public class BatchDrainBenchmark {
+
+    private static final int[] QUEUE_DEPTHS = {1, 16, 256, 4096};
+    private static final int BATCH_SIZE = MicroService.DEFAULT_MESSAGE_BATCH_SIZE;
+    private static final int MESSAGES = 1_000_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+
+        System.out.printf("%8s %16s %16s%n", "depth", "single msg/s", "batch msg/s");
+        for (int depth : QUEUE_DEPTHS) {
+            // The first round of each depth only warms up
+            measure(messageBus, depth, 1);
+            long single = measure(messageBus, depth, 1);
+            measure(messageBus, depth, BATCH_SIZE);
+            long batched = measure(messageBus, depth, BATCH_SIZE);
+            System.out.printf("%8d %16d %16d%n", depth, single, batched);
+        }
+    }
+
+    private static long measure(MessageBusImpl messageBus, int depth, int batchSize) throws InterruptedException {
+        String name = "consumer-" + depth + "-" + batchSize;
+        messageBus.configureMailbox(name, depth, OverflowPolicy.BLOCK);
+        MicroService consumer = new IdleService(name);
+        messageBus.register(consumer);
+        messageBus.subscribeBroadcast(BenchBroadcast.class, consumer);
+
+        BenchBroadcast broadcast = new BenchBroadcast();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < MESSAGES; i++) {
+                messageBus.sendBroadcast(broadcast);
+            }
+        });
+
+        List<Object> batch = new ArrayList<>(batchSize);
+        long start = System.nanoTime();
+        producer.start();
+        int received = 0;
+        while (received < MESSAGES) {
+            if (batchSize == 1) {
+                messageBus.awaitMessage(consumer);
+                received++;
+            } else {
+                received += messageBus.awaitMessages(consumer, batch, batchSize);
+                batch.clear();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        messageBus.unregister(consumer);
+        return MESSAGES * 1_000_000_000L / elapsed;
+    }
+
+    private static class BenchBroadcast implements Broadcast {
+    }
+
+    private static class IdleService extends MicroService {
+        IdleService(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+}
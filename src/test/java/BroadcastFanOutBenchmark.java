@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+
+/**
+ * Measures the latency of {@link MessageBusImpl#sendBroadcast} as the number of
+ * subscribers grows from 1 to 1000, once on a quiet bus and once while another
+ * thread keeps subscribing and unregistering services of the same broadcast type.
+ * <p>
+ * Not a unit test (surefire skips it), run it by hand after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes BroadcastFanOutBenchmark}
+ */
+public class BroadcastFanOutBenchmark {
+
+    private static final int[] SUBSCRIBER_COUNTS = {1, 10, 100, 1000};
+    private static final int WARMUP_ROUNDS = 2_000;
+    private static final int MEASURED_ROUNDS = 10_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+        System.out.printf("%12s %18s %18s%n", "subscribers", "quiet ns/bcast", "churn ns/bcast");
+        for (int subscriberCount : SUBSCRIBER_COUNTS) {
+            long quiet = measure(messageBus, subscriberCount, false);
+            long churn = measure(messageBus, subscriberCount, true);
+            System.out.printf("%12d %18d %18d%n", subscriberCount, quiet, churn);
+        }
+    }
+
+    private static long measure(MessageBusImpl messageBus, int subscriberCount, boolean churn) throws InterruptedException {
+        List<MicroService> subscribers = new ArrayList<>();
+        for (int i = 0; i < subscriberCount; i++) {
+            MicroService service = new IdleService("subscriber" + i);
+            messageBus.register(service);
+            messageBus.subscribeBroadcast(BenchBroadcast.class, service);
+            subscribers.add(service);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread churner = new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                MicroService extra = new IdleService("churn" + (i++));
+                messageBus.register(extra);
+                messageBus.subscribeBroadcast(BenchBroadcast.class, extra);
+                messageBus.unregister(extra);
+            }
+        });
+        if (churn) {
+            churner.start();
+        }
+
+        BenchBroadcast broadcast = new BenchBroadcast();
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            messageBus.sendBroadcast(broadcast);
+            drain(messageBus, subscribers);
+        }
+
+        long elapsed = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            messageBus.sendBroadcast(broadcast);
+            elapsed += System.nanoTime() - start;
+            drain(messageBus, subscribers);
+        }
+
+        running.set(false);
+        if (churn) {
+            churner.join();
+        }
+        subscribers.forEach(messageBus::unregister);
+        messageBus.broadcastSubscribers.clear();
+        return elapsed / MEASURED_ROUNDS;
+    }
+
+    // Each round queues exactly one message per subscriber
+    private static void drain(MessageBusImpl messageBus, List<MicroService> subscribers) throws InterruptedException {
+        for (MicroService service : subscribers) {
+            messageBus.awaitMessage(service);
+        }
+    }
+
+    private static class BenchBroadcast implements Broadcast {
+    }
+
+    private static class IdleService extends MicroService {
+        IdleService(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+}
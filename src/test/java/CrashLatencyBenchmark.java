@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MessagePriority;
+import bgu.spl.mics.MicroService;
+
+/**
+ * Measures how long a crash takes to shut every service down when their
+ * mailboxes are backed up with data messages, with the crash broadcast in the
+ * data lane (plain FIFO) and in the {@link MessagePriority#CONTROL} lane.
+ * <p>
+ * Each service handles a tick-like broadcast in about {@link #WORK_MICROS}
+ * microseconds. The benchmark queues a backlog of ticks, sends the crash and
+ * waits until every service has terminated.
+ * Not a unit test (surefire skips it), run it by hand after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes CrashLatencyBenchmark}
+ */
+public class CrashLatencyBenchmark {
+
+    private static final int SERVICES = 8;
+    private static final int[] BACKLOGS = {0, 100, 1000, 5000};
+    private static final long WORK_MICROS = 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+
+        System.out.printf("%10s %18s %18s %18s%n", "backlog", "FIFO ms", "control lane ms", "ticks handled");
+        measure(messageBus, BACKLOGS[1], MessagePriority.DATA); // Warm up
+        for (int backlog : BACKLOGS) {
+            long[] fifo = measure(messageBus, backlog, MessagePriority.DATA);
+            long[] control = measure(messageBus, backlog, MessagePriority.CONTROL);
+            System.out.printf("%10d %18.2f %18.2f %9d /%7d%n", backlog,
+                    fifo[0] / 1e6, control[0] / 1e6, fifo[1], control[1]);
+        }
+    }
+
+    // Returns the nanos from the crash to the last termination and the ticks handled meanwhile
+    private static long[] measure(MessageBusImpl messageBus, int backlog, MessagePriority crashPriority) throws InterruptedException {
+        messageBus.setMessagePriority(CrashLike.class, crashPriority);
+        CountDownLatch subscribed = new CountDownLatch(SERVICES);
+        List<SensorLike> services = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < SERVICES; i++) {
+            SensorLike service = new SensorLike("sensor" + i, subscribed);
+            Thread thread = new Thread(service, service.getName());
+            services.add(service);
+            threads.add(thread);
+            thread.start();
+        }
+        subscribed.await();
+
+        // Ticks arrive faster than they are handled, then a sensor crashes
+        for (int i = 0; i < backlog; i++) {
+            messageBus.sendBroadcast(new TickLike());
+        }
+        long crash = System.nanoTime();
+        messageBus.sendBroadcast(new CrashLike());
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - crash;
+
+        long handled = 0;
+        for (SensorLike service : services) {
+            handled += service.ticks;
+        }
+        return new long[] {elapsed, handled};
+    }
+
+    private static class TickLike implements Broadcast {
+    }
+
+    private static class CrashLike implements Broadcast {
+    }
+
+    private static class SensorLike extends MicroService {
+        private final CountDownLatch subscribed;
+        private long ticks;
+
+        SensorLike(String name, CountDownLatch subscribed) {
+            super(name);
+            this.subscribed = subscribed;
+        }
+
+        @Override
+        protected void initialize() {
+            subscribeBroadcast(TickLike.class, tick -> {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(WORK_MICROS)); // Simulated processing
+                ticks++;
+            });
+            subscribeBroadcast(CrashLike.class, crash -> terminate());
+            subscribed.countDown();
+        }
+    }
+}
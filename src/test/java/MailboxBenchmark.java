@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.MailboxType;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.OverflowPolicy;
+import bgu.spl.mics.WaitStrategy;
+
+/**
+ * Compares the {@link MailboxType mailbox implementations} and, for lock-free
+ * mailboxes, the {@link WaitStrategy wait strategies}:
+ * <ul>
+ * <li>throughput: several sender threads flood one unbounded mailbox,</li>
+ * <li>round trip: two services bounce a single broadcast back and forth, so
+ * the owner is waiting every time a message arrives.</li>
+ * </ul>
+ * Spinning and yielding only pay off with a free core per waiting service.
+ * Not a unit test (surefire skips it), run it by hand after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes MailboxBenchmark}
+ */
+public class MailboxBenchmark {
+
+    private static final int[] SENDERS = {1, 4};
+    private static final int MESSAGES = 2_000_000;
+    private static final int ROUND_TRIPS = 100_000;
+    private static int run;
+
+    public static void main(String[] args) throws InterruptedException {
+        MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+        Object[][] variants = {
+                {MailboxType.LOCKED, WaitStrategy.PARK},
+                {MailboxType.LOCK_FREE, WaitStrategy.PARK},
+                {MailboxType.LOCK_FREE, WaitStrategy.SPIN_THEN_PARK},
+                {MailboxType.LOCK_FREE, WaitStrategy.YIELD},
+        };
+
+        System.out.printf("%-28s %14s %14s %16s%n", "mailbox", "1 sender msg/s", "4 senders msg/s", "round trip us");
+        for (Object[] variant : variants) {
+            MailboxType type = (MailboxType) variant[0];
+            WaitStrategy wait = (WaitStrategy) variant[1];
+            throughput(messageBus, type, wait, SENDERS[0]); // Warm up
+            long[] rates = new long[SENDERS.length];
+            for (int i = 0; i < SENDERS.length; i++) {
+                rates[i] = throughput(messageBus, type, wait, SENDERS[i]);
+            }
+            double roundTrip = roundTrip(messageBus, type, wait);
+            System.out.printf("%-28s %14d %14d %16.2f%n", type + "/" + wait, rates[0], rates[1], roundTrip);
+        }
+    }
+
+    private static long throughput(MessageBusImpl messageBus, MailboxType type, WaitStrategy wait, int senders) throws InterruptedException {
+        MicroService consumer = service(messageBus, type, wait);
+        messageBus.subscribeBroadcast(BenchBroadcast.class, consumer);
+        BenchBroadcast broadcast = new BenchBroadcast();
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < MESSAGES / senders; i++) {
+                    messageBus.sendBroadcast(broadcast);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (int received = 0; received < MESSAGES / senders * senders; received++) {
+            messageBus.awaitMessage(consumer);
+        }
+        long elapsed = System.nanoTime() - start;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        messageBus.unregister(consumer);
+        return MESSAGES * 1_000_000_000L / elapsed;
+    }
+
+    // Mean microseconds for a broadcast to go to the other service and back
+    private static double roundTrip(MessageBusImpl messageBus, MailboxType type, WaitStrategy wait) throws InterruptedException {
+        MicroService ping = service(messageBus, type, wait);
+        MicroService pong = service(messageBus, type, wait);
+        messageBus.subscribeBroadcast(PingBroadcast.class, pong);
+        messageBus.subscribeBroadcast(PongBroadcast.class, ping);
+        Thread ponger = new Thread(() -> {
+            try {
+                PongBroadcast reply = new PongBroadcast();
+                for (int i = 0; i < ROUND_TRIPS; i++) {
+                    messageBus.awaitMessage(pong);
+                    messageBus.sendBroadcast(reply);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        ponger.start();
+        PingBroadcast request = new PingBroadcast();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUND_TRIPS; i++) {
+            messageBus.sendBroadcast(request);
+            messageBus.awaitMessage(ping);
+        }
+        long elapsed = System.nanoTime() - start;
+        ponger.join();
+        messageBus.unregister(ping);
+        messageBus.unregister(pong);
+        return elapsed / 1e3 / ROUND_TRIPS;
+    }
+
+    private static MicroService service(MessageBusImpl messageBus, MailboxType type, WaitStrategy wait) {
+        String name = "bench" + run++;
+        messageBus.configureMailbox(name, Integer.MAX_VALUE, OverflowPolicy.BLOCK, type, wait);
+        MicroService service = new IdleService(name);
+        messageBus.register(service);
+        return service;
+    }
+
+    private static class BenchBroadcast implements Broadcast {
+    }
+
+    private static class PingBroadcast implements Broadcast {
+    }
+
+    private static class PongBroadcast implements Broadcast {
+    }
+
+    private static class IdleService extends MicroService {
+        IdleService(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+}
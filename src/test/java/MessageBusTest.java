@@ -1,8 +1,24 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.ObjectName;
 
 import org.junit.jupiter.api.AfterEach;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -13,9 +29,25 @@ import org.junit.jupiter.api.Test;
 import bgu.spl.mics.Broadcast;
 import bgu.spl.mics.Event;
 import bgu.spl.mics.Future;
+import bgu.spl.mics.KeyedEvent;
+import bgu.spl.mics.LatencyHistogram;
+import bgu.spl.mics.MailboxStatistics;
+import bgu.spl.mics.MailboxType;
 import bgu.spl.mics.Message;
+import bgu.spl.mics.MessageBus;
+import bgu.spl.mics.MessagePriority;
 import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MessageBusMXBean;
+import bgu.spl.mics.MessageBusMetrics;
 import bgu.spl.mics.MicroService;
+import bgu.spl.mics.MicroServiceScheduler;
+import bgu.spl.mics.MicroServiceScheduler.ExecutionMode;
+import bgu.spl.mics.OverflowPolicy;
+import bgu.spl.mics.RoutingStrategy;
+import bgu.spl.mics.TraceSpan;
+import bgu.spl.mics.TracedEvent;
+import bgu.spl.mics.Tracer;
+import bgu.spl.mics.WaitStrategy;
 
 public class MessageBusTest {
     private MessageBusImpl messageBus;
@@ -187,6 +219,45 @@ public class MessageBusTest {
                 "Unregistered microService1 should throw an exception when awaiting messages.");
     }
 
+    @Test
+    public void testUnregisterRemovesEverySubscriptionOfTheServiceOnly() {
+        MessageBusImpl bus = MessageBusImpl.newInstance();
+        MicroService leaving = new IdleTestService("Leaving", bus);
+        MicroService staying = new IdleTestService("Staying", bus);
+        MicroService other = new IdleTestService("Other", bus);
+        bus.register(leaving);
+        bus.register(staying);
+        bus.register(other);
+        bus.subscribeEvent(TestEvent.class, leaving);
+        bus.subscribeEvent(MeteredTestEvent.class, leaving);
+        bus.subscribeEvent(RoutedTestEvent.class, leaving);
+        bus.subscribeBroadcast(TestBroadcast.class, leaving);
+        bus.subscribeBroadcast(ControlTestBroadcast.class, leaving);
+        bus.subscribeBroadcastHierarchy(BaseTestBroadcast.class, leaving);
+        bus.subscribeEvent(TestEvent.class, staying);
+        bus.subscribeBroadcast(TestBroadcast.class, staying);
+        bus.subscribeEvent(MeteredTestEvent.class, other);
+        bus.subscribeBroadcast(ControlTestBroadcast.class, other);
+
+        bus.unregister(leaving);
+        // Registered again without subscriptions, it would now receive anything it is still subscribed to
+        bus.register(leaving);
+
+        // The round robin goes over the remaining subscribers only
+        for (int i = 0; i < 4; i++) {
+            bus.sendEvent(new TestEvent());
+        }
+        bus.sendEvent(new MeteredTestEvent());
+        bus.sendEvent(new RoutedTestEvent());
+        bus.sendBroadcast(new TestBroadcast());
+        bus.sendBroadcast(new ControlTestBroadcast());
+        bus.sendBroadcast(new PlainTestBroadcast());
+
+        assertEquals(0, depthOf(bus, "Leaving"), "Nothing should reach the service that left.");
+        assertEquals(5, depthOf(bus, "Staying"));
+        assertEquals(2, depthOf(bus, "Other"));
+    }
+
     @Test
     public void testAwaitMessageThrowsExceptionForUnregisteredMicroService() {
         // Try to call awaitMessage for an unregistered microService
@@ -235,6 +306,841 @@ public class MessageBusTest {
         System.out.println("Main Thread: Test completed successfully.");
     }
 
+    @Test
+    public void testEqualEventsKeepTheirOwnFutures() throws InterruptedException {
+        messageBus.register(microService1);
+        messageBus.subscribeEvent(EqualTestEvent.class, microService1);
+
+        // Two events that are equal() but distinct objects
+        EqualTestEvent event1 = new EqualTestEvent();
+        EqualTestEvent event2 = new EqualTestEvent();
+        Future<String> future1 = messageBus.sendEvent(event1);
+        Future<String> future2 = messageBus.sendEvent(event2);
+        messageBus.awaitMessage(microService1);
+        messageBus.awaitMessage(microService1);
+
+        // Completing the second event must resolve only its own Future
+        messageBus.complete(event2, "second");
+        assertTrue(!future1.isDone(), "The first event was not completed.");
+        assertEquals("second", future2.get(1, TimeUnit.SECONDS));
+        messageBus.complete(event1, "first");
+        assertEquals("first", future1.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFutureContinuationsAndCombinators() throws InterruptedException {
+        messageBus.register(microService1);
+        messageBus.subscribeEvent(TestEvent.class, microService1);
+        TestEvent event1 = new TestEvent();
+        TestEvent event2 = new TestEvent();
+        Future<String> future1 = messageBus.sendEvent(event1);
+        Future<String> future2 = messageBus.sendEvent(event2);
+
+        // Continuations run once the event is completed, without anyone blocking on get()
+        List<String> seen = new CopyOnWriteArrayList<>();
+        future1.onComplete(seen::add);
+        Future<Integer> length = future1.thenApply(String::length);
+        Future<Void> all = Future.allOf(Arrays.asList(future1, future2));
+        Future<String> any = Future.anyOf(Arrays.asList(future1, future2));
+        assertTrue(!length.isDone() && !all.isDone() && !any.isDone(), "Nothing was completed yet.");
+
+        messageBus.awaitMessage(microService1);
+        messageBus.awaitMessage(microService1);
+        messageBus.complete(event2, "second");
+        assertEquals("second", any.get(1, TimeUnit.SECONDS));
+        assertTrue(!all.isDone(), "allOf waits for every Future.");
+
+        messageBus.complete(event1, "first!");
+        assertEquals(Arrays.asList("first!"), seen);
+        assertEquals(6, length.get(1, TimeUnit.SECONDS));
+        assertTrue(all.isDone());
+        assertNull(all.getFailure());
+
+        // A callback added after completion runs right away
+        future1.onComplete(seen::add);
+        assertEquals(2, seen.size());
+    }
+
+    @Test
+    public void testTimedGetsDoNotGrowTheWaitersOfAPendingFuture() throws Exception {
+        Future<String> pending = new Future<>();
+        List<String> seen = new CopyOnWriteArrayList<>();
+        pending.onComplete(seen::add);
+        for (int i = 0; i < 10_000; i++) {
+            assertNull(pending.get(0, TimeUnit.NANOSECONDS));
+        }
+        Thread.currentThread().interrupt();
+        assertNull(pending.get(), "An interrupted get gives up.");
+        assertTrue(Thread.interrupted());
+
+        // Only the continuation is left waiting, the timed out and interrupted waiters were unlinked
+        assertEquals(1, waitersOf(pending));
+        pending.resolve("done");
+        assertEquals(Arrays.asList("done"), seen);
+    }
+
+    // Length of the stack of a pending Future, read through its private state
+    private static int waitersOf(Future<?> future) throws ReflectiveOperationException {
+        Field state = Future.class.getDeclaredField("state");
+        state.setAccessible(true);
+        Object node = state.get(future);
+        int count = 0;
+        while (node != null) {
+            count++;
+            Field next = node.getClass().getDeclaredField("next");
+            next.setAccessible(true);
+            node = next.get(node);
+        }
+        return count;
+    }
+
+    @Test
+    public void testPooledSchedulerRunsServicesOnSharedWorkers() throws InterruptedException {
+        MicroServiceScheduler scheduler = MicroServiceScheduler.create(ExecutionMode.POOLED, 1);
+        List<MicroService> workers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            workers.add(new MicroService("PooledWorker" + i) {
+                @Override
+                protected void initialize() {
+                    subscribeEvent(TestEvent.class, event -> complete(event, Thread.currentThread().getName()));
+                    subscribeBroadcast(TestBroadcast.class, broadcast -> terminate());
+                }
+            });
+        }
+        workers.forEach(scheduler::start);
+        // Wait for the initializations that subscribe the workers
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messageBus.eventSubscribers.get(TestEvent.class) == null || messageBus.broadcastSubscribers.get(TestBroadcast.class) == null
+                || messageBus.broadcastSubscribers.get(TestBroadcast.class).size() < workers.size()) {
+            assertTrue(System.currentTimeMillis() < deadline, "The workers should initialize.");
+            Thread.sleep(10);
+        }
+
+        // Every event is handled by the single pool worker, no service owns a thread
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            futures.add(messageBus.sendEvent(new TestEvent()));
+        }
+        for (Future<String> future : futures) {
+            String handlerThread = future.get(5, TimeUnit.SECONDS);
+            assertNotNull(handlerThread, "Every event should be completed.");
+            assertTrue(handlerThread.startsWith("MicroService pool worker"), handlerThread);
+        }
+
+        messageBus.sendBroadcast(new TestBroadcast());
+        scheduler.awaitTermination();
+        scheduler.shutdown();
+        for (MicroService worker : workers) {
+            assertNull(messageBus.microServiceQueues.get(worker), "Terminated services are unregistered.");
+        }
+    }
+
+    @Test
+    public void testShortestQueueRoutingAvoidsBackedUpSubscriber() {
+        // A subscriber that reports a backlog of held work, like a LiDAR worker with frames on hold
+        MicroService backedUp = new MicroService("BackedUpService") {
+            @Override
+            protected void initialize() {
+            }
+
+            @Override
+            protected int getPendingWork() {
+                return 3;
+            }
+        };
+        messageBus.register(backedUp);
+        messageBus.register(microService1);
+        messageBus.setRoutingStrategy(RoutedTestEvent.class, RoutingStrategy.shortestQueue());
+        messageBus.subscribeEvent(RoutedTestEvent.class, backedUp);
+        messageBus.subscribeEvent(RoutedTestEvent.class, microService1);
+
+        // Loads 3 vs 0, 1, 2: the idle subscriber gets the first three events
+        for (int i = 0; i < 3; i++) {
+            messageBus.sendEvent(new RoutedTestEvent());
+        }
+        assertEquals(0, depthOf("BackedUpService"));
+        assertEquals(3, depthOf("Service1"));
+
+        // Once the loads are equal the next event may go to either
+        messageBus.sendEvent(new RoutedTestEvent());
+        assertEquals(4, depthOf("BackedUpService") + depthOf("Service1"));
+        messageBus.unregister(backedUp);
+    }
+
+    @Test
+    public void testControlMessagesOvertakeData() throws InterruptedException {
+        messageBus.register(microService1);
+        messageBus.subscribeBroadcast(TestBroadcast.class, microService1);
+        messageBus.subscribeBroadcast(ControlTestBroadcast.class, microService1);
+        messageBus.setMessagePriority(ControlTestBroadcast.class, MessagePriority.CONTROL);
+
+        TestBroadcast data1 = new TestBroadcast();
+        TestBroadcast data2 = new TestBroadcast();
+        ControlTestBroadcast control = new ControlTestBroadcast();
+        messageBus.sendBroadcast(data1);
+        messageBus.sendBroadcast(data2);
+        messageBus.sendBroadcast(control);
+
+        // The control broadcast skips the backlog, the data ones keep their order
+        assertEquals(control, messageBus.awaitMessage(microService1));
+        assertEquals(data1, messageBus.awaitMessage(microService1));
+        assertEquals(data2, messageBus.awaitMessage(microService1));
+    }
+
+    @Test
+    public void testAwaitMessagesTakesABatchControlFirst() throws InterruptedException {
+        messageBus.register(microService1);
+        messageBus.subscribeBroadcast(TestBroadcast.class, microService1);
+        messageBus.subscribeBroadcast(ControlTestBroadcast.class, microService1);
+        messageBus.setMessagePriority(ControlTestBroadcast.class, MessagePriority.CONTROL);
+
+        List<TestBroadcast> data = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestBroadcast broadcast = new TestBroadcast();
+            data.add(broadcast);
+            messageBus.sendBroadcast(broadcast);
+        }
+        ControlTestBroadcast control = new ControlTestBroadcast();
+        messageBus.sendBroadcast(control);
+
+        // At most maxMessages per call, the control message first, then the data in order
+        List<Message> batch = new ArrayList<>();
+        assertEquals(3, messageBus.awaitMessages(microService1, batch, 3));
+        assertEquals(Arrays.asList(control, data.get(0), data.get(1)), batch);
+        batch.clear();
+        assertEquals(3, messageBus.awaitMessages(microService1, batch, 10));
+        assertEquals(data.subList(2, 5), batch);
+
+        assertThrows(IllegalArgumentException.class, () -> messageBus.awaitMessages(microService1, new ArrayList<>(), 0));
+        messageBus.unregister(microService1);
+    }
+
+    @Test
+    public void testHierarchicalSubscriptionDispatch() throws InterruptedException {
+        List<String> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch subscribed = new CountDownLatch(1);
+        MicroService listener = new MicroService("HierarchyListener") {
+            @Override
+            protected void initialize() {
+                subscribeBroadcastHierarchy(BaseTestBroadcast.class, b -> handled.add("base:" + b.getClass().getSimpleName()));
+                subscribeBroadcast(SpecialTestBroadcast.class, b -> handled.add("exact:SpecialTestBroadcast"));
+                subscribeBroadcast(TestBroadcast.class, b -> terminate());
+                subscribed.countDown();
+            }
+        };
+        Thread thread = new Thread(listener);
+        thread.start();
+        assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        // Subclasses reach the base callback, an exact subscription wins over it, each broadcast arrives once
+        messageBus.sendBroadcast(new PlainTestBroadcast());
+        messageBus.sendBroadcast(new SpecialTestBroadcast());
+        messageBus.sendBroadcast(new PlainTestBroadcast());
+        messageBus.sendBroadcast(new TestBroadcast());
+        thread.join(5000);
+
+        assertEquals(Arrays.asList("base:PlainTestBroadcast", "exact:SpecialTestBroadcast", "base:PlainTestBroadcast"), handled);
+    }
+
+    @Test
+    public void testLockFreeMailboxKeepsEachSendersOrder() throws InterruptedException {
+        MicroService consumer = new MicroService("LockFreeService") {
+            @Override
+            protected void initialize() {
+            }
+        };
+        messageBus.configureMailbox("LockFreeService", Integer.MAX_VALUE, OverflowPolicy.BLOCK, MailboxType.LOCK_FREE, WaitStrategy.SPIN_THEN_PARK);
+        messageBus.register(consumer);
+        messageBus.subscribeBroadcast(SequenceBroadcast.class, consumer);
+
+        // Enough messages per sender to cross several queue segments while the consumer is parked and woken
+        int senders = 4;
+        int perSender = 5000;
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            int sender = s;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perSender; i++) {
+                    messageBus.sendBroadcast(new SequenceBroadcast(sender, i));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        int[] next = new int[senders];
+        for (int received = 0; received < senders * perSender; received++) {
+            SequenceBroadcast message = (SequenceBroadcast) messageBus.awaitMessage(consumer);
+            assertEquals(next[message.sender]++, message.sequence, "Messages of one sender arrive in order.");
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        messageBus.unregister(consumer);
+    }
+
+    @Test
+    public void testLockFreeMailboxOverflowPolicies() throws InterruptedException {
+        MicroService dropping = new MicroService("LockFreeDroppingService") {
+            @Override
+            protected void initialize() {
+            }
+        };
+        messageBus.configureMailbox("LockFreeDroppingService", 2, OverflowPolicy.DROP_OLDEST, MailboxType.LOCK_FREE, WaitStrategy.PARK);
+        messageBus.register(dropping);
+        messageBus.subscribeBroadcast(TestBroadcast.class, dropping);
+        messageBus.subscribeBroadcast(ControlTestBroadcast.class, dropping);
+        messageBus.setMessagePriority(ControlTestBroadcast.class, MessagePriority.CONTROL);
+
+        TestBroadcast first = new TestBroadcast();
+        TestBroadcast second = new TestBroadcast();
+        TestBroadcast third = new TestBroadcast();
+        ControlTestBroadcast control = new ControlTestBroadcast();
+        messageBus.sendBroadcast(first);
+        messageBus.sendBroadcast(second);
+        messageBus.sendBroadcast(third);
+        messageBus.sendBroadcast(control);
+
+        // The control lane goes first, then the newest two data messages
+        assertEquals(control, messageBus.awaitMessage(dropping));
+        assertEquals(second, messageBus.awaitMessage(dropping));
+        assertEquals(third, messageBus.awaitMessage(dropping));
+        messageBus.unregister(dropping);
+        MailboxStatistics statistics = messageBus.getMailboxStatistics().stream()
+                .filter(s -> s.getOwner().equals("LockFreeDroppingService"))
+                .findFirst().get();
+        assertEquals(1, statistics.getDropped());
+        assertEquals(0, statistics.getDepth());
+    }
+
+    @Test
+    public void testConflatableBroadcastReplacesUndeliveredOne() throws InterruptedException {
+        MicroService lagging = new MicroService("ConflatingService") {
+            @Override
+            protected void initialize() {
+            }
+        };
+        messageBus.register(lagging);
+        messageBus.subscribeBroadcast(SequenceBroadcast.class, lagging);
+        messageBus.subscribeBroadcast(TestBroadcast.class, lagging);
+        messageBus.setConflatable(SequenceBroadcast.class, true);
+
+        SequenceBroadcast tick1 = new SequenceBroadcast(0, 1);
+        SequenceBroadcast tick3 = new SequenceBroadcast(0, 3);
+        TestBroadcast data = new TestBroadcast();
+        messageBus.sendBroadcast(tick1);
+        messageBus.sendBroadcast(data);
+        messageBus.sendBroadcast(new SequenceBroadcast(0, 2));
+        messageBus.sendBroadcast(tick3);
+        assertEquals(2, depthOf("ConflatingService"));
+
+        // The newest tick takes the place of the oldest undelivered one, other types are queued as usual
+        assertEquals(tick3, messageBus.awaitMessage(lagging));
+        assertEquals(data, messageBus.awaitMessage(lagging));
+        // Once delivered, the next tick is queued again
+        SequenceBroadcast tick4 = new SequenceBroadcast(0, 4);
+        messageBus.sendBroadcast(tick4);
+        assertEquals(tick4, messageBus.awaitMessage(lagging));
+
+        messageBus.setConflatable(SequenceBroadcast.class, false);
+        messageBus.unregister(lagging);
+        MailboxStatistics statistics = messageBus.getMailboxStatistics().stream()
+                .filter(st -> st.getOwner().equals("ConflatingService"))
+                .findFirst().get();
+        assertEquals(2, statistics.getConflated());
+    }
+
+    @Test
+    public void testMetricsCountMessagesAndAreExposedThroughJmx() throws Exception {
+        MicroService metered = new MicroService("MeteredService") {
+            @Override
+            protected void initialize() {
+            }
+        };
+        messageBus.register(metered);
+        messageBus.subscribeEvent(MeteredTestEvent.class, metered);
+        String type = MeteredTestEvent.class.getName();
+        MessageBusMetrics before = messageBus.getMetrics();
+
+        // One message in 16 is timed, 400 leave practically no chance of an empty histogram
+        int events = 400;
+        for (int i = 0; i < events; i++) {
+            Future<String> future = messageBus.sendEvent(new MeteredTestEvent());
+            MeteredTestEvent event = (MeteredTestEvent) messageBus.awaitMessage(metered);
+            messageBus.complete(metered, event, "done");
+            assertEquals("done", future.get());
+        }
+
+        MessageBusMetrics after = messageBus.getMetrics();
+        assertEquals(events, after.getSentCounts().get(type) - before.getSentCounts().getOrDefault(type, 0L));
+        assertEquals(events, after.getCompletedCounts().get(type) - before.getCompletedCounts().getOrDefault(type, 0L));
+        MailboxStatistics statistics = after.getMailboxes().stream()
+                .filter(st -> st.getOwner().equals("MeteredService"))
+                .reduce((earlier, later) -> later).get();
+        assertTrue(statistics.getLatency().getCount() > 0);
+        assertTrue(after.getLatency().getCount() >= statistics.getLatency().getCount());
+
+        ObjectName name = new ObjectName(MessageBusMXBean.OBJECT_NAME);
+        long samples = (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "LatencySampleCount");
+        assertTrue(samples >= statistics.getLatency().getCount());
+        messageBus.unregister(metered);
+    }
+
+    @Test
+    public void testSeparateBusesDoNotShareSubscribers() throws InterruptedException {
+        MessageBusImpl first = MessageBusImpl.newInstance();
+        MessageBusImpl second = MessageBusImpl.newInstance();
+        MicroService firstService = new IdleTestService("ScopedService", first);
+        MicroService secondService = new IdleTestService("ScopedService", second);
+        first.register(firstService);
+        second.register(secondService);
+        first.subscribeEvent(TestEvent.class, firstService);
+        first.subscribeBroadcast(TestBroadcast.class, firstService);
+        second.subscribeBroadcast(TestBroadcast.class, secondService);
+
+        // Each bus delivers to its own services only, and neither touches the singleton
+        assertNull(second.sendEvent(new TestEvent()));
+        assertTrue(messageBus.getMailboxStatistics().stream().noneMatch(st -> st.getOwner().equals("ScopedService")));
+        TestEvent event = new TestEvent();
+        Future<String> future = first.sendEvent(event);
+        TestBroadcast broadcast = new TestBroadcast();
+        second.sendBroadcast(broadcast);
+        assertEquals(event, first.awaitMessage(firstService));
+        assertEquals(broadcast, second.awaitMessage(secondService));
+        first.complete(firstService, event, "first");
+        assertEquals("first", future.get());
+        assertEquals(1, first.getMailboxStatistics().size());
+        assertEquals(0, first.getMailboxStatistics().get(0).getDepth());
+
+        first.unregister(firstService);
+        second.unregister(secondService);
+    }
+
+    @Test
+    public void testSendEventsRoutesBatchAndKeepsOrder() throws InterruptedException {
+        MessageBusImpl bus = MessageBusImpl.newInstance();
+        MicroService first = new IdleTestService("BatchService1", bus);
+        MicroService second = new IdleTestService("BatchService2", bus);
+        bus.register(first);
+        bus.register(second);
+        bus.subscribeEvent(TestEvent.class, first);
+        bus.subscribeEvent(TestEvent.class, second);
+
+        // Round-robin over the batch, an event nobody subscribed to gets no Future
+        TestEvent e1 = new TestEvent();
+        TestEvent e2 = new TestEvent();
+        TestEvent e3 = new TestEvent();
+        TestEvent e4 = new TestEvent();
+        List<Event<String>> batch = Arrays.asList(e1, e2, new RoutedTestEvent(), e3, e4);
+        List<Future<String>> futures = bus.sendEvents(batch);
+        assertEquals(5, futures.size());
+        assertNull(futures.get(2));
+        assertEquals(e1, bus.awaitMessage(first));
+        assertEquals(e3, bus.awaitMessage(first));
+        assertEquals(e2, bus.awaitMessage(second));
+        assertEquals(e4, bus.awaitMessage(second));
+
+        // The futures follow the order of the batch
+        bus.complete(first, e3, "third");
+        bus.complete(second, e2, "second");
+        assertEquals("second", futures.get(1).get());
+        assertEquals("third", futures.get(3).get());
+        assertTrue(!futures.get(0).isDone() && !futures.get(4).isDone());
+
+        bus.unregister(first);
+        bus.unregister(second);
+    }
+
+    @Test
+    public void testExpiredAndCancelledEventsAreFailedAndForgotten() throws InterruptedException {
+        MessageBusImpl bus = MessageBusImpl.newInstance();
+        MicroService handler = new IdleTestService("DeadlineService", bus);
+        bus.register(handler);
+        bus.subscribeEvent(TestEvent.class, handler);
+
+        // A taken event that is never completed expires
+        TestEvent taken = new TestEvent();
+        Future<String> takenFuture = bus.sendEvent(taken, 30, TimeUnit.MILLISECONDS);
+        assertEquals(taken, bus.awaitMessage(handler));
+        assertNull(takenFuture.get(5, TimeUnit.SECONDS));
+        assertTrue(takenFuture.getFailure() instanceof TimeoutException);
+
+        // A queued event that expired or was cancelled is skipped by the handler
+        Future<String> expiring = bus.sendEvent(new TestEvent(), 30, TimeUnit.MILLISECONDS);
+        Future<String> cancelled = bus.sendEvent(new TestEvent());
+        assertTrue(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+        TestEvent live = new TestEvent();
+        Future<String> liveFuture = bus.sendEvent(live, 1, TimeUnit.MINUTES);
+        expiring.get(5, TimeUnit.SECONDS);
+        assertTrue(expiring.getFailure() instanceof TimeoutException);
+        assertEquals(live, bus.awaitMessage(handler));
+        bus.complete(handler, live, "done");
+        assertEquals("done", liveFuture.get());
+
+        // Unregistering cancels what the handler still holds
+        TestEvent held = new TestEvent();
+        Future<String> heldFuture = bus.sendEvent(held);
+        Future<String> queuedFuture = bus.sendEvent(new TestEvent());
+        assertEquals(held, bus.awaitMessage(handler));
+        bus.unregister(handler);
+        assertTrue(heldFuture.isCancelled());
+        assertTrue(queuedFuture.isCancelled());
+
+        MailboxStatistics statistics = bus.getMailboxStatistics().get(0);
+        assertEquals(2, statistics.getExpired());
+        assertEquals(2, statistics.getCancelled());
+        assertEquals(2L, bus.getMetrics().getExpiredCounts().get(TestEvent.class.getName()));
+    }
+
+    @Test
+    public void testConsistentHashKeepsKeysOnTheirWorkerAndRebalances() throws InterruptedException {
+        MessageBusImpl bus = MessageBusImpl.newInstance();
+        List<MicroService> workers = new ArrayList<>();
+        bus.setRoutingStrategy(KeyedTestEvent.class, RoutingStrategy.consistentHash());
+        for (int i = 0; i < 3; i++) {
+            MicroService worker = new IdleTestService("KeyedWorker" + i, bus);
+            bus.register(worker);
+            bus.subscribeEvent(KeyedTestEvent.class, worker);
+            workers.add(worker);
+        }
+
+        // Every key goes to one worker, every time
+        Map<String, MicroService> owners = new HashMap<>();
+        for (int round = 0; round < 2; round++) {
+            for (int key = 0; key < 60; key++) {
+                bus.sendEvent(new KeyedTestEvent("object" + key));
+            }
+            for (MicroService worker : workers) {
+                List<Message> received = new ArrayList<>();
+                bus.awaitMessages(worker, received, 60);
+                for (Message message : received) {
+                    MicroService previous = owners.put(((KeyedTestEvent) message).key, worker);
+                    assertTrue(previous == null || previous == worker, "A key should stick to its worker.");
+                }
+            }
+        }
+        assertEquals(60, owners.size());
+        for (MicroService worker : workers) {
+            assertTrue(owners.containsValue(worker), "Every worker should own some keys.");
+        }
+
+        // After a worker leaves only its keys move
+        MicroService crashed = workers.remove(0);
+        bus.unregister(crashed);
+        for (int key = 0; key < 60; key++) {
+            bus.sendEvent(new KeyedTestEvent("object" + key));
+        }
+        for (MicroService worker : workers) {
+            List<Message> received = new ArrayList<>();
+            bus.awaitMessages(worker, received, 60);
+            for (Message message : received) {
+                MicroService previous = owners.get(((KeyedTestEvent) message).key);
+                assertTrue(previous == worker || previous == crashed, "Only the keys of the removed worker should move.");
+            }
+            bus.unregister(worker);
+        }
+    }
+
+    @Test
+    public void testTracedEventsRecordTheirStages() throws InterruptedException {
+        MessageBusImpl bus = MessageBusImpl.newInstance();
+        Tracer tracer = bus.getTracer();
+        CountDownLatch subscribed = new CountDownLatch(1);
+        MicroService handler = new MicroService("TracedHandler", bus) {
+            @Override
+            protected void initialize() {
+                subscribeEvent(TracedTestEvent.class, event -> {
+                    tracer.end(event.getTrace().getTraceId(), "end to end");
+                    complete(event, "done");
+                    terminate();
+                });
+                subscribed.countDown();
+            }
+        };
+        Thread thread = new Thread(handler);
+        thread.start();
+        subscribed.await();
+
+        long traceId = tracer.begin();
+        TracedTestEvent event = new TracedTestEvent(traceId);
+        assertEquals("done", bus.sendEvent(event).get(5, TimeUnit.SECONDS));
+        thread.join(); // The handler stage is recorded once the callback returns
+
+        TraceSpan span = event.getTrace();
+        assertTrue(span.getEnqueuedAt() <= span.getDequeuedAt() && span.getDequeuedAt() <= span.getStartedAt()
+                && span.getStartedAt() <= span.getEndedAt(), "The stages should be stamped in order.");
+        Map<String, LatencyHistogram> stages = tracer.getStages();
+        assertEquals(Arrays.asList("end to end", "TracedTestEvent queued", "TracedTestEvent dispatch", "TracedTestEvent handler"),
+                new ArrayList<>(stages.keySet()));
+        stages.values().forEach(latency -> assertEquals(1, latency.getCount()));
+
+        // A chain ends once
+        tracer.end(traceId, "end to end");
+        assertEquals(1, tracer.getStages().get("end to end").getCount());
+    }
+
+    @Test
+    public void testChainsOfFailedTracedEventsAreForgotten() {
+        MessageBusImpl bus = MessageBusImpl.newInstance();
+        Tracer tracer = bus.getTracer();
+
+        // No subscriber yet, the event is not sent
+        long unrouted = tracer.begin();
+        assertNull(bus.sendEvent(new TracedTestEvent(unrouted)));
+
+        MicroService handler = new IdleTestService("TracedIdleHandler", bus);
+        bus.register(handler);
+        bus.subscribeEvent(TracedTestEvent.class, handler);
+        long cancelled = tracer.begin();
+        assertTrue(bus.sendEvent(new TracedTestEvent(cancelled)).cancel());
+        long unregistered = tracer.begin();
+        Future<String> pending = bus.sendEvent(new TracedTestEvent(unregistered));
+        bus.unregister(handler);
+        assertTrue(pending.isCancelled());
+
+        // Ending the chains now records nothing, their start times are gone
+        tracer.end(unrouted, "end to end");
+        tracer.end(cancelled, "end to end");
+        tracer.end(unregistered, "end to end");
+        assertFalse(tracer.getStages().containsKey("end to end"));
+    }
+
+    @Test
+    public void testQuiescenceWaitsForTheWorkMessagesCause() throws InterruptedException {
+        assertThrows(IllegalStateException.class, () -> MessageBusImpl.newInstance().awaitQuiescence(1, TimeUnit.SECONDS));
+
+        MessageBusImpl bus = MessageBusImpl.newInstance();
+        bus.trackQuiescence();
+        AtomicInteger handled = new AtomicInteger();
+        CountDownLatch subscribed = new CountDownLatch(2);
+        // The relay reacts to each broadcast with an event for the sink, both take their time
+        MicroService relay = new MicroService("Relay", bus) {
+            @Override
+            protected void initialize() {
+                subscribeBroadcast(TestBroadcast.class, broadcast -> {
+                    sleepQuietly(20);
+                    sendEvent(new TestEvent());
+                });
+                subscribeBroadcast(ControlTestBroadcast.class, stop -> terminate());
+                subscribed.countDown();
+            }
+        };
+        MicroService sink = new MicroService("Sink", bus) {
+            @Override
+            protected void initialize() {
+                subscribeEvent(TestEvent.class, event -> {
+                    sleepQuietly(20);
+                    handled.incrementAndGet();
+                    complete(event, "done");
+                });
+                subscribeBroadcast(ControlTestBroadcast.class, stop -> terminate());
+                subscribed.countDown();
+            }
+        };
+        List<Thread> threads = Arrays.asList(new Thread(relay), new Thread(sink));
+        threads.forEach(Thread::start);
+        subscribed.await();
+        assertTrue(bus.awaitQuiescence(1, TimeUnit.SECONDS), "Nothing was sent yet.");
+
+        for (int i = 0; i < 3; i++) {
+            bus.sendBroadcast(new TestBroadcast());
+        }
+        assertFalse(bus.awaitQuiescence(0, TimeUnit.SECONDS), "The broadcasts are counted once sent.");
+        assertTrue(bus.awaitQuiescence(5, TimeUnit.SECONDS));
+        assertEquals(3, handled.get(), "The events sent by the relay should be handled too.");
+
+        bus.sendBroadcast(new ControlTestBroadcast());
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testBoundedMailboxOverflowPolicies() throws InterruptedException {
+        // Mailboxes are configured by service name, use names no other test registers
+        MicroService rejecting = new MicroService("RejectingService") {
+            @Override
+            protected void initialize() {
+            }
+        };
+        MicroService dropping = new MicroService("DroppingService") {
+            @Override
+            protected void initialize() {
+            }
+        };
+        messageBus.configureMailbox("RejectingService", 1, OverflowPolicy.REJECT);
+        messageBus.configureMailbox("DroppingService", 1, OverflowPolicy.DROP_OLDEST);
+        messageBus.register(rejecting);
+        messageBus.register(dropping);
+
+        // A full REJECT mailbox fails the Future of the second event
+        messageBus.subscribeEvent(TestEvent.class, rejecting);
+        Future<String> accepted = messageBus.sendEvent(new TestEvent());
+        Future<String> refused = messageBus.sendEvent(new TestEvent());
+        assertTrue(!accepted.isDone(), "The first event should be queued.");
+        assertTrue(refused.isDone(), "The second event should be refused.");
+        assertNotNull(refused.getFailure(), "A refused event should carry the failure cause.");
+
+        // A full DROP_OLDEST mailbox keeps the newest broadcast
+        messageBus.subscribeBroadcast(TestBroadcast.class, dropping);
+        TestBroadcast first = new TestBroadcast();
+        TestBroadcast second = new TestBroadcast();
+        messageBus.sendBroadcast(first);
+        messageBus.sendBroadcast(second);
+        assertEquals(second, messageBus.awaitMessage(dropping), "The oldest broadcast should have been dropped.");
+
+        // Both overflows are visible in the statistics
+        MailboxStatistics droppingStatistics = messageBus.getMailboxStatistics().stream()
+                .filter(statistics -> statistics.getOwner().equals("DroppingService"))
+                .findFirst().get();
+        assertEquals(1, droppingStatistics.getDropped());
+        assertEquals(1, droppingStatistics.getPeakDepth());
+
+        messageBus.unregister(rejecting);
+        messageBus.unregister(dropping);
+    }
+
+    @Test
+    public void testDroppedEventsHaveTheirFuturesFailed() {
+        for (MailboxType type : MailboxType.values()) {
+            String evictingName = "EvictingService" + type;
+            String refusingName = "RefusingService" + type;
+            MicroService evicting = new IdleTestService(evictingName, messageBus);
+            MicroService refusing = new IdleTestService(refusingName, messageBus);
+            messageBus.configureMailbox(evictingName, 1, OverflowPolicy.DROP_OLDEST, type, WaitStrategy.PARK);
+            messageBus.configureMailbox(refusingName, 1, OverflowPolicy.DROP_NEWEST, type, WaitStrategy.PARK);
+            messageBus.register(evicting);
+            messageBus.register(refusing);
+
+            // DROP_OLDEST evicts the queued event to make room for the new one
+            messageBus.subscribeEvent(TestEvent.class, evicting);
+            Future<String> evicted = messageBus.sendEvent(new TestEvent());
+            Future<String> kept = messageBus.sendEvent(new TestEvent());
+            assertTrue(evicted.isDone(), type + ": the evicted event should not leave its sender waiting.");
+            assertNotNull(evicted.getFailure());
+            assertFalse(kept.isDone());
+            messageBus.unregister(evicting);
+
+            // DROP_NEWEST refuses the new event
+            messageBus.subscribeEvent(TestEvent.class, refusing);
+            Future<String> queued = messageBus.sendEvent(new TestEvent());
+            Future<String> refused = messageBus.sendEvent(new TestEvent());
+            assertFalse(queued.isDone());
+            assertTrue(refused.isDone(), type + ": the refused event should not leave its sender waiting.");
+            assertNotNull(refused.getFailure());
+            assertNull(refused.get(), "A failed Future returns null without blocking.");
+            messageBus.unregister(refusing);
+        }
+    }
+
+    @Test
+    public void testBlockedSendersAreCancelledWhenTheOwnerUnregisters() throws InterruptedException {
+        for (MailboxType type : MailboxType.values()) {
+            MessageBusImpl bus = MessageBusImpl.newInstance();
+            MicroService owner = new IdleTestService("BlockingService", bus);
+            bus.configureMailbox("BlockingService", 1, OverflowPolicy.BLOCK, type, WaitStrategy.PARK);
+            bus.register(owner);
+            bus.subscribeEvent(TestEvent.class, owner);
+            Future<String> queued = bus.sendEvent(new TestEvent());
+
+            // The mailbox is full, the second sender waits for room
+            AtomicReference<Future<String>> blocked = new AtomicReference<>();
+            Thread sender = new Thread(() -> blocked.set(bus.sendEvent(new TestEvent())));
+            sender.start();
+            while (sender.getState() != Thread.State.WAITING && sender.getState() != Thread.State.TIMED_WAITING) {
+                Thread.yield();
+            }
+
+            bus.unregister(owner);
+            sender.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(sender.isAlive(), type + ": the blocked sender should give up once the owner unregisters.");
+            assertTrue(queued.getFailure() instanceof CancellationException);
+            assertTrue(blocked.get().getFailure() instanceof CancellationException,
+                    type + ": the blocked sender's Future should be cancelled, not left pending.");
+        }
+    }
+
+    @Test
+    public void testEveryConflatableBroadcastIsDeliveredReplacedOrDropped() throws InterruptedException {
+        for (MailboxType type : MailboxType.values()) {
+            MessageBusImpl bus = MessageBusImpl.newInstance();
+            MicroService lagging = new IdleTestService("LaggingService", bus);
+            bus.configureMailbox("LaggingService", 1, OverflowPolicy.DROP_NEWEST, type, WaitStrategy.PARK);
+            bus.register(lagging);
+            bus.subscribeBroadcast(SequenceBroadcast.class, lagging);
+            bus.subscribeBroadcast(TestBroadcast.class, lagging);
+            bus.setConflatable(SequenceBroadcast.class, true);
+
+            AtomicInteger sequencesReceived = new AtomicInteger();
+            AtomicInteger othersReceived = new AtomicInteger();
+            Thread owner = new Thread(() -> {
+                try {
+                    while (true) {
+                        if (bus.awaitMessage(lagging) instanceof SequenceBroadcast) {
+                            sequencesReceived.incrementAndGet();
+                        } else {
+                            othersReceived.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped once the mailbox is empty
+                }
+            });
+            owner.start();
+            // Two senders race on the slot while the third keeps the mailbox full
+            int perSender = 20_000;
+            Thread[] senders = new Thread[3];
+            for (int s = 0; s < senders.length; s++) {
+                int sender = s;
+                senders[s] = new Thread(() -> {
+                    for (int i = 0; i < perSender; i++) {
+                        bus.sendBroadcast(sender < 2 ? new SequenceBroadcast(sender, i) : new TestBroadcast());
+                    }
+                });
+                senders[s].start();
+            }
+            for (Thread sender : senders) {
+                sender.join();
+            }
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (depthOf(bus, "LaggingService") > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            owner.interrupt();
+            owner.join();
+
+            MailboxStatistics statistics = bus.getMailboxStatistics().get(0);
+            long othersDropped = perSender - othersReceived.get();
+            assertEquals(2L * perSender,
+                    sequencesReceived.get() + statistics.getConflated() + statistics.getDropped() - othersDropped,
+                    type + ": a conflatable broadcast was lost without being counted.");
+            // The slot is left free to be queued again
+            SequenceBroadcast last = new SequenceBroadcast(2, 0);
+            bus.sendBroadcast(last);
+            assertEquals(1, depthOf(bus, "LaggingService"));
+            assertEquals(last, bus.awaitMessage(lagging));
+            bus.unregister(lagging);
+        }
+    }
+
+    private int depthOf(String serviceName) {
+        return depthOf(messageBus, serviceName);
+    }
+
+    private static int depthOf(MessageBusImpl bus, String serviceName) {
+        // Live mailboxes come after the retired ones of earlier tests
+        return bus.getMailboxStatistics().stream()
+                .filter(statistics -> statistics.getOwner().equals(serviceName))
+                .reduce((earlier, later) -> later).get().getDepth();
+    }
+
     // Helper classes for testing
     private static class TestEvent implements Event<String> {
     }
@@ -242,6 +1148,82 @@ public class MessageBusTest {
     private static class TestBroadcast implements Broadcast {
     }
 
+    private static class MeteredTestEvent implements Event<String> {
+    }
+
+    private static class IdleTestService extends MicroService {
+        IdleTestService(String name, MessageBus messageBus) {
+            super(name, messageBus);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+
+    private static class RoutedTestEvent implements Event<String> {
+    }
+
+    private static class TracedTestEvent implements TracedEvent<String> {
+        private final TraceSpan trace;
+
+        TracedTestEvent(long traceId) {
+            trace = new TraceSpan(traceId);
+        }
+
+        @Override
+        public TraceSpan getTrace() {
+            return trace;
+        }
+    }
+
+    private static class KeyedTestEvent implements KeyedEvent<String> {
+        private final String key;
+
+        KeyedTestEvent(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object getRoutingKey() {
+            return key;
+        }
+    }
+
+    private static class ControlTestBroadcast implements Broadcast {
+    }
+
+    private static class SequenceBroadcast implements Broadcast {
+        private final int sender;
+        private final int sequence;
+
+        SequenceBroadcast(int sender, int sequence) {
+            this.sender = sender;
+            this.sequence = sequence;
+        }
+    }
+
+    private abstract static class BaseTestBroadcast implements Broadcast {
+    }
+
+    private static class PlainTestBroadcast extends BaseTestBroadcast {
+    }
+
+    private static class SpecialTestBroadcast extends BaseTestBroadcast {
+    }
+
+    private static class EqualTestEvent implements Event<String> {
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof EqualTestEvent;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+
 
     @AfterEach
     public void tearDown() {
@@ -260,7 +1242,6 @@ public class MessageBusTest {
         messageBus.microServiceQueues.clear();
         messageBus.eventSubscribers.clear();
         messageBus.broadcastSubscribers.clear();
-        messageBus.eventFutures.clear();
         System.out.println("TearDown: Cleared internal data structures of MessageBus.");
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,263 @@
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Event;
+import bgu.spl.mics.Future;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MessageBus;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MessageBusServer;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.RemoteMessageBus;
+import bgu.spl.mics.SharedMemoryChannel;
+
+/**
+ * Runs both ends of the transports in this JVM: a host bus behind a
+ * {@link MessageBusServer} and a micro-service connected through a
+ * {@link RemoteMessageBus}, as a LiDAR worker in another process would be.
+ */
+public class RemoteMessageBusTest {
+
+    // Set by the static initializer of InitializationProbe, outside it so reading it does not initialize the probe
+    private static volatile boolean probeInitialized;
+
+    @Test
+    public void testEventsBroadcastsAndFuturesCrossTheConnection() throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.start(host, 0);
+                RemoteMessageBus remote = RemoteMessageBus.connect("localhost", server.getPort())) {
+            exchange(host, remote);
+        }
+    }
+
+    @Test
+    public void testEventsBroadcastsAndFuturesCrossSharedMemory(@TempDir Path directory) throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.serve(host, SharedMemoryChannel.create(directory, 1024));
+                RemoteMessageBus remote = RemoteMessageBus.connect(SharedMemoryChannel.open(directory))) {
+            exchange(host, remote);
+        }
+    }
+
+    @Test
+    public void testHierarchicalSubscriptionsCrossTheConnection() throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.start(host, 0);
+                RemoteMessageBus remote = RemoteMessageBus.connect("localhost", server.getPort())) {
+            MicroService worker = new IdleService("RemoteHierarchyWorker", remote);
+            remote.register(worker);
+            remote.subscribeEventHierarchy(BaseRemoteEvent.class, worker);
+            remote.subscribeBroadcastHierarchy(BaseRemoteBroadcast.class, worker);
+            // The server handles frames in order, once this is routed the subscriptions are in place
+            assertNull(remote.sendEvent(new UnhandledEvent()));
+
+            Future<String> answer = host.sendEvent(new SpecialRemoteEvent());
+            assertNotNull(answer, "The subtype should reach the hierarchical subscriber.");
+            Message message = remote.awaitMessage(worker);
+            assertTrue(message instanceof SpecialRemoteEvent);
+            remote.complete(worker, (SpecialRemoteEvent) message, "special");
+            assertEquals("special", answer.get(5, TimeUnit.SECONDS));
+
+            host.sendBroadcast(new SpecialRemoteBroadcast());
+            assertTrue(remote.awaitMessage(worker) instanceof SpecialRemoteBroadcast);
+        }
+    }
+
+    @Test
+    public void testServerRefusesClassesThatAreNotMessages() throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.start(host, 0);
+                Socket socket = new Socket("localhost", server.getPort())) {
+            // A SEND_EVENT frame (type 5) naming a class that is not an event
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] json = "{}".getBytes(StandardCharsets.UTF_8);
+            out.writeByte(5);
+            out.writeLong(1);
+            out.writeUTF(InitializationProbe.class.getName());
+            out.writeInt(json.length);
+            out.write(json);
+            out.flush();
+
+            // The server drops the connection without initializing the class
+            socket.setSoTimeout(5000);
+            assertEquals(-1, socket.getInputStream().read());
+            assertFalse(probeInitialized);
+        }
+    }
+
+    @Test
+    public void testInterruptedSenderKeepsItsFuture() throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.start(host, 0);
+                RemoteMessageBus remote = RemoteMessageBus.connect("localhost", server.getPort())) {
+            MicroService hostService = new IdleService("InterruptedSenderHost", host);
+            host.register(hostService);
+            host.subscribeEvent(EchoEvent.class, hostService);
+
+            // Interrupted before the server answers, the event is still sent and its result still arrives
+            Thread.currentThread().interrupt();
+            Future<String> echo = remote.sendEvent(new EchoEvent("interrupted"));
+            assertTrue(Thread.interrupted(), "The interrupt status should be kept.");
+            assertNotNull(echo);
+            EchoEvent received = (EchoEvent) host.awaitMessage(hostService);
+            host.complete(hostService, received, "still answered");
+            assertEquals("still answered", echo.get(5, TimeUnit.SECONDS));
+
+            // Without a subscriber the Future of an interrupted sender fails instead
+            Thread.currentThread().interrupt();
+            Future<String> unrouted = remote.sendEvent(new UnhandledEvent());
+            assertTrue(Thread.interrupted());
+            assertNotNull(unrouted);
+            unrouted.get(5, TimeUnit.SECONDS);
+            assertTrue(unrouted.getFailure() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testContinuationsCannotSendOnTheReaderThread() throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.start(host, 0);
+                RemoteMessageBus remote = RemoteMessageBus.connect("localhost", server.getPort())) {
+            MicroService hostService = new IdleService("ContinuationHost", host);
+            host.register(hostService);
+            host.subscribeEvent(EchoEvent.class, hostService);
+
+            AtomicReference<RuntimeException> refused = new AtomicReference<>();
+            Future<String> echo = remote.sendEvent(new EchoEvent("first"));
+            Future<Void> continued = new Future<>();
+            echo.onComplete(result -> {
+                try {
+                    remote.sendEvent(new EchoEvent("from the continuation"));
+                } catch (RuntimeException e) {
+                    refused.set(e);
+                }
+                continued.resolve(null);
+            });
+            host.complete(hostService, (EchoEvent) host.awaitMessage(hostService), "first back");
+            continued.get(5, TimeUnit.SECONDS);
+            assertTrue(refused.get() instanceof IllegalStateException);
+
+            // The reader was not blocked, the connection still works
+            Future<String> next = remote.sendEvent(new EchoEvent("second"));
+            host.complete(hostService, (EchoEvent) host.awaitMessage(hostService), "second back");
+            assertEquals("second back", next.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void exchange(MessageBusImpl host, RemoteMessageBus remote) throws Exception {
+        MicroService hostService = new IdleService("HostService", host);
+        host.register(hostService);
+        host.subscribeEvent(EchoEvent.class, hostService);
+
+        MicroService worker = new IdleService("RemoteWorker", remote);
+        remote.register(worker);
+        remote.subscribeEvent(PingEvent.class, worker);
+        remote.subscribeBroadcast(PingBroadcast.class, worker);
+
+        // Remote to host, the answer of sendEvent also shows the server processed the subscriptions
+        Future<String> echo = remote.sendEvent(new EchoEvent("hello"));
+        assertNotNull(echo);
+        EchoEvent received = (EchoEvent) host.awaitMessage(hostService);
+        assertEquals("hello", received.text);
+        host.complete(hostService, received, "hello back");
+        assertEquals("hello back", echo.get(5, TimeUnit.SECONDS));
+
+        // A frame larger than a shared memory ring crosses in parts
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append(i).append(' ');
+        }
+        Future<String> largeEcho = remote.sendEvent(new EchoEvent(large.toString()));
+        received = (EchoEvent) host.awaitMessage(hostService);
+        assertEquals(large.toString(), received.text);
+        host.complete(hostService, received, received.text);
+        assertEquals(large.toString(), largeEcho.get(5, TimeUnit.SECONDS));
+
+        // Host to remote, the Future of the host resolves when the remote handler completes
+        Future<String> ping = host.sendEvent(new PingEvent("ping"));
+        assertNotNull(ping);
+        Message message = remote.awaitMessage(worker);
+        assertTrue(message instanceof PingEvent);
+        assertEquals("ping", ((PingEvent) message).text);
+        remote.complete(worker, (PingEvent) message, "pong");
+        assertEquals("pong", ping.get(5, TimeUnit.SECONDS));
+
+        host.sendBroadcast(new PingBroadcast());
+        assertTrue(remote.awaitMessage(worker) instanceof PingBroadcast);
+
+        // Without a subscriber the remote sendEvent returns null as the local one does
+        assertNull(remote.sendEvent(new UnhandledEvent()));
+
+        // An event held by the worker is cancelled when its process goes away
+        Future<String> held = host.sendEvent(new PingEvent("held"));
+        assertTrue(remote.awaitMessage(worker) instanceof PingEvent);
+        remote.close();
+        held.get(5, TimeUnit.SECONDS);
+        assertTrue(held.isCancelled());
+    }
+
+    private static class EchoEvent implements Event<String> {
+        private final String text;
+
+        EchoEvent(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class PingEvent implements Event<String> {
+        private final String text;
+
+        PingEvent(String text) {
+            this.text = text;
+        }
+    }
+
+    private static class UnhandledEvent implements Event<String> {
+    }
+
+    // Not a message, records whether anything initialized it
+    private static class InitializationProbe {
+        static {
+            probeInitialized = true;
+        }
+    }
+
+    private static class PingBroadcast implements Broadcast {
+    }
+
+    private abstract static class BaseRemoteEvent implements Event<String> {
+    }
+
+    private static class SpecialRemoteEvent extends BaseRemoteEvent {
+    }
+
+    private abstract static class BaseRemoteBroadcast implements Broadcast {
+    }
+
+    private static class SpecialRemoteBroadcast extends BaseRemoteBroadcast {
+    }
+
+    private static class IdleService extends MicroService {
+        IdleService(String name, MessageBus messageBus) {
+            super(name, messageBus);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Event;
+import bgu.spl.mics.Future;
+import bgu.spl.mics.Message;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.RoutingStrategy;
+
+/**
+ * Compares the event latency of the {@link RoutingStrategy routing strategies}
+ * when the subscribers of an event type work at different speeds, like LiDAR
+ * workers with different frequencies.
+ * <p>
+ * Three fast workers and one worker four times slower receive frame-like
+ * events at a fixed rate, about 75% of their total capacity. Round-robin keeps
+ * feeding the slow worker its full share, so its queue and the tail latency
+ * grow, the load-aware strategies route around it.
+ * Not a unit test (surefire skips it), run it by hand after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes RoutingBenchmark}
+ */
+public class RoutingBenchmark {
+
+    private static final long[] SERVICE_MICROS = {1000, 1000, 1000, 4000};
+    private static final long SEND_INTERVAL_MICROS = 400;
+    private static final int EVENTS = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+        List<String> names = Arrays.asList("round-robin", "shortest-queue", "power-of-two");
+
+        System.out.printf("%16s %12s %12s %12s %14s%n", "strategy", "mean ms", "p99 ms", "max ms", "slow share %");
+        run(messageBus, RoutingStrategy::roundRobin); // Warm up
+        for (String name : names) {
+            long[] result = run(messageBus, () -> RoutingStrategy.forName(name));
+            System.out.printf("%16s %12.2f %12.2f %12.2f %14.1f%n", name,
+                    result[0] / 1e6, result[1] / 1e6, result[2] / 1e6, result[3] * 100.0 / EVENTS);
+        }
+    }
+
+    // Returns the mean, p99 and max latency in nanos and the number of events the slow worker handled
+    private static long[] run(MessageBusImpl messageBus, Supplier<RoutingStrategy> strategy) throws InterruptedException {
+        messageBus.setRoutingStrategy(FrameEvent.class, strategy.get());
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < SERVICE_MICROS.length; i++) {
+            Worker worker = new Worker("worker" + i, SERVICE_MICROS[i], messageBus);
+            messageBus.register(worker);
+            messageBus.subscribeEvent(FrameEvent.class, worker);
+            messageBus.subscribeBroadcast(StopBroadcast.class, worker);
+            workers.add(worker);
+            worker.thread.start();
+        }
+
+        long[] latencies = new long[EVENTS];
+        CountDownLatch completed = new CountDownLatch(EVENTS);
+        long next = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            next += TimeUnit.MICROSECONDS.toNanos(SEND_INTERVAL_MICROS);
+            LockSupport.parkNanos(next - System.nanoTime());
+            int index = i;
+            long sent = System.nanoTime();
+            Future<Boolean> future = messageBus.sendEvent(new FrameEvent());
+            future.onComplete(ack -> {
+                latencies[index] = System.nanoTime() - sent;
+                completed.countDown();
+            });
+        }
+        completed.await();
+        messageBus.sendBroadcast(new StopBroadcast());
+        for (Worker worker : workers) {
+            worker.thread.join();
+            messageBus.unregister(worker);
+        }
+
+        Arrays.sort(latencies);
+        long sum = 0;
+        for (long latency : latencies) {
+            sum += latency;
+        }
+        Worker slow = workers.get(workers.size() - 1);
+        return new long[] {sum / EVENTS, latencies[EVENTS * 99 / 100], latencies[EVENTS - 1], slow.handled};
+    }
+
+    private static class FrameEvent implements Event<Boolean> {
+    }
+
+    private static class StopBroadcast implements Broadcast {
+    }
+
+    private static class Worker extends MicroService {
+        private final Thread thread;
+        private volatile long handled;
+
+        Worker(String name, long serviceMicros, MessageBusImpl messageBus) {
+            super(name);
+            thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        Message message = messageBus.awaitMessage(this);
+                        if (message instanceof StopBroadcast) {
+                            return;
+                        }
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(serviceMicros)); // Simulated processing
+                        handled++;
+                        messageBus.complete(this, (FrameEvent) message, true);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, name);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+}
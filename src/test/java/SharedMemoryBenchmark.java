@@ -0,0 +1,129 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Future;
+import bgu.spl.mics.MessageBus;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MessageBusServer;
+import bgu.spl.mics.MicroService;
+import bgu.spl.mics.RemoteMessageBus;
+import bgu.spl.mics.SharedMemoryChannel;
+import bgu.spl.mics.application.messages.DetectObjectsEvent;
+import bgu.spl.mics.application.objects.DetectedObject;
+import bgu.spl.mics.application.objects.StampedDetectedObjects;
+
+/**
+ * Measures the round trip of a {@link DetectObjectsEvent}, from sendEvent to
+ * its resolved Future, when the LiDAR-like worker that completes it uses the
+ * bus in-process, through a {@link SharedMemoryChannel}, and through a
+ * loopback socket.
+ * <p>
+ * Both ends run in this JVM, the transports do not know it: the remote
+ * worker only shares the ring files (or the port) with the host bus. Each
+ * frame carries {@link #OBJECTS} detected objects.
+ * Not a unit test (surefire skips it), run it by hand after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes:<gson jar> SharedMemoryBenchmark}
+ */
+public class SharedMemoryBenchmark {
+
+    private static final int WARMUP = 5_000;
+    private static final int ROUNDS = 20_000;
+    private static final int OBJECTS = 4;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%14s %12s %12s %12s %12s%n", "transport", "mean us", "p50 us", "p99 us", "max us");
+        print("in-process", inProcess());
+        print("shared memory", sharedMemory());
+        print("socket", socket());
+    }
+
+    private static long[] inProcess() throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        return measure(host, host);
+    }
+
+    private static long[] sharedMemory() throws Exception {
+        Path directory = Files.createTempDirectory("bus");
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.serve(host, SharedMemoryChannel.create(directory, 1 << 16));
+                RemoteMessageBus remote = RemoteMessageBus.connect(SharedMemoryChannel.open(directory))) {
+            return measure(host, remote);
+        }
+    }
+
+    private static long[] socket() throws Exception {
+        MessageBusImpl host = MessageBusImpl.newInstance();
+        try (MessageBusServer server = MessageBusServer.start(host, 0);
+                RemoteMessageBus remote = RemoteMessageBus.connect("localhost", server.getPort())) {
+            return measure(host, remote);
+        }
+    }
+
+    // Returns the round trips in nanos, sorted
+    private static long[] measure(MessageBusImpl host, MessageBus workerBus) throws Exception {
+        CountDownLatch subscribed = new CountDownLatch(1);
+        Thread worker = new Thread(new LiDarLike(workerBus, subscribed), "LiDarLike");
+        worker.start();
+        subscribed.await();
+
+        List<DetectedObject> objects = new ArrayList<>();
+        for (int i = 0; i < OBJECTS; i++) {
+            objects.add(new DetectedObject("Object_" + i, "Detected object " + i));
+        }
+        // A remote subscription reaches the host asynchronously
+        while (host.sendEvent(event(objects, 0)) == null) {
+            Thread.yield();
+        }
+
+        long[] rounds = new long[ROUNDS];
+        for (int i = 0; i < WARMUP + ROUNDS; i++) {
+            long start = System.nanoTime();
+            Future<Boolean> future = host.sendEvent(event(objects, i));
+            future.get();
+            if (i >= WARMUP) {
+                rounds[i - WARMUP] = System.nanoTime() - start;
+            }
+        }
+        host.sendBroadcast(new StopLike());
+        worker.join();
+        Arrays.sort(rounds);
+        return rounds;
+    }
+
+    private static DetectObjectsEvent event(List<DetectedObject> objects, int time) {
+        return new DetectObjectsEvent(new StampedDetectedObjects(time, objects), time, "Camera1");
+    }
+
+    private static void print(String transport, long[] rounds) {
+        long total = 0;
+        for (long round : rounds) {
+            total += round;
+        }
+        System.out.printf("%14s %12.1f %12.1f %12.1f %12.1f%n", transport, total / (double) rounds.length / 1e3,
+                rounds[rounds.length / 2] / 1e3, rounds[rounds.length * 99 / 100] / 1e3, rounds[rounds.length - 1] / 1e3);
+    }
+
+    private static class StopLike implements Broadcast {
+    }
+
+    private static class LiDarLike extends MicroService {
+        private final CountDownLatch subscribed;
+
+        LiDarLike(MessageBus messageBus, CountDownLatch subscribed) {
+            super("LiDarLike", messageBus);
+            this.subscribed = subscribed;
+        }
+
+        @Override
+        protected void initialize() {
+            subscribeEvent(DetectObjectsEvent.class, event -> complete(event, true));
+            subscribeBroadcast(StopLike.class, stop -> terminate());
+            subscribed.countDown();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import bgu.spl.mics.Broadcast;
+import bgu.spl.mics.Event;
+import bgu.spl.mics.MessageBusImpl;
+import bgu.spl.mics.MicroService;
+
+/**
+ * Simulates the burst of {@link MessageBusImpl#unregister} calls that follows
+ * the Time Service's TerminatedBroadcast: thousands of sensor-like services,
+ * each subscribed to a few broadcasts and one event type, unregister at once
+ * from a pool of threads.
+ * <p>
+ * Not a unit test (surefire skips it), run it by hand after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes TerminationStormBenchmark}
+ */
+public class TerminationStormBenchmark {
+
+    private static final int[] SERVICE_COUNTS = {1000, 2000, 4000, 8000};
+    private static final int THREADS = 64;
+
+    public static void main(String[] args) throws InterruptedException {
+        MessageBusImpl messageBus = (MessageBusImpl) MessageBusImpl.getInstance();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+
+        System.out.printf("%10s %14s %18s%n", "services", "storm ms", "us/unregister");
+        storm(messageBus, pool, SERVICE_COUNTS[0]); // Warm up
+        for (int serviceCount : SERVICE_COUNTS) {
+            long nanos = storm(messageBus, pool, serviceCount);
+            System.out.printf("%10d %14.1f %18.2f%n", serviceCount, nanos / 1e6, nanos / 1e3 / serviceCount);
+        }
+        pool.shutdown();
+    }
+
+    private static long storm(MessageBusImpl messageBus, ExecutorService pool, int serviceCount) throws InterruptedException {
+        List<MicroService> services = new ArrayList<>();
+        for (int i = 0; i < serviceCount; i++) {
+            MicroService service = new IdleService("sensor" + i);
+            messageBus.register(service);
+            messageBus.subscribeBroadcast(TickLike.class, service);
+            messageBus.subscribeBroadcast(TerminatedLike.class, service);
+            messageBus.subscribeBroadcast(CrashedLike.class, service);
+            // Half of the services handle camera-like events, the other half LiDAR-like ones
+            if (i % 2 == 0) {
+                messageBus.subscribeEvent(CameraLikeEvent.class, service);
+            } else {
+                messageBus.subscribeEvent(LiDarLikeEvent.class, service);
+            }
+            services.add(service);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(serviceCount);
+        for (MicroService service : services) {
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    messageBus.unregister(service);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    private static class TickLike implements Broadcast {
+    }
+
+    private static class TerminatedLike implements Broadcast {
+    }
+
+    private static class CrashedLike implements Broadcast {
+    }
+
+    private static class CameraLikeEvent implements Event<Boolean> {
+    }
+
+    private static class LiDarLikeEvent implements Event<Void> {
+    }
+
+    private static class IdleService extends MicroService {
+        IdleService(String name) {
+            super(name);
+        }
+
+        @Override
+        protected void initialize() {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import bgu.spl.mics.LatencyHistogram;
+import bgu.spl.mics.application.GurionRockRunner;
+import bgu.spl.mics.application.RunContext;
+import bgu.spl.mics.application.objects.StatisticalFolder;
+import bgu.spl.mics.application.services.TimeService;
+
+public class TimeServiceTest {
+
+    @Test
+    public void testPacedTicksDoNotDrift() throws InterruptedException {
+        RunContext context = RunContext.create();
+        int ticks = 40;
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(5);
+        TimeService timeService = new TimeService(5, TimeUnit.MILLISECONDS, ticks, context, TimeService.Mode.PACED);
+        Thread thread = new Thread(timeService);
+
+        long start = System.nanoTime();
+        thread.start();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        long elapsed = System.nanoTime() - start;
+        assertFalse(thread.isAlive(), "The time service did not finish its ticks.");
+
+        StatisticalFolder statistics = context.getStatisticalFolder();
+        assertEquals(ticks, statistics.getSystemRuntime());
+        LatencyHistogram jitter = statistics.getTickJitter();
+        assertEquals(ticks, jitter.getCount());
+        // The last tick is due (ticks - 1) periods after the first and the service waits one more period after it
+        assertTrue(elapsed >= ticks * periodNanos, "Finished early: " + elapsed + " ns");
+        // Every tick is sent at most the worst recorded lateness after its deadline, so the lateness does not add
+        // up across ticks. The slack covers starting and joining the thread, even on a loaded machine.
+        long slack = TimeUnit.SECONDS.toNanos(2);
+        assertTrue(elapsed <= ticks * periodNanos + jitter.getMaxNanos() + slack,
+                "Drifted: " + elapsed + " ns, worst tick " + jitter.getMaxNanos() + " ns late");
+        // A tick a whole period late is an overrun
+        int overruns = statistics.getTickOverruns();
+        statistics.recordTick(periodNanos, periodNanos);
+        assertEquals(overruns + 1, statistics.getTickOverruns());
+    }
+
+    @Test
+    public void testFastRunsWriteThePacedOutput(@TempDir Path tempDir) throws Exception {
+        String paced = outputOf(tempDir.resolve("paced"), "paced");
+        for (int run = 0; run < 3; run++) {
+            assertEquals(paced, outputOf(tempDir.resolve("fast" + run), "as-fast-as-possible"),
+                    "Run " + run + " as fast as possible wrote another output than the paced run.");
+        }
+    }
+
+    @Test
+    public void testTickTimeUnits() {
+        assertEquals(TimeUnit.SECONDS.toNanos(1), GurionRockRunner.tickNanosOf(config("1")));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), GurionRockRunner.tickNanosOf(config("0.01")));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(250), GurionRockRunner.tickNanosOf(config("\"250ms\"")));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500), GurionRockRunner.tickNanosOf(config("\"500 us\"")));
+        assertEquals(1_500_000_000L, GurionRockRunner.tickNanosOf(config("\"1.5s\"")));
+        assertThrows(IllegalArgumentException.class, () -> GurionRockRunner.tickNanosOf(config("\"fast\"")));
+        assertThrows(IllegalArgumentException.class, () -> GurionRockRunner.tickNanosOf(config("0")));
+    }
+
+    // Runs the example input in its own context and directory, returns the output file
+    private static String outputOf(Path directory, String timeMode) throws Exception {
+        Files.createDirectories(directory);
+        for (File file : new File("example input").listFiles((dir, name) -> name.endsWith("_data.json"))) {
+            Files.copy(file.toPath(), directory.resolve(file.getName()));
+        }
+        JsonObject config = JsonParser.parseString(read(Paths.get("example input", "configuration_file.json"))).getAsJsonObject();
+        // Long enough for a paced tick's work to settle even before the JIT compiled it
+        config.addProperty("TickTime", "100ms");
+        config.addProperty("TimeMode", timeMode);
+        Path configPath = directory.resolve("configuration_file.json");
+        Files.write(configPath, config.toString().getBytes(StandardCharsets.UTF_8));
+        GurionRockRunner.run(configPath.toString(), RunContext.create());
+        return read(directory.resolve("output_file.json"));
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+    private static JsonObject config(String tickTime) {
+        return JsonParser.parseString("{\"TickTime\": " + tickTime + "}").getAsJsonObject();
+    }
+}